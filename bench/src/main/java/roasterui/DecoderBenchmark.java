@@ -0,0 +1,76 @@
+/*
+ *
+ *          Serial bytes to frames: streaming decoder against the old string path
+ *
+*/
+
+
+package roasterui;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoderBenchmark {
+    private static final int LINES = 1000;
+
+    // largest chunk the port hands over at once
+    @Param({"1", "8", "64"})
+    public int maxChunk;
+
+    private TelemetryStream stream;
+    private TelemetryDecoder decoder;
+    private long sum;
+
+    @Setup
+    public void setup(){
+        stream = new TelemetryStream(LINES, maxChunk, 42);
+        decoder = new TelemetryDecoder((command, address, value) -> sum += value);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public long decoder(){
+        for (int chunk = 0; chunk < stream.chunks(); chunk++) {
+            decoder.decode(stream.bytes, stream.offsets[chunk], stream.lengths[chunk]);
+        }
+        return sum;
+    }
+
+    // the StringBuilder, split and parseInt path the decoder replaced
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public long legacy(){
+        StringBuilder message = new StringBuilder();
+        for (int chunk = 0; chunk < stream.chunks(); chunk++) {
+            for (byte b : stream.copy(chunk)) {
+                if ((b == '\r' || b == '\n') && message.length() > 0) {
+                    String[] parts = message.toString().split(",");
+                    sum += Integer.parseInt(parts[0]) + Integer.parseInt(parts[1]) + Integer.parseInt(parts[2]);
+                    message.setLength(0);
+                }
+                else if (b != '\r' && b != '\n') {
+                    message.append((char) b);
+                }
+            }
+        }
+        return sum;
+    }
+
+}
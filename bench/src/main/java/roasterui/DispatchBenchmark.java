@@ -0,0 +1,77 @@
+/*
+ *
+ *          Frames to the UI thread: coalescing push dispatcher against the polled queue
+ *
+ *      The FX thread is stood in for by a deferred executor that is run once
+ *      every PULSE frames, so the cost of coalescing shows up the same way it
+ *      would between two pulses.
+ *
+*/
+
+
+package roasterui;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+    // frames arriving between two FX pulses
+    private static final int PULSE = 16;
+
+    private TelemetryDispatcher dispatcher;
+    private CommandQueue queue;
+    private Runnable pending;
+    private long sum;
+    private int value;
+
+    @Setup
+    public void setup(){
+        dispatcher = new TelemetryDispatcher((command, address, value) -> sum += value,
+                                             task -> pending = task);
+        queue = new CommandQueue(256);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PULSE)
+    public long push(){
+        for (int i = 0; i < PULSE; i++) {
+            dispatcher.onFrame(0, i % 10 + 1, value++);
+        }
+        Runnable task = pending;
+        pending = null;
+        if (task != null) {
+            task.run();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PULSE)
+    public long poll(){
+        for (int i = 0; i < PULSE; i++) {
+            queue.offer(0, i % 10 + 1, value++);
+        }
+        long frame;
+        while ((frame = queue.poll()) != CommandQueue.EMPTY) {
+            sum += CommandQueue.value(frame);
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ *
+ *          Bytes from the port through ArduinoSerial and the dispatcher to the UI callback
+ *
+ *      Throughput runs a whole fragmented stream per invocation. The sample
+ *      mode runs one chunk per invocation and reports latency percentiles.
+ *      Add -prof gc for the allocation rate per message.
+ *
+*/
+
+
+package roasterui;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EndToEndBenchmark {
+    private static final int LINES = 1000;
+
+    @Param({"8", "64"})
+    public int maxChunk;
+
+    private TelemetryStream stream;
+    private ArduinoSerial arduino;
+    private SerialTransport.Receiver receiver;
+    private Runnable pending;
+    private int chunk;
+    private long sum;
+
+    // Captures the receiver so the benchmark can play the port's reader thread
+    private class BenchTransport implements SerialTransport {
+        @Override
+        public void open(Receiver receiver) {
+            EndToEndBenchmark.this.receiver = receiver;
+        }
+
+        @Override
+        public void write(byte[] bytes) throws IOException {
+        }
+
+        @Override
+        public boolean isOpen(){
+            return true;
+        }
+
+        @Override
+        public void close(){
+        }
+
+        @Override
+        public String name(){
+            return "benchmark";
+        }
+    }
+
+    @Setup
+    public void setup(){
+        stream = new TelemetryStream(LINES, maxChunk, 7);
+        arduino = new ArduinoSerial(new BenchTransport());
+        arduino.setListener(new TelemetryDispatcher((command, address, value) -> sum += value,
+                                                    task -> pending = task));
+        arduino.connect();
+    }
+
+    private void feed(int chunk){
+        receiver.onBytes(stream.bytes, stream.offsets[chunk], stream.lengths[chunk]);
+        Runnable task = pending;
+        pending = null;
+        if (task != null) {
+            task.run();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @OperationsPerInvocation(LINES)
+    public long stream(){
+        for (int i = 0; i < stream.chunks(); i++) {
+            feed(i);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long chunk(){
+        feed(chunk);
+        chunk = (chunk + 1) % stream.chunks();
+        return sum;
+    }
+
+}
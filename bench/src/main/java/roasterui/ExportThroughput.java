@@ -0,0 +1,73 @@
+/*
+ *
+ *          Batch export of a season of roasts
+ *
+ *      Writes a number of 15 minute roast logs at 10 Hz, a season's worth,
+ *      then converts all of them in each format on one thread per core and
+ *      reports rows per second and the peak heap, which should stay near
+ *      what the JVM uses idle however many roasts there are. Run it with a
+ *      small heap, as on the Pi, to check nothing is held per sample.
+ *
+ *      java -Xmx64m -cp bench/target/benchmarks.jar roasterui.ExportThroughput [roasts]
+ *
+*/
+
+
+package roasterui;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ExportThroughput {
+
+    public static void main(String[] args) throws Exception {
+        int roasts = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+        Path dir = Files.createTempDirectory("roast-export");
+        List<Path> logs = new ArrayList<>();
+        Log sample = new Log();
+        long start = System.currentTimeMillis();
+        for (int roast = 0; roast < roasts; roast++) {
+            Path path = dir.resolve(String.format("roast-%04d.rlog", roast));
+            try (RoastLog log = RoastLog.create(path)) {
+                for (int i = 0; i < 9000; i++) {
+                    sample.timestamp = start + i * 100L;
+                    sample.drumTemp = 200 + i / 40;
+                    sample.chamberTemp = 400 + i % 7;
+                    sample.exhaustTemp = 300 + i % 5;
+                    sample.proValve = 40;
+                    sample.drumStatus = true;
+                    sample.exhaustStatus = true;
+                    sample.gasStatus = i >= 600 && i < 8400;
+                    sample.flameStatus = sample.gasStatus;
+                    sample.coolingStatus = i >= 8400;
+                    log.append(sample);
+                }
+            }
+            try (RoastEvents events = RoastEvents.create(path)) {
+                events.mark(RoastEvents.Type.CHARGE, start + 600 * 100L, 600, RoastEvents.AUTO);
+                events.mark(RoastEvents.Type.FIRST_CRACK, start + 6000 * 100L, 6000, RoastEvents.MANUAL);
+                events.mark(RoastEvents.Type.SECOND_CRACK, start + 7800 * 100L, 7800, RoastEvents.MANUAL);
+                events.mark(RoastEvents.Type.DROP, start + 8400 * 100L, 8400, RoastEvents.AUTO);
+            }
+            logs.add(path);
+        }
+        System.out.printf("%d logs, %.1f MB%n", roasts, Files.list(dir).mapToLong(ExportThroughput::size).sum() / 1e6);
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (RoastExport.Format format : RoastExport.Format.values()) {
+            Path out = Files.createDirectories(dir.resolve(format.toString().toLowerCase()));
+            System.out.print(RoastExport.convert(logs, format, out, threads));
+            System.out.printf("  %.1f MB written%n", Files.list(out).mapToLong(ExportThroughput::size).sum() / 1e6);
+            Files.list(out).forEach(file -> file.toFile().delete());
+            Files.delete(out);
+        }
+        Files.list(dir).forEach(file -> file.toFile().delete());
+        Files.delete(dir);
+    }
+
+    private static long size(Path path){
+        return path.toFile().length();
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ *
+ *          Cost of filtering one reading, per stage and for a full chain
+ *
+ *      Readings are a slow ramp with noise and a spike every 200, as a
+ *      thermocouple gives them. Run with -prof gc to check nothing is
+ *      allocated per reading.
+ *
+ *      java -jar bench/target/benchmarks.jar FilterBenchmark -prof gc
+ *
+*/
+
+
+package roasterui;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+    private static final int READINGS = 4096;
+
+    @Param({"median=5", "ema=0.3", "kalman=0.01:4", "outlier=40", "outlier=40,median=5,ema=0.3"})
+    public String spec;
+
+    private final int[] readings = new int[READINGS];
+    private SignalFilter filter;
+
+    @Setup
+    public void setup(){
+        Random random = new Random(42);
+        for (int i = 0; i < READINGS; i++) {
+            readings[i] = 200 + i / 20 + random.nextInt(7) - 3 + ((i % 200 == 199) ? 150 : 0);
+        }
+        filter = SignalFilter.parse(spec);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(READINGS)
+    public long filter(){
+        long sum = 0;
+        for (int reading : readings) {
+            sum += filter.apply(reading);
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ *
+ *          Roast history cost against the number of roasts
+ *
+ *      Writes one 15 minute roast log at 10 Hz and indexes it 100, 1000 and
+ *      10000 times, then times opening the history, which is all startup
+ *      pays, reading the newest entry, reading and filtering the whole index,
+ *      and loading the one roast picked from it as a reference curve. Only
+ *      the last three should grow with the history, and only the index read.
+ *
+ *      java -cp bench/target/benchmarks.jar roasterui.HistoryScaling
+ *
+*/
+
+
+package roasterui;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class HistoryScaling {
+
+    public static void main(String[] args) throws Exception {
+        System.out.printf("%8s  %10s  %10s  %12s  %10s  %10s%n",
+                "roasts", "open us", "latest us", "entries us", "filter us", "load us");
+        for (int roasts : new int[] {100, 1000, 10000}) {
+            run(roasts);
+        }
+    }
+
+    private static void run(int roasts) throws Exception {
+        Path dir = Files.createTempDirectory("roast-history");
+        Path path = dir.resolve("roast-20260101-080000.rlog");
+        try (RoastLog log = RoastLog.create(path)) {
+            Log sample = new Log();
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < 9000; i++) {
+                sample.timestamp = start + i * 100L;
+                sample.drumTemp = 200 + i / 40;
+                sample.chamberTemp = 400;
+                sample.exhaustTemp = 300;
+                sample.gasStatus = i >= 600 && i < 8400;
+                sample.coolingStatus = i >= 8400;
+                log.append(sample);
+            }
+        }
+        try (RoastHistory history = RoastHistory.open(dir); RoastLog log = RoastLog.openReadOnly(path)) {
+            for (int i = 0; i < roasts; i++) {
+                history.add(log, (i % 3 == 0) ? "Ethiopia Guji" : "Colombia Huila");
+            }
+        }
+        long opened = System.nanoTime();
+        RoastHistory history = RoastHistory.open(dir);
+        long latest = System.nanoTime();
+        RoastHistory.Entry newest = history.latest();
+        long entries = System.nanoTime();
+        List<RoastHistory.Entry> all = history.entries();
+        long filter = System.nanoTime();
+        List<RoastHistory.Entry> found = history.find(entry -> entry.bean.startsWith("Ethiopia"));
+        long load = System.nanoTime();
+        int drum;
+        try (RoastLog log = history.load(newest)) {
+            drum = log.drumTemp(log.size() - 1);
+        }
+        long end = System.nanoTime();
+        history.close();
+        if (all.size() != roasts || found.isEmpty() || drum == 0) {
+            throw new IllegalStateException("history did not read back");
+        }
+        System.out.printf("%8d  %10.0f  %10.0f  %12.0f  %10.0f  %10.0f%n", roasts,
+                (latest - opened) / 1e3, (entries - latest) / 1e3, (filter - entries) / 1e3,
+                (load - filter) / 1e3, (end - load) / 1e3);
+        Files.list(dir).forEach(file -> file.toFile().delete());
+        Files.delete(dir);
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ *
+ *          Journal throughput, fsync latency and replay time
+ *
+ *      Appends status records as fast as one thread can for a few seconds,
+ *      committing every 10 ms, then at a roast's rate of about 110 a second,
+ *      with the journal in the given directory, by default the temp directory.
+ *      Point it at the SD card to measure the device the roaster logs to.
+ *      Reports records written per second, and dropped when the writer falls
+ *      a whole batch behind, the time an append takes, sampled, which must not
+ *      include any fsync, and the fsync latency per group commit. Finally
+ *      writes an hour of roast, abandons the journal without closing it as a
+ *      crash would, and times the replay.
+ *
+ *      java -cp bench/target/benchmarks.jar roasterui.JournalThroughput [dir] [commit ms]
+ *
+*/
+
+
+package roasterui;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.locks.LockSupport;
+
+public class JournalThroughput {
+    // about what a binary link at 10 Hz reports, deltas and full frames together
+    private static final int ROAST_RATE = 110;
+
+    public static void main(String[] args) throws Exception {
+        Path parent = (args.length > 0) ? Paths.get(args[0]) : Paths.get(System.getProperty("java.io.tmpdir"));
+        long commit = (args.length > 1) ? Long.parseLong(args[1]) : 200;
+        Path dir = Files.createTempDirectory(parent, "roaster-journal");
+        System.out.println("Journal in " + dir + ", commit every " + commit + " ms");
+        // a batch holds 16384 records, commit often enough for one thread flat out
+        flat(dir.resolve("flat.wal"), Math.min(commit, 10));
+        roast(dir.resolve("roast.wal"), commit);
+        replay(dir.resolve("crash.wal"), commit);
+        Files.list(dir).forEach(file -> file.toFile().delete());
+        Files.delete(dir);
+    }
+
+    // one thread appending as fast as it can
+    private static void flat(Path path, long commit) throws Exception {
+        Journal journal = Journal.open(path, commit);
+        Histogram append = new Histogram();
+        long records = 0;
+        long start = System.nanoTime();
+        long end = start + 3_000_000_000L;
+        long now = start;
+        while (now < end) {
+            for (int i = 0; i < 64; i++) {
+                journal.status(1 + (int) (records % 10), (int) records);
+                records++;
+            }
+            // time one append in 64 so the clock does not dominate
+            long before = System.nanoTime();
+            journal.status(1, 0);
+            now = System.nanoTime();
+            append.record(now - before);
+            records++;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        journal.close();
+        System.out.printf("flat out, commit every %d ms: %.0f records/s written  %.1f MB/s  append p50 %.2f us  p99 %.2f us  max %.0f us  dropped %d%n",
+                commit, journal.records() / seconds, journal.bytesWritten() / seconds / 1e6,
+                append.percentile(0.5) / 1e3, append.percentile(0.99) / 1e3, append.max() / 1e3, journal.dropped());
+        System.out.print(journal.journalReport());
+    }
+
+    // the rate of a real roast
+    private static void roast(Path path, long commit) throws Exception {
+        Journal journal = Journal.open(path, commit);
+        Histogram append = new Histogram();
+        long period = 1_000_000_000L / ROAST_RATE;
+        long next = System.nanoTime();
+        for (int i = 0; i < ROAST_RATE * 10; i++) {
+            LockSupport.parkNanos(next - System.nanoTime());
+            next += period;
+            long before = System.nanoTime();
+            journal.status(1 + i % 10, 300 + i / 100);
+            append.record(System.nanoTime() - before);
+        }
+        journal.close();
+        System.out.printf("roast rate: %d records/s  append p50 %.2f us  p99 %.2f us  max %.0f us%n",
+                ROAST_RATE, append.percentile(0.5) / 1e3, append.percentile(0.99) / 1e3, append.max() / 1e3);
+        System.out.print(journal.journalReport());
+    }
+
+    // an hour of roast, left unclosed, then replayed
+    private static void replay(Path path, long commit) throws Exception {
+        Journal journal = Journal.open(path, commit);
+        int hour = ROAST_RATE * 3600;
+        for (int i = 0; i < hour; i++) {
+            journal.status(1 + i % 10, 300 + i / 10000);
+            if (i % 8192 == 8191) {
+                LockSupport.parkNanos(commit * 1_000_000L * 2);
+            }
+        }
+        // wait for the last group commit, then crash
+        LockSupport.parkNanos(commit * 1_000_000L * 3);
+        long start = System.nanoTime();
+        boolean needed = Journal.needsReplay(path);
+        Journal.Replayed replayed = new Journal.Replayed();
+        long records = Journal.replay(path, replayed);
+        double took = (System.nanoTime() - start) / 1e6;
+        System.out.printf("replay of an hour (%d records, %.1f MB): %.0f ms, %d curve points, needed %s%n",
+                records, Files.size(path) / 1e6, took, replayed.points(), needed);
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ *
+ *          Host cost and latency from one to eight roasters
+ *
+ *      Runs 1, 2, 4 and 8 simulated roasters through RoasterGroup, sharing
+ *      the decode pool and poll scheduler, each sending 20 status frames a
+ *      second at unlimited baud. Reports the CPU time of every thread except
+ *      the simulators per frame and per roaster, and the status round trip
+ *      p50 / p99 of the slowest roaster. Both should stay flat as roasters
+ *      are added. Not a JMH benchmark, the threads being measured are the
+ *      application's own.
+ *
+ *      java -cp bench/target/benchmarks.jar roasterui.MultiRoasterScaling [seconds]
+ *
+*/
+
+
+package roasterui;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class MultiRoasterScaling {
+
+    public static void main(String[] args) throws Exception {
+        long seconds = (args.length > 0) ? Long.parseLong(args[0]) : 5;
+        Path logDir = Files.createTempDirectory("roaster-scaling");
+        System.out.printf("%8s  %10s  %14s  %14s  %12s  %12s%n",
+                "roasters", "frames/s", "cpu us/frame", "cpu %/roaster", "rtt p50 ms", "rtt p99 ms");
+        for (int roasters : new int[] {1, 2, 4, 8}) {
+            run(roasters, seconds, logDir);
+        }
+        delete(logDir);
+    }
+
+    private static void run(int roasters, long seconds, Path logDir) throws InterruptedException {
+        StringBuilder ports = new StringBuilder("--port=");
+        for (int i = 1; i <= roasters; i++) {
+            ports.append((i == 1) ? "" : ",").append("sim").append(i);
+        }
+        List<String> args = new ArrayList<>();
+        args.add(ports.toString());
+        args.add("--simulate=20");
+        args.add("--logdir=" + logDir);
+        RoasterGroup group = new RoasterGroup(args);
+        group.start();
+        // let the links negotiate and the JIT settle
+        Thread.sleep(2000);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Map<Long, Long> startCpu = hostCpu(threads);
+        long startFrames = frames(group);
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long frames = frames(group) - startFrames;
+        long cpu = 0;
+        for (Map.Entry<Long, Long> entry : hostCpu(threads).entrySet()) {
+            cpu += entry.getValue() - startCpu.getOrDefault(entry.getKey(), 0L);
+        }
+        long p50 = 0;
+        long p99 = 0;
+        for (RoasterCore core : group.cores()) {
+            // binary status answers count for address 0
+            Histogram roundTrip = core.getArduino().roundTrip(0);
+            p50 = Math.max(p50, roundTrip.percentile(0.5));
+            p99 = Math.max(p99, roundTrip.percentile(0.99));
+        }
+        group.stop();
+        System.out.printf("%8d  %10.1f  %14.1f  %14.3f  %12.2f  %12.2f%n",
+                roasters, frames / elapsed, (frames == 0) ? 0 : cpu / 1e3 / frames,
+                cpu / (elapsed * 1e7) / roasters, p50 / 1e6, p99 / 1e6);
+    }
+
+    // CPU nanoseconds per live thread, leaving out the simulated roasters
+    private static Map<Long, Long> hostCpu(ThreadMXBean threads){
+        Map<Long, Long> cpu = new HashMap<>();
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info == null || info.getThreadName().equals("roaster-simulator")) {
+                continue;
+            }
+            long time = threads.getThreadCpuTime(info.getThreadId());
+            if (time >= 0) {
+                cpu.put(info.getThreadId(), time);
+            }
+        }
+        return cpu;
+    }
+
+    private static long frames(RoasterGroup group){
+        long frames = 0;
+        for (RoasterCore core : group.cores()) {
+            frames += core.getArduino().frames();
+        }
+        return frames;
+    }
+
+    private static void delete(Path dir){
+        try {
+            Files.list(dir).forEach(file -> file.toFile().delete());
+            Files.delete(dir);
+        } catch (IOException ex) {
+            System.out.println("Could not remove " + dir + ": " + ex);
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ *
+ *          Bytes per sample and highest full status rate per protocol
+ *
+ *      Runs the simulated roaster at 9600 baud and asks for the status of
+ *      all ten addresses again as soon as the previous answer is complete,
+ *      once on the text protocol and once on binary frames. Not a JMH
+ *      benchmark, the link speed is the limit being measured.
+ *
+ *      java -cp bench/target/benchmarks.jar roasterui.ProtocolComparison [seconds]
+ *
+*/
+
+
+package roasterui;
+
+import java.util.concurrent.TimeUnit;
+
+public class ProtocolComparison {
+
+    public static void main(String[] args) throws InterruptedException {
+        long seconds = (args.length > 0) ? Long.parseLong(args[0]) : 5;
+        run(false, seconds);
+        run(true, seconds);
+    }
+
+    private static void run(boolean binary, long seconds) throws InterruptedException {
+        SimulatedRoaster simulator = new SimulatedRoaster(1);
+        ArduinoSerial arduino = new ArduinoSerial(simulator);
+        arduino.setBinaryAllowed(binary);
+        arduino.connect();
+        // a binary frame counts once for address 0, a text answer ends with address 10
+        int last = binary ? 0 : 10;
+        long startBytes = arduino.bytesReceived();
+        long startCount = arduino.responses(last);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        while (System.nanoTime() < end) {
+            long count = arduino.responses(last);
+            arduino.request(0);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            while (arduino.responses(last) == count && System.nanoTime() < deadline) {
+                Thread.sleep(0, 200000);
+            }
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long samples = arduino.responses(last) - startCount;
+        long bytes = arduino.bytesReceived() - startBytes;
+        System.out.printf("%-6s  %6d full status in %.1f s  %6.1f status/s  %5.1f bytes per status  %4.1f bytes per value  malformed %d%n",
+                binary ? "binary" : "text", samples, elapsed, samples / elapsed,
+                (double) bytes / samples, bytes / (samples * 10.0), arduino.malformedFrames());
+        arduino.close();
+    }
+
+}
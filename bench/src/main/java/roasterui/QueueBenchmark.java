@@ -0,0 +1,55 @@
+/*
+ *
+ *          Response queue: single thread cost and producer/consumer handoff
+ *
+*/
+
+
+package roasterui;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueBenchmark {
+    private final CommandQueue queue = new CommandQueue(256);
+    private int value;
+
+    @Benchmark
+    @Group("single")
+    @GroupThreads(1)
+    public long offerPoll(){
+        queue.offer(0, 1, value++);
+        return queue.poll();
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public void producer(){
+        queue.offer(0, 1, value++);
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public long consumer(){
+        return queue.poll();
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ *
+ *          Link drop and recovery against the simulated roaster
+ *
+ *      Runs one roaster at 9600 baud with the drum, exhaust fan, gas and a
+ *      40% valve set, then drops the simulated Bluetooth link a number of
+ *      times for a few seconds each. While the link is down the valve is
+ *      moved and the exhaust fan turned off. Reports the time from the link
+ *      coming back to the first status value and whether the roaster ended
+ *      up in the state set from here. The simulated roaster keeps running
+ *      through the outage, so the gas stays on without being sent again.
+ *
+ *      java -cp bench/target/benchmarks.jar roasterui.ReconnectTiming [drops] [outage seconds]
+ *
+*/
+
+
+package roasterui;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+public class ReconnectTiming {
+
+    public static void main(String[] args) throws Exception {
+        int drops = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+        long outage = (args.length > 1) ? Long.parseLong(args[1]) * 1000 : 3000;
+        Path logDir = Files.createTempDirectory("roaster-reconnect");
+        SimulatedRoaster simulator = new SimulatedRoaster(1);
+        RoasterCore core = new RoasterCore(Arrays.asList("--logdir=" + logDir, "--link-timeout=1000"),
+                null, simulator, null, null, new Metrics());
+        core.start();
+        waitFor(() -> core.getConnection().getState() == ConnectionManager.State.CONNECTED, 5000);
+        core.setRelay(RoasterCore.DRUM_RELAY, true);
+        core.setRelay(RoasterCore.EXHAUST_RELAY, true);
+        core.setRelay(RoasterCore.IGNITOR, true);
+        core.setRelay(RoasterCore.GAS_RELAY, true);
+        core.setValve(40);
+        Thread.sleep(1000);
+        Histogram backToSample = new Histogram();
+        int restored = 0;
+        for (int drop = 0; drop < drops; drop++) {
+            simulator.setLinkUp(false);
+            Thread.sleep(outage / 2);
+            // changed while the link is down, must reach the roaster once it is back
+            int valve = 30 + drop * 10;
+            core.setValve(valve);
+            core.setRelay(RoasterCore.EXHAUST_RELAY, drop % 2 == 1);
+            Thread.sleep(outage - outage / 2);
+            long samples = core.getArduino().firstSample().count();
+            long back = System.nanoTime();
+            simulator.setLinkUp(true);
+            waitFor(() -> core.getArduino().firstSample().count() > samples, 10_000);
+            long took = System.nanoTime() - back;
+            backToSample.record(took);
+            Thread.sleep(1000);
+            boolean matches = simulator.value(RoasterCore.PRO_VALVE) == valve
+                    && simulator.value(RoasterCore.EXHAUST_RELAY) == drop % 2
+                    && simulator.value(RoasterCore.DRUM_RELAY) == 1;
+            if (matches) {
+                restored++;
+            }
+            System.out.printf("drop %d: link back to first sample %.0f ms, state %s%n",
+                    drop + 1, took / 1e6,
+                    matches ? "restored" : "NOT restored");
+        }
+        core.stop();
+        System.out.print(core.getConnection().connectionReport());
+        System.out.printf("link back to first sample (ms): p50 %.0f  max %.0f, state restored %d of %d, gas %s%n",
+                backToSample.percentile(0.5) / 1e6, backToSample.max() / 1e6, restored, drops,
+                (simulator.value(RoasterCore.GAS_RELAY) == 1) ? "on" : "off");
+        Files.list(logDir).forEach(file -> file.toFile().delete());
+        Files.delete(logDir);
+    }
+
+    private static void waitFor(BooleanSupplier condition, long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ *
+ *          Flame out to gas closed with the UI thread stalled
+ *
+ *      Runs one roaster against the simulator at 9600 baud with a stand in
+ *      for the FX thread that is kept busy for the whole run, so everything
+ *      dispatched to the UI waits. The burner is lit and then blown out a
+ *      number of times with the gas left open. Reports the watchdog's fault
+ *      detected to shutdown written latency, the flame going out to the
+ *      simulated gas valve closing, which adds the wait for the next flame
+ *      status, and how far behind the stalled UI was.
+ *
+ *      java -cp bench/target/benchmarks.jar roasterui.SafetyLatency [flame outs]
+ *
+*/
+
+
+package roasterui;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+public class SafetyLatency {
+
+    public static void main(String[] args) throws Exception {
+        int outs = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+        Path logDir = Files.createTempDirectory("roaster-safety");
+        SimulatedRoaster simulator = new SimulatedRoaster(1);
+        RoasterCore core = new RoasterCore(Arrays.asList("--logdir=" + logDir), null, simulator, null, null, new Metrics());
+        // the UI, stalled: one thread that never gets to the queued updates until the end
+        ExecutorService ui = Executors.newSingleThreadExecutor();
+        AtomicLong uiApplied = new AtomicLong();
+        TelemetryDispatcher dispatcher = new TelemetryDispatcher((command, address, value) -> uiApplied.incrementAndGet(), ui);
+        core.subscribe(dispatcher);
+        core.start();
+        waitFor(() -> core.getConnection().getState() == ConnectionManager.State.CONNECTED, 5000);
+        long stallUntil = System.currentTimeMillis() + 3600_000;
+        ui.execute(() -> {
+            while (System.currentTimeMillis() < stallUntil && !Thread.currentThread().isInterrupted()) {
+                // busy, like a long layout pass
+            }
+        });
+        core.setRelay(RoasterCore.DRUM_RELAY, true);
+        core.setRelay(RoasterCore.EXHAUST_RELAY, true);
+        core.setValve(40);
+        Histogram gasClosed = new Histogram();
+        for (int out = 0; out < outs; out++) {
+            core.setRelay(RoasterCore.IGNITOR, true);
+            core.setRelay(RoasterCore.GAS_RELAY, true);
+            waitFor(() -> core.value(RoasterCore.FLAME) == 1 && simulator.value(RoasterCore.FLAME) == 1, 5000);
+            core.setRelay(RoasterCore.IGNITOR, false);
+            waitFor(() -> simulator.value(RoasterCore.IGNITOR) == 0, 5000);
+            Thread.sleep(500);
+            long trips = core.getWatchdog().trips(SafetyWatchdog.Rule.FLAME_OUT);
+            long blown = System.nanoTime();
+            simulator.blowOut();
+            waitFor(() -> simulator.value(RoasterCore.GAS_RELAY) == 0, 5000);
+            long closed = System.nanoTime() - blown;
+            gasClosed.record(closed);
+            waitFor(() -> core.getWatchdog().trips(SafetyWatchdog.Rule.FLAME_OUT) > trips, 1000);
+            System.out.printf("flame out %d: gas closed after %.0f ms%n", out + 1, closed / 1e6);
+            // let the reported gas state clear the rule before lighting again
+            Thread.sleep(1500);
+        }
+        Histogram detected = core.getArduino().getWriter().urgentLatency();
+        System.out.printf("detected to shutdown written (ms): p50 %.2f  p99 %.2f  max %.2f  n %d%n",
+                detected.percentile(0.5) / 1e6, detected.percentile(0.99) / 1e6, detected.max() / 1e6, detected.count());
+        System.out.printf("flame out to gas closed (ms): p50 %.0f  max %.0f, trips %d, UI updates applied %d%n",
+                gasClosed.percentile(0.5) / 1e6, gasClosed.max() / 1e6, core.getWatchdog().trips(), uiApplied.get());
+        core.stop();
+        ui.shutdownNow();
+        Files.list(logDir).forEach(file -> file.toFile().delete());
+        Files.delete(logDir);
+    }
+
+    private static void waitFor(BooleanSupplier condition, long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+}
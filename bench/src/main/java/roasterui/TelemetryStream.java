@@ -0,0 +1,69 @@
+/*
+ *
+ *          Synthetic arduino output for the benchmarks
+ *
+ *      Status lines for addresses 1 - 10 with plausible values, cut into the
+ *      kind of uneven chunks a 9600 baud serial port hands to its listener.
+ *
+*/
+
+
+package roasterui;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+public class TelemetryStream {
+    public final byte[] bytes;
+    public final int[] offsets;
+    public final int[] lengths;
+    public final int lines;
+
+    public TelemetryStream(int lines, int maxChunk, long seed){
+        Random random = new Random(seed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < lines; i++) {
+            int address = i % 10 + 1;
+            int value;
+            if (address <= 3) {
+                value = 150 + random.nextInt(300);
+            }
+            else if (address == 10) {
+                value = random.nextInt(101);
+            }
+            else {
+                value = random.nextInt(2);
+            }
+            byte[] line = ("0," + address + "," + value + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            out.write(line, 0, line.length);
+        }
+        this.bytes = out.toByteArray();
+        this.lines = lines;
+        // split into chunks of 1 - maxChunk bytes
+        int[] offsets = new int[bytes.length];
+        int[] lengths = new int[bytes.length];
+        int chunks = 0;
+        for (int offset = 0; offset < bytes.length; chunks++) {
+            int length = Math.min(bytes.length - offset, 1 + random.nextInt(maxChunk));
+            offsets[chunks] = offset;
+            lengths[chunks] = length;
+            offset += length;
+        }
+        this.offsets = Arrays.copyOf(offsets, chunks);
+        this.lengths = Arrays.copyOf(lengths, chunks);
+    }
+
+    public int chunks(){
+        return offsets.length;
+    }
+
+    // a fresh copy of a chunk, as jSSC's readBytes() returns
+    public byte[] copy(int chunk){
+        byte[] copy = new byte[lengths[chunk]];
+        System.arraycopy(bytes, offsets[chunk], copy, 0, copy.length);
+        return copy;
+    }
+
+}
@@ -0,0 +1,235 @@
+/*
+ *
+ *          Many WebSocket clients on one roaster
+ *
+ *      Runs one roaster against the simulator with the telemetry server on a
+ *      free port, lit and heating ten times faster than a real one so the
+ *      temperatures move with every status frame and a client at a few Hz
+ *      has a change waiting nearly every time it is due. The roaster runs
+ *      alone first, then with the clients connected, all read by one
+ *      selector thread here, and a few more that connect and never read.
+ *      Reports per client message
+ *      rates, the time from a value being read to a client receiving it, the
+ *      server thread's CPU, how many of the stuck clients were dropped, and
+ *      the gaps between logged status frames with and without the clients,
+ *      which should not move.
+ *
+ *      java -cp bench/target/benchmarks.jar roasterui.WebSocketLoad [clients] [rate] [seconds]
+ *
+*/
+
+
+package roasterui;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+public class WebSocketLoad {
+    private static final int STUCK = 5;
+
+    private static class Client {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(1 << 16);
+        boolean upgraded;
+        long messages;
+
+        Client(SocketChannel channel){
+            this.channel = channel;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 150;
+        double rate = (args.length > 1) ? Double.parseDouble(args[1]) : 5;
+        int seconds = (args.length > 2) ? Integer.parseInt(args[2]) : 20;
+        Path logDir = Files.createTempDirectory("roaster-websocket");
+        SimulatedRoaster simulator = new SimulatedRoaster(1);
+        simulator.setTimeScale(10);
+        RoasterCore core = new RoasterCore(Arrays.asList("--logdir=" + logDir), null, simulator, null, null, new Metrics());
+        core.start();
+        TelemetryServer server = new TelemetryServer(Collections.singletonList(core), Collections.singletonList("sim"), 0);
+        server.start();
+        // lit, at ten times the heating rate, so the temperatures move with every status frame
+        waitFor(() -> core.getConnection().getState() == ConnectionManager.State.CONNECTED, 5000);
+        core.setRelay(RoasterCore.DRUM_RELAY, true);
+        core.setRelay(RoasterCore.EXHAUST_RELAY, true);
+        core.setValve(60);
+        core.setRelay(RoasterCore.IGNITOR, true);
+        core.setRelay(RoasterCore.GAS_RELAY, true);
+        waitFor(() -> core.value(RoasterCore.FLAME) == 1, 5000);
+        core.setRelay(RoasterCore.IGNITOR, false);
+
+        Thread.sleep(seconds * 1000L / 2);
+        RoastLog log = core.getRoastLog();
+        int aloneFrom = log.size() / 2;
+        int loadedFrom = log.size();
+
+        Selector selector = Selector.open();
+        List<Client> clients = new ArrayList<>();
+        for (int i = 0; i < count + STUCK; i++) {
+            SocketChannel channel = SocketChannel.open();
+            if (i >= count) {
+                // never read, the server has to give up on these
+                channel.socket().setReceiveBufferSize(1024);
+            }
+            channel.connect(new InetSocketAddress("127.0.0.1", server.getPort()));
+            channel.write(ByteBuffer.wrap(("GET /ws?rate=" + ((i >= count) ? TelemetryServer.MAX_RATE : rate)
+                    + " HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1)));
+            if (i < count) {
+                channel.configureBlocking(false);
+                Client client = new Client(channel);
+                channel.register(selector, SelectionKey.OP_READ, client);
+                clients.add(client);
+            }
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long serverThread = thread("telemetry-server");
+        long cpuStart = threads.getThreadCpuTime(serverThread);
+        long start = System.nanoTime();
+        long end = start + seconds * 1_000_000_000L;
+        Histogram delivery = new Histogram();
+        while (System.nanoTime() < end) {
+            selector.select(100);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Client client = (Client) key.attachment();
+                if (client.channel.read(client.in) < 0) {
+                    key.cancel();
+                    continue;
+                }
+                read(client, delivery);
+            }
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        double cpu = (threads.getThreadCpuTime(serverThread) - cpuStart) / 1e9;
+        Histogram alone = gaps(log, aloneFrom, loadedFrom);
+        Histogram loaded = gaps(log, loadedFrom, log.size());
+
+        long least = Long.MAX_VALUE;
+        long total = 0;
+        for (Client client : clients) {
+            least = Math.min(least, client.messages);
+            total += client.messages;
+        }
+        System.out.printf("%d clients at %.1f Hz for %.0f s, %d stuck at %.0f Hz%n", count, rate, elapsed, STUCK, TelemetryServer.MAX_RATE);
+        System.out.printf("messages per client per second: mean %.2f  least %.2f, %.0f messages/s in all%n",
+                total / (double) count / elapsed, least / elapsed, total / elapsed);
+        System.out.printf("value read to client received (ms): p50 %.2f  p99 %.2f  max %.2f%n",
+                delivery.percentile(0.5) / 1e6, delivery.percentile(0.99) / 1e6, delivery.max() / 1e6);
+        System.out.printf("server thread CPU %.1f%% of one core, stuck clients dropped %d of %d%n",
+                cpu / elapsed * 100, server.dropped(), STUCK);
+        System.out.printf("status frame gaps alone (ms):  p50 %.1f  p99 %.1f  max %.1f%n",
+                alone.percentile(0.5) / 1e6, alone.percentile(0.99) / 1e6, alone.max() / 1e6);
+        System.out.printf("status frame gaps loaded (ms): p50 %.1f  p99 %.1f  max %.1f%n",
+                loaded.percentile(0.5) / 1e6, loaded.percentile(0.99) / 1e6, loaded.max() / 1e6);
+        System.out.print(server.serverReport());
+
+        server.stop();
+        core.stop();
+        selector.close();
+        Files.list(logDir).forEach(file -> file.toFile().delete());
+        Files.delete(logDir);
+    }
+
+    // frames received so far, with the time from the server's stamp to now for value messages
+    private static void read(Client client, Histogram delivery){
+        ByteBuffer in = client.in;
+        in.flip();
+        if (!client.upgraded) {
+            int end = indexOf(in, "\r\n\r\n");
+            if (end < 0) {
+                in.compact();
+                return;
+            }
+            in.position(end + 4);
+            client.upgraded = true;
+        }
+        long now = System.currentTimeMillis();
+        while (in.remaining() >= 2) {
+            int start = in.position();
+            int size = in.get(start + 1) & 0x7F;
+            int header = 2;
+            if (size == 126) {
+                if (in.remaining() < 4) {
+                    break;
+                }
+                size = in.getShort(start + 2) & 0xFFFF;
+                header = 4;
+            }
+            if (in.remaining() < header + size) {
+                break;
+            }
+            int payload = start + header;
+            // {"r":0,"t":<ms>,...
+            if (size > 12 && in.get(payload + 2) == 'r' && in.get(payload + 3) == '"') {
+                long stamp = 0;
+                for (int i = payload + 11; i < payload + size && in.get(i) != ','; i++) {
+                    stamp = stamp * 10 + (in.get(i) - '0');
+                }
+                delivery.record((now - stamp) * 1_000_000L);
+                client.messages++;
+            }
+            in.position(payload + size);
+        }
+        in.compact();
+    }
+
+    // time between logged samples, one per status frame
+    private static Histogram gaps(RoastLog log, int from, int to){
+        Histogram gaps = new Histogram();
+        for (int i = from + 1; i < to; i++) {
+            gaps.record((log.timestamp(i) - log.timestamp(i - 1)) * 1_000_000L);
+        }
+        return gaps;
+    }
+
+    private static void waitFor(BooleanSupplier condition, long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static int indexOf(ByteBuffer buffer, String text){
+        byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+        for (int i = buffer.position(); i <= buffer.limit() - bytes.length; i++) {
+            int j = 0;
+            while (j < bytes.length && buffer.get(i + j) == bytes[j]) {
+                j++;
+            }
+            if (j == bytes.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long thread(String name){
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name)) {
+                return thread.getId();
+            }
+        }
+        throw new IllegalStateException("no " + name + " thread");
+    }
+
+}
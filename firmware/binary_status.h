@@ -0,0 +1,120 @@
+/*
+ *
+ *          Binary status frames for the roaster arduino
+ *
+ *      Reference encoder for the binary protocol, the same as
+ *      src/roasterui/BinaryFrame.java. Frames are
+ *
+ *          0xA5, LENGTH, TYPE, payload..., CRC-8
+ *
+ *      LENGTH counts TYPE and the payload, the CRC (polynomial 0x07, start 0)
+ *      covers LENGTH through the payload. Numbers are big endian.
+ *
+ *      FULL  (1)  int16 drum, int16 chamber, int16 exhaust,
+ *                 relay bits (flame, drum, cooling, exhaust, gas, ignitor from bit 0),
+ *                 valve
+ *      DELTA (2)  uint16 mask with bit n for address n, then each value in the
+ *                 mask in address order, int16 for addresses 1 - 3, a byte otherwise
+ *      ECHO  (3)  command, int16 value
+ *
+ *      The host opens with the text command "4,1", again after every reconnect.
+ *      Answer "\r\n4,1,1\r\n" in text, the leading line ending ends whatever
+ *      binary frame a host that lost the link is still reading as text, then
+ *      send status, "0,0", as DELTA frames of what changed (a FULL one
+ *      every so often), "0,n" as a DELTA with just address n, and echo relay
+ *      and valve commands with ECHO frames. Firmware without this file simply
+ *      ignores "4,1" and the host stays on text.
+ *
+ *      Usage, values[] indexed by address 0 - 10:
+ *
+ *          uint8_t frame[BS_MAX_FRAME];
+ *          uint8_t length = bs_delta(frame, values, mask);
+ *          Serial.write(frame, length);
+ *
+*/
+
+#ifndef BINARY_STATUS_H
+#define BINARY_STATUS_H
+
+#include <stdint.h>
+
+#define BS_PROTOCOL_COMMAND 4
+#define BS_VERSION          1
+#define BS_SYNC             0xA5
+#define BS_FULL             1
+#define BS_DELTA            2
+#define BS_ECHO             3
+#define BS_MAX_FRAME        20
+
+static uint8_t bs_crc(uint8_t crc, uint8_t b){
+    crc ^= b;
+    for (uint8_t bit = 0; bit < 8; bit++) {
+        crc = (crc & 0x80) ? (uint8_t) ((crc << 1) ^ 0x07) : (uint8_t) (crc << 1);
+    }
+    return crc;
+}
+
+static uint8_t bs_put_short(uint8_t *out, uint8_t offset, int16_t value){
+    out[offset++] = (uint8_t) (value >> 8);
+    out[offset++] = (uint8_t) value;
+    return offset;
+}
+
+static uint8_t bs_begin(uint8_t *out, uint8_t type){
+    out[0] = BS_SYNC;
+    out[2] = type;
+    return 3;
+}
+
+// fills in length and CRC, returns the bytes to send
+static uint8_t bs_end(uint8_t *out, uint8_t offset){
+    uint8_t crc = 0;
+    out[1] = offset - 2;
+    for (uint8_t i = 1; i < offset; i++) {
+        crc = bs_crc(crc, out[i]);
+    }
+    out[offset++] = crc;
+    return offset;
+}
+
+static uint8_t bs_full(uint8_t *out, const int16_t *values){
+    uint8_t offset = bs_begin(out, BS_FULL);
+    uint8_t relays = 0;
+    for (uint8_t address = 1; address <= 3; address++) {
+        offset = bs_put_short(out, offset, values[address]);
+    }
+    for (uint8_t address = 4; address <= 9; address++) {
+        if (values[address]) {
+            relays |= 1 << (address - 4);
+        }
+    }
+    out[offset++] = relays;
+    out[offset++] = (uint8_t) values[10];
+    return bs_end(out, offset);
+}
+
+static uint8_t bs_delta(uint8_t *out, const int16_t *values, uint16_t mask){
+    uint8_t offset = bs_begin(out, BS_DELTA);
+    offset = bs_put_short(out, offset, (int16_t) mask);
+    for (uint8_t address = 1; address <= 10; address++) {
+        if (!(mask & (1 << address))) {
+            continue;
+        }
+        if (address <= 3) {
+            offset = bs_put_short(out, offset, values[address]);
+        }
+        else {
+            out[offset++] = (uint8_t) values[address];
+        }
+    }
+    return bs_end(out, offset);
+}
+
+static uint8_t bs_echo(uint8_t *out, uint8_t command, int16_t value){
+    uint8_t offset = bs_begin(out, BS_ECHO);
+    out[offset++] = command;
+    offset = bs_put_short(out, offset, value);
+    return bs_end(out, offset);
+}
+
+#endif
@@ -2,110 +2,404 @@
  *
  *          Class to handle serial connection to arduino
  *
+ *      Talks the text protocol unless the roaster agrees to binary status
+ *      frames when connecting, see BinaryFrame.
+ *
+ *      Given a decode executor, the port's reader thread only copies bytes
+ *      into a ring and decoding runs as one task at a time on the executor,
+ *      so any number of links can share a small pool.
+ *
+ *      connect() and disconnect() can be repeated on the same link, see
+ *      ConnectionManager. Statistics carry over from one connection to the
+ *      next.
+ *
 */
 
 
 package roasterui;
 
-import java.util.ArrayList;
-import javafx.application.Platform;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import jssc.SerialPort;
-import jssc.SerialPortEvent;
-import jssc.SerialPortEventListener;
-import jssc.SerialPortException;
 
 public class ArduinoSerial{
-    private String portName;
-    private String incoming;
-    private static SerialPort serialPort;
-    public ArrayList commandQueue;
-    
-    void connect(){
-        portName = "/dev/rfcomm0"; // Bluetooth port
-        serialPort = new SerialPort(portName);
-        try {
-            System.out.println("connecting");
-            serialPort.openPort();
-            serialPort.setParams(SerialPort.BAUDRATE_9600,
-                                 SerialPort.DATABITS_8,
-                                 SerialPort.STOPBITS_1,
-                                 SerialPort.PARITY_NONE);
-
-            serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_RTSCTS_IN | 
-                                  SerialPort.FLOWCONTROL_RTSCTS_OUT);
-
-            
-            serialPort.addEventListener(new PortReader(), SerialPort.MASK_RXCHAR);
-
-            
-            
-            
-            
-        } catch (SerialPortException ex) {
-            System.out.println("There are an error on writing string to port т: " + ex);
+    public static final int BAUD_RATE = SerialPort.BAUDRATE_9600;
+    // addresses 0 - 10
+    private static final int ADDRESSES = 11;
+    // how long to wait for the roaster to answer the binary protocol request
+    private static final long NEGOTIATE_MS = 500;
+    private final SerialTransport transport;
+    // responses waiting for the UI, oldest are dropped when full
+    public final CommandQueue commandQueue = new CommandQueue(256);
+    private volatile PortReader reader;
+    // decodes on this executor when set, otherwise on the port's reader thread
+    private final Executor decodeExecutor;
+    // all writes go through here, callers never block on the port
+    private final CommandWriter writer;
+    // when set, frames are pushed here instead of being queued
+    private volatile TelemetryListener listener;
+    // sees every status as received, stale ones included
+    private volatile TelemetryListener monitor;
+    // every command sent is journaled when set
+    private volatile Journal journal;
+    // ask for binary status frames when connecting
+    private volatile boolean binaryAllowed = true;
+    private volatile boolean binary;
+    private volatile CountDownLatch negotiation = new CountDownLatch(1);
+    // link statistics
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLongArray responses = new AtomicLongArray(ADDRESSES);
+    // oldest unanswered request and newest response per address, nanoTime or 0
+    private final AtomicLongArray requestedAt = new AtomicLongArray(ADDRESSES);
+    private final AtomicLongArray respondedAt = new AtomicLongArray(ADDRESSES);
+    // request to response per address, address 0 for whole binary frames
+    private final Histogram[] roundTrip = new Histogram[ADDRESSES];
+    private final AtomicLong connects = new AtomicLong();
+    // connection state, the times are nanoTime
+    private volatile boolean connected;
+    private volatile long connectedAt;
+    private volatile long lastReceivedAt;
+    private volatile boolean awaitingFirstSample;
+    // the roaster did not answer the binary request, do not ask again on a reconnect
+    private volatile boolean binaryRefused;
+    // open to first status value of each connection
+    private final Histogram firstSample = new Histogram();
+    // counts of the decoders of earlier connections
+    private volatile long previousFrames;
+    private volatile long previousMalformed;
+    private volatile long previousOverflow;
+    
+    // Bluetooth port
+    public ArduinoSerial(){
+        this(new JsscTransport("/dev/rfcomm0", BAUD_RATE));
+    }
+    
+    public ArduinoSerial(SerialTransport transport){
+        this(transport, null);
+    }
+    
+    public ArduinoSerial(SerialTransport transport, Executor decodeExecutor){
+        this.transport = transport;
+        this.decodeExecutor = decodeExecutor;
+        this.writer = new CommandWriter(transport);
+        for (int address = 0; address < ADDRESSES; address++) {
+            roundTrip[address] = new Histogram();
         }
     }
     
-    void send(int command,int value){
+    // Open the port, false when it could not be opened
+    boolean connect(){
+        if (reader != null) {
+            previousFrames += reader.decoder.frames() + reader.binaryDecoder.frames();
+            previousMalformed += reader.decoder.malformed() + reader.binaryDecoder.malformed();
+            previousOverflow += reader.inbound.dropped();
+        }
+        // the roaster may have restarted on text, and requests from the last connection are lost
+        binary = false;
+        for (int address = 0; address < ADDRESSES; address++) {
+            requestedAt.set(address, 0);
+        }
         try {
-            serialPort.writeString(command+","+value+"\n");
-            // clear message queue to prevent button from bouncing
-            commandQueue.clear();
-        } catch (SerialPortException ex) {
-            System.out.println("Error sending command: " + ex);
+            System.out.println("connecting to " + transport.name());
+            reader = new PortReader();
+            transport.open(reader);
+        } catch (IOException ex) {
+            System.out.println("Error opening port: " + ex);
+            return false;
+        }
+        StartupTimeline.mark(StartupTimeline.PORT_OPEN);
+        connects.incrementAndGet();
+        long now = System.nanoTime();
+        connectedAt = now;
+        lastReceivedAt = now;
+        awaitingFirstSample = true;
+        // whatever was queued while the link was down is resent by the owner, see RoasterCore.resync
+        writer.clear();
+        writer.start();
+        if (binaryAllowed && !binaryRefused) {
+            negotiate();
+            binaryRefused = !binary;
         }
+        // nothing is polled until the protocol is settled
+        connected = true;
+        return true;
     }
     
-    public String checkQueue(){
-            if (commandQueue.size() == 0) {
-                return "";
-            }
-            String message = (String) commandQueue.get(0);
-            commandQueue.remove(0); 
-            return message;
+    // Close the port and stop writing, connect() may be called again
+    void disconnect(){
+        connected = false;
+        writer.stop();
+        transport.close();
     }
     
-    void close(){
-        if (serialPort != null && serialPort.isOpened ()) {
-            try {
-                serialPort.closePort();//Close serial port
-            } catch (SerialPortException ex) {
-                System.out.println("Failed to close port.");
+    public boolean isConnected(){
+        return connected && transport.isOpen();
+    }
+    
+    // nanoTime of the last bytes received, or of connecting when none came since
+    public long lastReceived(){
+        return lastReceivedAt;
+    }
+    
+    // nanoTime of the oldest status request still waiting for an answer, 0 when none is
+    public long oldestRequest(){
+        long oldest = 0;
+        for (int address = 0; address < ADDRESSES; address++) {
+            long at = requestedAt.get(address);
+            if (at != 0 && (oldest == 0 || at < oldest)) {
+                oldest = at;
             }
         }
+        return oldest;
+    }
+    
+    // port open to the first status value, per connection
+    public Histogram firstSample(){
+        return firstSample;
+    }
+    
+    public String getPortName(){
+        return transport.name();
+    }
+    
+    // Switch to binary status frames if the roaster speaks them, otherwise stay on text
+    private void negotiate(){
+        negotiation = new CountDownLatch(1);
+        writer.offer(BinaryFrame.PROTOCOL_COMMAND, BinaryFrame.VERSION);
+        try {
+            negotiation.await(NEGOTIATE_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("protocol: " + (binary ? "binary v" + BinaryFrame.VERSION : "text"));
+    }
+    
+    // false keeps the link on the text protocol
+    void setBinaryAllowed(boolean allowed){
+        this.binaryAllowed = allowed;
+    }
+    
+    public boolean isBinary(){
+        return binary;
+    }
+    
+    // queue a command for the writer thread, safe to call from any thread
+    void send(int command,int value){
+        Journal target = journal;
+        if (target != null) {
+            target.command(command, value);
+        }
+        writer.offer(command, value);
+    }
+    
+    // queue a command ahead of everything else, detectedAt is when the fault was seen
+    void sendUrgent(int command, int value, long detectedAt){
+        writer.offerUrgent(command, value, detectedAt);
+        Journal target = journal;
+        if (target != null) {
+            target.command(command, value);
+        }
+    }
+    
+    // ask for the status of a single address, false when a request was already waiting
+    boolean request(int address){
+        requestedAt.compareAndSet(address, 0, System.nanoTime());
+        return writer.offer(0, address);
+    }
+    
+    void setJournal(Journal journal){
+        this.journal = journal;
+    }
+    
+    // push decoded frames to a listener instead of the queue
+    void setListener(TelemetryListener listener){
+        this.listener = listener;
+    }
+    
+    // pass every status to a monitor first, before stale ones are held back from the listener
+    void setMonitor(TelemetryListener monitor){
+        this.monitor = monitor;
+    }
+    
+    // next packed response or CommandQueue.EMPTY
+    public long checkQueue(){
+            return commandQueue.poll();
+    }
+    
+    public long bytesSent(){
+        return writer.bytesSent();
+    }
+    
+    public long bytesReceived(){
+        return bytesReceived.get();
+    }
+    
+    // status responses received for an address
+    public long responses(int address){
+        return responses.get(address);
+    }
+    
+    // lines from the arduino that could not be parsed
+    public long malformedFrames(){
+        return previousMalformed + ((reader == null) ? 0 : reader.decoder.malformed() + reader.binaryDecoder.malformed());
+    }
+    
+    // bytes on the link per status value, and the full status rate the link allows at that cost
+    public String protocolReport(){
+        long values = 0;
+        for (int address = 1; address < ADDRESSES; address++) {
+            values += responses.get(address);
+        }
+        double perValue = (values == 0) ? 0 : (double) bytesReceived.get() / values;
+        double perStatus = perValue * (ADDRESSES - 1);
+        return String.format("Protocol %s: %d bytes for %d status values, %.1f bytes per value, "
+                + "%.0f bytes per full status, at most %.1f full status/s at %d baud%n",
+                binary ? "binary" : "text", bytesReceived.get(), values, perValue, perStatus,
+                (perStatus == 0) ? 0 : BAUD_RATE / 10.0 / perStatus, BAUD_RATE);
+    }
+    
+    public CommandWriter getWriter(){
+        return writer;
+    }
+    
+    void close(){
+        disconnect();
     }
     
     
-    public class PortReader implements SerialPortEventListener {
-        StringBuilder message = new StringBuilder();
-        PortReader(){
-            commandQueue = new ArrayList ();
+    private void responded(int address, long now){
+        if (awaitingFirstSample && address > 0) {
+            awaitingFirstSample = false;
+            firstSample.record(now - connectedAt);
+            StartupTimeline.mark(StartupTimeline.FIRST_SAMPLE);
+        }
+        respondedAt.set(address, now);
+        long requested = requestedAt.getAndSet(address, 0);
+        if (requested != 0) {
+            roundTrip[address].record(now - requested);
         }
+    }
+    
+    // request to response latency, address 0 for binary frames
+    public Histogram roundTrip(int address){
+        return roundTrip[address];
+    }
+    
+    // seconds since the last value for an address, NaN before the first
+    public double valueAge(int address){
+        long at = respondedAt.get(address);
+        return (at == 0) ? Double.NaN : (System.nanoTime() - at) / 1e9;
+    }
+    
+    // decoded frames of either protocol
+    public long frames(){
+        return previousFrames + ((reader == null) ? 0 : reader.decoder.frames() + reader.binaryDecoder.frames());
+    }
+    
+    // bytes dropped because the decode executor fell behind
+    public long decodeOverflow(){
+        return previousOverflow + ((reader == null) ? 0 : reader.inbound.dropped());
+    }
+    
+    public long reconnects(){
+        return Math.max(0, connects.get() - 1);
+    }
+    
+    public class PortReader implements SerialTransport.Receiver, TelemetryListener {
+        final TelemetryDecoder decoder = new TelemetryDecoder(this);
+        final BinaryDecoder binaryDecoder = new BinaryDecoder(this);
+        // bytes waiting for the decode executor
+        final ByteRing inbound = new ByteRing(1 << 16);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final ByteRing.Sink decodeSink = this::decode;
+        private final Runnable decodeTask = this::drain;
         @Override
-        public void serialEvent(SerialPortEvent event) {
-            
-            if(event.isRXCHAR() && event.getEventValue() > 0){
-                try {
-                    byte buffer[] = serialPort.readBytes();
-                    for (byte b: buffer) {
-                            if ( (b == '\r' || b == '\n') && message.length() > 0) {
-                                String toProcess = message.toString();
-                                processMessage(toProcess);
-                                message.setLength(0);
-                            }
-                            else if (b != '\r' && b != '\n'){
-                                message.append((char)b);   
-                            }
-                    }                
+        public void onBytes(byte[] buffer, int offset, int count) {
+            bytesReceived.addAndGet(count);
+            lastReceivedAt = System.nanoTime();
+            if (decodeExecutor == null) {
+                decode(buffer, offset, count);
+                return;
+            }
+            inbound.write(buffer, offset, count);
+            if (scheduled.compareAndSet(false, true)) {
+                decodeExecutor.execute(decodeTask);
+            }
+        }
+        // Runs on the executor, never two at once for the same link
+        private void drain(){
+            while (true) {
+                while (inbound.read(decodeSink) > 0) {
+                    // keep going while the reader adds more
                 }
-                catch (SerialPortException ex) {
-                    System.out.println(ex);
-                    System.out.println("serialEvent Error");
+                scheduled.set(false);
+                // bytes written after the last read and before the flag cleared need another pass
+                if (inbound.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                    return;
                 }
             }
         }
-        public void processMessage(String msg){
-            commandQueue.add(msg);
+        private void decode(byte[] buffer, int offset, int count){
+            int end = offset + count;
+            // the switch to binary can happen in the middle of a buffer
+            while (offset < end && !binary) {
+                decoder.decode(buffer[offset++]);
+            }
+            if (offset < end) {
+                binaryDecoder.decode(buffer, offset, end - offset);
+            }
+        }
+        @Override
+        public void onFrame(int command, int address, int value){
+            if (command == BinaryFrame.PROTOCOL_COMMAND && !binary) {
+                // "4,1,1" accepts version 1, the rest of the link is binary
+                if (address == BinaryFrame.VERSION && value == BinaryFrame.VERSION) {
+                    binary = true;
+                    negotiation.countDown();
+                }
+                return;
+            }
+            if (command == 0 && address == 0) {
+                // end of a binary status frame, every address is now current
+                long now = System.nanoTime();
+                for (int item = 0; item < ADDRESSES; item++) {
+                    responses.incrementAndGet(item);
+                    responded(item, now);
+                }
+                TelemetryListener target = listener;
+                if (target != null) {
+                    target.onFrame(command, address, value);
+                }
+                return;
+            }
+            if (command == 0 && address > 0 && address < ADDRESSES) {
+                if (!binary) {
+                    responses.incrementAndGet(address);
+                    responded(address, System.nanoTime());
+                }
+                TelemetryListener raw = monitor;
+                if (raw != null) {
+                    raw.onFrame(command, address, value);
+                }
+                // a status from before a relay or valve command would bounce the button back
+                if (writer.isStale(address, value)) {
+                    return;
+                }
+            }
+            else if (command != 0) {
+                writer.acknowledge(command, address);
+            }
+            TelemetryListener target = listener;
+            if (target != null) {
+                target.onFrame(command, address, value);
+                return;
+            }
+            commandQueue.offer(command, address, value);
         }
         
         
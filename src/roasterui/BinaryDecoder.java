@@ -0,0 +1,162 @@
+/*
+ *
+ *          Streaming decoder for binary status frames
+ *
+ *      Hunts for the sync byte, collects a frame and checks its CRC before
+ *      handing the values to the listener as the same (command, address,
+ *      value) calls the text decoder makes. After each full or delta frame
+ *      the listener gets a status for address 0, meaning every address has
+ *      just been reported even if a delta left it out because it did not
+ *      change. Frames that fail the CRC are counted and skipped.
+ *
+*/
+
+
+package roasterui;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BinaryDecoder {
+    private static final int SYNC = 0;
+    private static final int LENGTH = 1;
+    private static final int BODY = 2;
+    private static final int CHECK = 3;
+
+    private final TelemetryListener listener;
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+    private final AtomicLong values = new AtomicLong();
+    // parser state for the current frame
+    private final byte[] body = new byte[BinaryFrame.MAX_FRAME];
+    private int state = SYNC;
+    private int length;
+    private int count;
+    private int crc;
+
+    public BinaryDecoder(TelemetryListener listener){
+        this.listener = listener;
+    }
+
+    public void decode(byte[] buffer, int offset, int count){
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            decode(buffer[i]);
+        }
+    }
+
+    public void decode(byte b){
+        switch (state) {
+            case SYNC:
+                if (b == BinaryFrame.SYNC) {
+                    state = LENGTH;
+                }
+                break;
+            case LENGTH:
+                length = b & 0xFF;
+                if (length == 0 || length > body.length) {
+                    malformed.incrementAndGet();
+                    state = (b == BinaryFrame.SYNC) ? LENGTH : SYNC;
+                    break;
+                }
+                crc = BinaryFrame.crc(0, b);
+                count = 0;
+                state = BODY;
+                break;
+            case BODY:
+                body[count++] = b;
+                crc = BinaryFrame.crc(crc, b);
+                if (count == length) {
+                    state = CHECK;
+                }
+                break;
+            default:
+                state = SYNC;
+                if ((b & 0xFF) == crc && endFrame()) {
+                    frames.incrementAndGet();
+                }
+                else {
+                    malformed.incrementAndGet();
+                }
+        }
+    }
+
+    private boolean endFrame(){
+        switch (body[0]) {
+            case BinaryFrame.FULL:
+                if (length != 9) {
+                    return false;
+                }
+                for (int address = 1; address <= 3; address++) {
+                    status(address, getShort(2 * address - 1));
+                }
+                int relays = body[7];
+                for (int address = 4; address <= 9; address++) {
+                    status(address, (relays >> (address - 4)) & 1);
+                }
+                status(10, body[8] & 0xFF);
+                break;
+            case BinaryFrame.DELTA:
+                if (length < 3) {
+                    return false;
+                }
+                int mask = getShort(1) & 0xFFFF;
+                // check the whole frame before reporting any of it
+                int size = 3;
+                for (int address = 1; address <= 10; address++) {
+                    if ((mask & (1 << address)) != 0) {
+                        size += BinaryFrame.valueSize(address);
+                    }
+                }
+                if (size != length || (mask & ~0x7FE) != 0) {
+                    return false;
+                }
+                int offset = 3;
+                for (int address = 1; address <= 10; address++) {
+                    if ((mask & (1 << address)) == 0) {
+                        continue;
+                    }
+                    if (BinaryFrame.valueSize(address) == 2) {
+                        status(address, getShort(offset));
+                        offset += 2;
+                    }
+                    else {
+                        status(address, body[offset++] & 0xFF);
+                    }
+                }
+                break;
+            case BinaryFrame.ECHO:
+                if (length != 4) {
+                    return false;
+                }
+                listener.onFrame(body[1] & 0xFF, getShort(2), TelemetryListener.NO_VALUE);
+                return true;
+            default:
+                return false;
+        }
+        listener.onFrame(0, 0, TelemetryListener.NO_VALUE);
+        return true;
+    }
+
+    private void status(int address, int value){
+        values.incrementAndGet();
+        listener.onFrame(0, address, value);
+    }
+
+    private int getShort(int offset){
+        return (short) ((body[offset] << 8) | (body[offset + 1] & 0xFF));
+    }
+
+    public long frames(){
+        return frames.get();
+    }
+
+    public long malformed(){
+        return malformed.get();
+    }
+
+    // values carried by full and delta frames
+    public long values(){
+        return values.get();
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ *
+ *          Binary status framing, reference encoder
+ *
+ *      Frames are SYNC, LENGTH, TYPE, payload, CRC. LENGTH counts TYPE and the
+ *      payload, the CRC-8 (polynomial 0x07) covers LENGTH through the payload.
+ *      Numbers are big endian, temperatures are signed 16 bit, everything
+ *      else is a single byte.
+ *
+ *      FULL   all ten values: drum, chamber, exhaust, relay bits, valve
+ *             relay bits are flame, drum, cooling, exhaust, gas, ignitor
+ *             from bit 0, 12 bytes on the wire
+ *      DELTA  a 16 bit mask with bit n set for address n, then the value of
+ *             every address in the mask in address order
+ *      ECHO   command and 16 bit value of a relay or valve command
+ *
+ *      The link starts in text. The host sends "4,1" and a roaster that
+ *      speaks version 1 answers "4,1,1" and switches its output to frames;
+ *      anything else leaves it in text. Requests from the host stay text.
+ *      firmware/binary_status.h is the same encoder for the arduino.
+ *
+*/
+
+
+package roasterui;
+
+
+public final class BinaryFrame {
+    public static final int PROTOCOL_COMMAND = 4;
+    public static final int VERSION = 1;
+    public static final byte SYNC = (byte) 0xA5;
+    public static final int FULL = 1;
+    public static final int DELTA = 2;
+    public static final int ECHO = 3;
+    // longest frame, a delta with every address
+    public static final int MAX_FRAME = 20;
+    // addresses 1 - 3 are temperatures, 4 - 9 relays and flame, 10 the valve
+    private static final int TEMPERATURES = 3;
+    private static final int ADDRESSES = 11;
+
+    private static final byte[] CRC_TABLE = new byte[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = ((crc & 0x80) != 0) ? (crc << 1) ^ 0x07 : crc << 1;
+            }
+            CRC_TABLE[i] = (byte) crc;
+        }
+    }
+
+    private BinaryFrame(){
+    }
+
+    public static int crc(int crc, byte b){
+        return CRC_TABLE[(crc ^ b) & 0xFF] & 0xFF;
+    }
+
+    // All values indexed by address, returns the offset after the frame
+    public static int full(byte[] out, int offset, int[] values){
+        int start = offset;
+        offset = begin(out, offset, FULL);
+        for (int address = 1; address <= TEMPERATURES; address++) {
+            offset = putShort(out, offset, values[address]);
+        }
+        int relays = 0;
+        for (int address = 4; address <= 9; address++) {
+            if (values[address] != 0) {
+                relays |= 1 << (address - 4);
+            }
+        }
+        out[offset++] = (byte) relays;
+        out[offset++] = (byte) values[10];
+        return end(out, start, offset);
+    }
+
+    // Only the addresses in mask, bit n for address n
+    public static int delta(byte[] out, int offset, int[] values, int mask){
+        int start = offset;
+        offset = begin(out, offset, DELTA);
+        offset = putShort(out, offset, mask);
+        for (int address = 1; address < ADDRESSES; address++) {
+            if ((mask & (1 << address)) == 0) {
+                continue;
+            }
+            if (address <= TEMPERATURES) {
+                offset = putShort(out, offset, values[address]);
+            }
+            else {
+                out[offset++] = (byte) values[address];
+            }
+        }
+        return end(out, start, offset);
+    }
+
+    public static int echo(byte[] out, int offset, int command, int value){
+        int start = offset;
+        offset = begin(out, offset, ECHO);
+        out[offset++] = (byte) command;
+        offset = putShort(out, offset, value);
+        return end(out, start, offset);
+    }
+
+    private static int begin(byte[] out, int offset, int type){
+        out[offset++] = SYNC;
+        // length is filled in by end
+        offset++;
+        out[offset++] = (byte) type;
+        return offset;
+    }
+
+    private static int end(byte[] out, int start, int offset){
+        out[start + 1] = (byte) (offset - start - 2);
+        int crc = 0;
+        for (int i = start + 1; i < offset; i++) {
+            crc = crc(crc, out[i]);
+        }
+        out[offset++] = (byte) crc;
+        return offset;
+    }
+
+    private static int putShort(byte[] out, int offset, int value){
+        out[offset++] = (byte) (value >> 8);
+        out[offset++] = (byte) value;
+        return offset;
+    }
+
+    // bytes a temperature or other value takes in a delta
+    static int valueSize(int address){
+        return (address <= TEMPERATURES) ? 2 : 1;
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ *
+ *          Single producer, single consumer byte ring
+ *
+ *      Hands bytes from a port's reader thread to whichever pool thread is
+ *      decoding that link. The producer never waits, bytes that do not fit
+ *      are dropped and counted, the decoder resynchronises on the next line
+ *      ending or sync byte. The consumer decodes straight out of the ring.
+ *
+*/
+
+
+package roasterui;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ByteRing {
+    // consumer side of a read, gets the ring's own array
+    public interface Sink {
+        void accept(byte[] buffer, int offset, int count);
+    }
+
+    private final byte[] buffer;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    // capacity is rounded up to a power of two
+    public ByteRing(int capacity){
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        buffer = new byte[size];
+        mask = size - 1;
+    }
+
+    // Producer only, returns the bytes that fit
+    public int write(byte[] bytes, int offset, int count){
+        long t = tail.get();
+        int free = buffer.length - (int) (t - head.get());
+        int n = Math.min(count, free);
+        int index = (int) t & mask;
+        int first = Math.min(n, buffer.length - index);
+        System.arraycopy(bytes, offset, buffer, index, first);
+        System.arraycopy(bytes, offset + first, buffer, 0, n - first);
+        tail.lazySet(t + n);
+        if (n < count) {
+            dropped.addAndGet(count - n);
+        }
+        return n;
+    }
+
+    // Consumer only, hands every byte written so far to the sink, at most two calls
+    public int read(Sink sink){
+        long h = head.get();
+        int n = (int) (tail.get() - h);
+        if (n == 0) {
+            return 0;
+        }
+        int index = (int) h & mask;
+        int first = Math.min(n, buffer.length - index);
+        sink.accept(buffer, index, first);
+        if (n > first) {
+            sink.accept(buffer, 0, n - first);
+        }
+        head.lazySet(h + n);
+        return n;
+    }
+
+    public boolean isEmpty(){
+        return head.get() == tail.get();
+    }
+
+    public long dropped(){
+        return dropped.get();
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ *
+ *          Bounded single producer / single consumer queue for arduino responses
+ *
+ *      The serial event thread is the only producer and the FX thread the only
+ *      consumer. When the queue is full the oldest response is dropped, so a
+ *      stalled consumer only ever sees the most recent readings.
+ *
+ *      Frames are packed into a long so nothing is allocated per response:
+ *      bits 40-47 command, 32-39 address, 0-31 value.
+ *
+*/
+
+
+package roasterui;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class CommandQueue {
+    // returned by poll() when there is nothing to read
+    public static final long EMPTY = -1L;
+
+    private final AtomicLongArray slots;
+    private final int mask;
+    // next sequence to read, advanced by the consumer or by the producer when dropping
+    private final AtomicLong head = new AtomicLong();
+    // next sequence to write, only advanced by the producer
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public CommandQueue(int capacity){
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity must be at least 2");
+        }
+        // round up to a power of two so the slot index is a mask
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        slots = new AtomicLongArray(size);
+        mask = size - 1;
+    }
+
+    public static long pack(int command, int address, int value){
+        return ((long) (command & 0xFF) << 40) | ((long) (address & 0xFF) << 32) | (value & 0xFFFFFFFFL);
+    }
+
+    public static int command(long frame){
+        return (int) (frame >>> 40) & 0xFF;
+    }
+
+    public static int address(long frame){
+        return (int) (frame >>> 32) & 0xFF;
+    }
+
+    public static int value(long frame){
+        return (int) frame;
+    }
+
+    // Producer side, never blocks
+    public void offer(int command, int address, int value){
+        long t = tail.get();
+        while (t - head.get() >= slots.length()) {
+            long h = head.get();
+            if (t - h >= slots.length() && head.compareAndSet(h, h + 1)) {
+                dropped.incrementAndGet();
+            }
+        }
+        slots.lazySet((int) (t & mask), pack(command, address, value));
+        tail.lazySet(t + 1);
+    }
+
+    // Consumer side, returns EMPTY when there is nothing queued
+    public long poll(){
+        while (true) {
+            long h = head.get();
+            if (h >= tail.get()) {
+                return EMPTY;
+            }
+            long frame = slots.get((int) (h & mask));
+            // a failed swap means the producer dropped this slot while we read it
+            if (head.compareAndSet(h, h + 1)) {
+                return frame;
+            }
+        }
+    }
+
+    // Consumer side, discards everything queued so far
+    public void clear(){
+        long h = head.get();
+        long t = tail.get();
+        while (h < t && !head.compareAndSet(h, t)) {
+            h = head.get();
+        }
+    }
+
+    public boolean isEmpty(){
+        return head.get() >= tail.get();
+    }
+
+    public int depth(){
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public int capacity(){
+        return slots.length();
+    }
+
+    public long dropped(){
+        return dropped.get();
+    }
+
+}
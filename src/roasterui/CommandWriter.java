@@ -0,0 +1,446 @@
+/*
+ *
+ *          Asynchronous command writer for the serial link
+ *
+ *      Callers only record the command they want sent and return at once, a
+ *      single writer thread does the port writes. Each relay, the valve and
+ *      each status request has one slot, so commands queued for the same slot
+ *      before the writer gets to them collapse to the newest one, and
+ *      everything waiting is written to the port in one batch.
+ *
+ *      Relay and valve commands stay outstanding until the arduino echoes
+ *      them back and are sent again when the echo does not arrive in time.
+ *      While one is outstanding, status responses that still show the old
+ *      state can be recognised as stale.
+ *
+ *      Urgent commands, the safety shutdown, wake the writer without the
+ *      linger and go first in the batch. Until written they hold their slot,
+ *      an ordinary command for it is dropped rather than replacing them. The
+ *      time from the fault being detected to the batch holding them being
+ *      written is recorded.
+ *
+*/
+
+
+package roasterui;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CommandWriter {
+    // commands, see RoasterUI
+    private static final int STATUS = 0;
+    private static final int RELAY_ON = 1;
+    private static final int RELAY_OFF = 2;
+    private static final int VALVE = 3;
+    private static final int PROTOCOL = BinaryFrame.PROTOCOL_COMMAND;
+    private static final int VALVE_ADDRESS = 10;
+    // slots: status requests by address, relay commands by address, the valve, protocol
+    private static final int ADDRESSES = 11;
+    private static final int RELAY_SLOT = ADDRESSES;
+    private static final int VALVE_SLOT = 2 * ADDRESSES;
+    private static final int PROTOCOL_SLOT = VALVE_SLOT + 1;
+    private static final int SLOTS = PROTOCOL_SLOT + 1;
+    // slots whose commands wait for an echo
+    private static final long ECHOED = ((1L << (VALVE_SLOT + 1)) - 1) & ~((1L << RELAY_SLOT) - 1);
+    // longest line is "c,vvvvvvvv\n"
+    private static final int MAX_LINE = 16;
+    private static final long ACK_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final int MAX_ATTEMPTS = 3;
+    // collect commands arriving together into one write
+    private static final long LINGER_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final SerialTransport transport;
+    private Thread thread;
+    private volatile boolean running;
+    // commands waiting to be written, guarded by this
+    private final int[] pendingCommand = new int[SLOTS];
+    private final int[] pendingValue = new int[SLOTS];
+    private long pending;
+    // pending slots that go first and skip the linger, guarded by this
+    private long urgent;
+    // earliest detection time of the urgent commands pending, 0 when none
+    private long urgentSince;
+    // detection time of the urgent commands in the batch being written, writer thread only
+    private long batchUrgentSince;
+    // commands written and waiting for their echo, guarded by this
+    private final int[] sentCommand = new int[SLOTS];
+    private final int[] sentValue = new int[SLOTS];
+    private final long[] sentAt = new long[SLOTS];
+    private final long[] firstSentAt = new long[SLOTS];
+    private final int[] attempts = new int[SLOTS];
+    private long outstanding;
+    // addresses with a relay or valve command pending or outstanding, read without the lock
+    private volatile int guarded;
+    private final byte[] batch = new byte[SLOTS * MAX_LINE];
+    // statistics
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong merged = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong acknowledged = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+    private final Histogram echoLatency = new Histogram();
+    private final Histogram urgentLatency = new Histogram();
+
+    public CommandWriter(SerialTransport transport){
+        this.transport = transport;
+    }
+
+    public synchronized void start(){
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "command-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop(){
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        if (thread != null) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Forget everything queued or waiting for an echo, for a fresh connection
+    public synchronized void clear(){
+        pending = 0;
+        urgent = 0;
+        urgentSince = 0;
+        outstanding = 0;
+        updateGuarded();
+    }
+
+    // Queue "command,value", never blocks on the port. False when it replaced a queued command,
+    // or was dropped because an urgent command for the same slot has not been written yet.
+    public synchronized boolean offer(int command, int value){
+        int slot = slot(command, value);
+        if (slot < 0) {
+            return false;
+        }
+        long bit = 1L << slot;
+        if ((urgent & bit) != 0) {
+            // relay on and off share a slot, the operator must not overwrite a safety shutdown
+            refused.incrementAndGet();
+            return false;
+        }
+        return put(slot, command, value);
+    }
+
+    private boolean put(int slot, int command, int value){
+        queued.incrementAndGet();
+        long bit = 1L << slot;
+        boolean replaced = (pending & bit) != 0;
+        if (replaced) {
+            merged.incrementAndGet();
+        }
+        pendingCommand[slot] = command;
+        pendingValue[slot] = value;
+        pending |= bit;
+        if ((ECHOED & bit) != 0) {
+            guarded |= 1 << address(slot);
+        }
+        notifyAll();
+        return !replaced;
+    }
+
+    // Queue a command ahead of everything else, detectedAt is the System.nanoTime() of the fault
+    public synchronized void offerUrgent(int command, int value, long detectedAt){
+        int slot = slot(command, value);
+        if (slot < 0) {
+            return;
+        }
+        put(slot, command, value);
+        urgent |= 1L << slot;
+        if (urgentSince == 0 || detectedAt < urgentSince) {
+            urgentSince = detectedAt;
+        }
+    }
+
+    private static int slot(int command, int value){
+        if (value < 0 || value >= ADDRESSES && command != VALVE && command != PROTOCOL) {
+            return -1;
+        }
+        switch (command) {
+            case STATUS:
+                return value;
+            case RELAY_ON:
+            case RELAY_OFF:
+                return RELAY_SLOT + value;
+            case VALVE:
+                return VALVE_SLOT;
+            case PROTOCOL:
+                return PROTOCOL_SLOT;
+            default:
+                return -1;
+        }
+    }
+
+    // address whose status a command slot changes
+    private static int address(int slot){
+        return (slot == VALVE_SLOT) ? VALVE_ADDRESS : slot - RELAY_SLOT;
+    }
+
+    // Called on the reader thread for command echoes
+    public synchronized void acknowledge(int command, int value){
+        int slot = slot(command, value);
+        if (slot < 0) {
+            return;
+        }
+        long bit = 1L << slot;
+        if ((ECHOED & bit) == 0 || (outstanding & bit) == 0
+                || sentCommand[slot] != command || sentValue[slot] != value) {
+            return;
+        }
+        long latency = System.nanoTime() - firstSentAt[slot];
+        acknowledged.incrementAndGet();
+        echoLatency.record(latency);
+        outstanding &= ~bit;
+        updateGuarded();
+    }
+
+    // Called on the reader thread, true when a status still shows the state from before a command
+    public boolean isStale(int address, int value){
+        if (address < 0 || address >= ADDRESSES || (guarded & (1 << address)) == 0) {
+            return false;
+        }
+        synchronized (this) {
+            int slot = (address == VALVE_ADDRESS) ? VALVE_SLOT : RELAY_SLOT + address;
+            long bit = 1L << slot;
+            int command;
+            int commanded;
+            if ((pending & bit) != 0) {
+                command = pendingCommand[slot];
+                commanded = pendingValue[slot];
+            }
+            else if ((outstanding & bit) != 0) {
+                command = sentCommand[slot];
+                commanded = sentValue[slot];
+            }
+            else {
+                return false;
+            }
+            int expected = (command == VALVE) ? commanded : (command == RELAY_ON) ? 1 : 0;
+            if (value == expected) {
+                return false;
+            }
+            stale.incrementAndGet();
+            return true;
+        }
+    }
+
+    private void updateGuarded(){
+        int bits = 0;
+        long commands = (pending | outstanding) & ECHOED;
+        while (commands != 0) {
+            int slot = Long.numberOfTrailingZeros(commands);
+            commands &= commands - 1;
+            bits |= 1 << address(slot);
+        }
+        guarded = bits;
+    }
+
+    private void run(){
+        while (running) {
+            int length;
+            try {
+                length = nextBatch();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            if (length == 0) {
+                continue;
+            }
+            if (!transport.isOpen()) {
+                // outstanding commands are retried until they time out
+                continue;
+            }
+            byte[] bytes = new byte[length];
+            System.arraycopy(batch, 0, bytes, 0, length);
+            try {
+                transport.write(bytes);
+                bytesSent.addAndGet(length);
+                batches.incrementAndGet();
+                if (batchUrgentSince != 0) {
+                    urgentLatency.record(System.nanoTime() - batchUrgentSince);
+                }
+            } catch (IOException ex) {
+                System.out.println("Error sending command: " + ex);
+            }
+        }
+    }
+
+    // Wait for work and fill the batch buffer, 0 when there is nothing to send yet
+    private synchronized int nextBatch() throws InterruptedException {
+        long now = System.nanoTime();
+        long wait = nextTimeout(now);
+        if (pending == 0 && wait != 0) {
+            if (wait < 0) {
+                wait();
+            }
+            else {
+                TimeUnit.NANOSECONDS.timedWait(this, wait);
+            }
+            if (pending == 0 && nextTimeout(System.nanoTime()) != 0) {
+                return 0;
+            }
+            long deadline = System.nanoTime() + LINGER_NANOS;
+            long left;
+            while (pending != 0 && urgent == 0 && (left = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            now = System.nanoTime();
+        }
+        int length = 0;
+        // urgent commands first, they are taken out of pending below
+        long first = urgent;
+        while (first != 0) {
+            int slot = Long.numberOfTrailingZeros(first);
+            first &= first - 1;
+            length = line(length, pendingCommand[slot], pendingValue[slot]);
+        }
+        batchUrgentSince = urgentSince;
+        // resend commands whose echo is overdue
+        long late = outstanding;
+        while (late != 0) {
+            int slot = Long.numberOfTrailingZeros(late);
+            late &= late - 1;
+            if ((pending & (1L << slot)) != 0 || now - sentAt[slot] < ACK_TIMEOUT_NANOS) {
+                continue;
+            }
+            if (attempts[slot] >= MAX_ATTEMPTS) {
+                failed.incrementAndGet();
+                outstanding &= ~(1L << slot);
+                System.out.println("No echo for command " + sentCommand[slot] + "," + sentValue[slot]);
+                continue;
+            }
+            attempts[slot]++;
+            sentAt[slot] = now;
+            retries.incrementAndGet();
+            length = line(length, sentCommand[slot], sentValue[slot]);
+        }
+        // new commands, a newer command for a slot replaces the outstanding one
+        long fresh = pending;
+        while (fresh != 0) {
+            int slot = Long.numberOfTrailingZeros(fresh);
+            fresh &= fresh - 1;
+            if ((urgent & (1L << slot)) == 0) {
+                length = line(length, pendingCommand[slot], pendingValue[slot]);
+            }
+            if ((ECHOED & (1L << slot)) != 0) {
+                sentCommand[slot] = pendingCommand[slot];
+                sentValue[slot] = pendingValue[slot];
+                sentAt[slot] = now;
+                firstSentAt[slot] = now;
+                attempts[slot] = 1;
+                outstanding |= 1L << slot;
+            }
+        }
+        pending = 0;
+        urgent = 0;
+        urgentSince = 0;
+        updateGuarded();
+        return length;
+    }
+
+    // nanoseconds until an outstanding command times out, 0 when one has, -1 when none is waiting
+    private long nextTimeout(long now){
+        long wait = -1;
+        long waiting = outstanding;
+        while (waiting != 0) {
+            int slot = Long.numberOfTrailingZeros(waiting);
+            waiting &= waiting - 1;
+            long left = Math.max(0, sentAt[slot] + ACK_TIMEOUT_NANOS - now);
+            wait = (wait < 0) ? left : Math.min(wait, left);
+        }
+        return wait;
+    }
+
+    private int line(int length, int command, int value){
+        length = putInt(length, command);
+        batch[length++] = ',';
+        length = putInt(length, value);
+        batch[length++] = '\n';
+        return length;
+    }
+
+    private int putInt(int length, int value){
+        int divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        while (divisor > 0) {
+            batch[length++] = (byte) ('0' + value / divisor % 10);
+            divisor /= 10;
+        }
+        return length;
+    }
+
+    public long bytesSent(){
+        return bytesSent.get();
+    }
+
+    public long batches(){
+        return batches.get();
+    }
+
+    public long merged(){
+        return merged.get();
+    }
+
+    // operator commands dropped behind a pending shutdown
+    public long refused(){
+        return refused.get();
+    }
+
+    public long stale(){
+        return stale.get();
+    }
+
+    public long retries(){
+        return retries.get();
+    }
+
+    public long failed(){
+        return failed.get();
+    }
+
+    // first write of a relay or valve command to its echo
+    public Histogram echoLatency(){
+        return echoLatency;
+    }
+
+    // fault detected to the urgent commands written to the port
+    public Histogram urgentLatency(){
+        return urgentLatency;
+    }
+
+    // commands waiting for the writer thread
+    public synchronized int depth(){
+        return Long.bitCount(pending);
+    }
+
+    public String commandReport(){
+        long acks = acknowledged.get();
+        return String.format("Commands: queued %d  merged %d  refused %d  batches %d  acked %d  retried %d  failed %d  stale status %d%n"
+                + "  echo latency (ms): mean %.2f  max %.2f%n"
+                + "  urgent detected to written (ms): p50 %.2f  max %.2f  n %d%n",
+                queued.get(), merged.get(), refused.get(), batches.get(), acks, retries.get(), failed.get(), stale.get(),
+                echoLatency.mean() / 1e6, echoLatency.max() / 1e6,
+                urgentLatency.percentile(0.5) / 1e6, urgentLatency.max() / 1e6, urgentLatency.count());
+    }
+
+}
@@ -0,0 +1,214 @@
+/*
+ *
+ *          Keeps one roaster connected
+ *
+ *      Opens the link and watches it. The link counts as lost when requests
+ *      have gone unanswered and nothing at all was received for longer than
+ *      the link timeout, or when the port closed under us. A lost link is
+ *      closed and opened again, first straight away and then with a jittered
+ *      exponential backoff capped at 750 ms, so roasters that dropped together
+ *      do not retry in lockstep and a Bluetooth link that is back delivers its
+ *      first sample within a second.
+ *
+ *      After every successful connect the owner's resync runs, see
+ *      RoasterCore.resync. The port's open to first status value, the outage
+ *      and the number of drops are kept for connectionReport().
+ *
+ *      The port name "auto" picks a port from the ones present each time it
+ *      opens, Bluetooth first, so a link that comes back as rfcomm1 is found.
+ *
+*/
+
+
+package roasterui;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import jssc.SerialPortList;
+
+public class ConnectionManager {
+    public enum State { CONNECTING, CONNECTED, LOST, STOPPED }
+
+    public static final String AUTO = "auto";
+    // ports in order of preference for "auto", Bluetooth, then USB boards, then on board UARTs
+    private static final String[] PORT_PREFERENCE = {"rfcomm", "ttyACM", "ttyUSB", "ttyAMA", "ttyS"};
+    private static final Pattern PORT_PATTERN = Pattern.compile("(rfcomm|ttyACM|ttyUSB|ttyAMA|ttyS)[0-9]{1,3}");
+    private static final long CHECK_MS = 50;
+    private static final long BACKOFF_BASE_MS = 100;
+    // opening a port is cheap, a link that comes back is found within this
+    private static final long BACKOFF_MAX_MS = 750;
+    private static final long DEFAULT_TIMEOUT_MS = 2000;
+
+    private final ArduinoSerial arduino;
+    private final Runnable onConnected;
+    private final String name;
+    private final Random random = new Random();
+    private volatile long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIMEOUT_MS);
+    private volatile State state = State.STOPPED;
+    private Thread thread;
+    private volatile boolean running;
+    // statistics
+    private final AtomicLong drops = new AtomicLong();
+    private final AtomicLong failedAttempts = new AtomicLong();
+    // link lost to connected again
+    private final Histogram outage = new Histogram();
+
+    // onConnected runs on the manager thread after every connect
+    public ConnectionManager(ArduinoSerial arduino, String name, Runnable onConnected){
+        this.arduino = arduino;
+        this.name = (name == null) ? "roaster" : name;
+        this.onConnected = onConnected;
+    }
+
+    // --link-timeout=<ms> how long a silent link with unanswered requests is trusted
+    public void configure(Iterable<String> args){
+        for (String arg : args) {
+            if (arg.startsWith("--link-timeout=")) {
+                setTimeout(Long.parseLong(arg.substring(15)));
+            }
+        }
+    }
+
+    public void setTimeout(long millis){
+        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    public synchronized void start(){
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "connection-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop(){
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(2000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        arduino.disconnect();
+        state = State.STOPPED;
+    }
+
+    private void run(){
+        int attempt = 0;
+        long lostAt = 0;
+        try {
+            while (running) {
+                if (!arduino.isConnected()) {
+                    if (state == State.CONNECTED) {
+                        // the port closed under us
+                        lost();
+                        lostAt = System.nanoTime();
+                    }
+                    state = (lostAt == 0) ? State.CONNECTING : State.LOST;
+                    if (!arduino.connect()) {
+                        failedAttempts.incrementAndGet();
+                        Thread.sleep(backoff(attempt++));
+                        continue;
+                    }
+                    if (lostAt != 0) {
+                        outage.record(System.nanoTime() - lostAt);
+                        lostAt = 0;
+                    }
+                    attempt = 0;
+                    state = State.CONNECTED;
+                    onConnected.run();
+                }
+                else if (isLost(System.nanoTime())) {
+                    lost();
+                    lostAt = System.nanoTime();
+                    state = State.LOST;
+                    // the first attempt is immediate, a link that is back costs no backoff
+                    continue;
+                }
+                Thread.sleep(CHECK_MS);
+            }
+        } catch (InterruptedException ex) {
+            // stopping
+        }
+    }
+
+    private void lost(){
+        drops.incrementAndGet();
+        System.out.println(name + ": link lost, reconnecting");
+        arduino.disconnect();
+    }
+
+    // unanswered requests and silence for longer than the timeout, or the port went away
+    private boolean isLost(long now){
+        long oldest = arduino.oldestRequest();
+        return oldest != 0
+                && now - oldest > timeoutNanos
+                && now - arduino.lastReceived() > timeoutNanos;
+    }
+
+    // Equal jitter, half the exponential delay fixed and half random
+    private long backoff(int attempt){
+        long ceiling = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << Math.min(attempt, 3));
+        return ceiling / 2 + (long) (random.nextDouble() * ceiling / 2);
+    }
+
+    public State getState(){
+        return state;
+    }
+
+    public long drops(){
+        return drops.get();
+    }
+
+    public Histogram outage(){
+        return outage;
+    }
+
+    public String connectionReport(){
+        Histogram firstSample = arduino.firstSample();
+        return String.format("Connection %s on %s: %d drops  %d reconnects  %d failed attempts%n"
+                + "  first sample (ms): p50 %.0f  max %.0f  n %d%n"
+                + "  outage (s): p50 %.1f  max %.1f  n %d%n",
+                state, arduino.getPortName(), drops.get(), arduino.reconnects(), failedAttempts.get(),
+                firstSample.percentile(0.5) / 1e6, firstSample.max() / 1e6, firstSample.count(),
+                outage.percentile(0.5) / 1e9, outage.max() / 1e9, outage.count());
+    }
+
+    // Serial ports present now, most likely roaster first
+    public static String[] ports(){
+        String[] ports = SerialPortList.getPortNames("/dev/", PORT_PATTERN);
+        Arrays.sort(ports, (a, b) -> {
+            int order = Integer.compare(preference(a), preference(b));
+            return (order != 0) ? order : a.compareTo(b);
+        });
+        return ports;
+    }
+
+    private static int preference(String port){
+        for (int i = 0; i < PORT_PREFERENCE.length; i++) {
+            if (port.contains(PORT_PREFERENCE[i])) {
+                return i;
+            }
+        }
+        return PORT_PREFERENCE.length;
+    }
+
+    // The best port not already in use, null when there is none
+    public static String selectPort(Set<String> inUse){
+        for (String port : ports()) {
+            if (!inUse.contains(port)) {
+                return port;
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ *
+ *          Incremental Largest-Triangle-Three-Buckets downsampling
+ *
+ *      Samples of one channel of a TimeSeries are grouped into buckets of a
+ *      fixed power of two size. A bucket is settled once the bucket after it
+ *      is complete: the point kept is the one spanning the largest triangle
+ *      with the previously kept point and the average of the next bucket.
+ *      Settled buckets never change, so each new sample costs O(1). When the
+ *      number of buckets outgrows the target the bucket size doubles and the
+ *      selection is rebuilt, which keeps the amortised cost constant. Once
+ *      the ring wraps, buckets whose samples were overwritten are dropped from
+ *      the front and the settled ones after them are kept.
+ *
+*/
+
+
+package roasterui;
+
+
+public class Downsampler {
+    private final TimeSeries series;
+    private final int channel;
+    private int target;
+    // absolute index of the first sample of bucket 0
+    private long start;
+    private int bucketSize = 1;
+    // index of the sample kept for each settled bucket
+    private long[] selected;
+    private int settled;
+    // lowest output point that changed since the last call to changedFrom()
+    private int changedFrom;
+    private long seenEnd;
+
+    public Downsampler(TimeSeries series, int channel, int target){
+        this.series = series;
+        this.channel = channel;
+        setTarget(target);
+    }
+
+    // maximum number of points to produce, usually the plot width in pixels
+    public void setTarget(int target){
+        this.target = Math.max(3, target);
+        selected = new long[this.target + 1];
+        bucketSize = 1;
+        reset();
+    }
+
+    public int getTarget(){
+        return target;
+    }
+
+    private void reset(){
+        settled = 0;
+        changedFrom = 0;
+        seenEnd = -1;
+    }
+
+    public void update(){
+        long end = series.end();
+        if (end == seenEnd) {
+            return;
+        }
+        if (end < seenEnd || end < start) {
+            // the series was cleared
+            start = series.first();
+            bucketSize = 1;
+            reset();
+        }
+        else if (series.first() > start) {
+            drop((int) ((series.first() - start + bucketSize - 1) / bucketSize));
+        }
+        while ((end - start) / bucketSize > target) {
+            bucketSize *= 2;
+            reset();
+        }
+        long complete = (end - start) / bucketSize;
+        if (settled == 0 && end > start) {
+            selected[0] = start;
+            settled = 1;
+        }
+        while (settled <= complete - 2) {
+            selected[settled] = pick(settled);
+            settled++;
+        }
+        // the trailing point always moves
+        changedFrom = Math.min(changedFrom, settled);
+        seenEnd = end;
+    }
+
+    // the ring overwrote the first buckets, keep what was settled after them
+    private void drop(int buckets){
+        start += (long) buckets * bucketSize;
+        if (start >= series.end()) {
+            start = series.first();
+            settled = 0;
+        }
+        else if (buckets >= settled) {
+            settled = 0;
+        }
+        else {
+            System.arraycopy(selected, buckets, selected, 0, settled - buckets);
+            settled -= buckets;
+        }
+        // every point moved down
+        changedFrom = 0;
+    }
+
+    private long pick(int bucket){
+        long previous = selected[bucket - 1];
+        double ax = series.time(previous);
+        double ay = series.value(channel, previous);
+        // average of the following bucket
+        long nextStart = start + (long) (bucket + 1) * bucketSize;
+        double cx = 0;
+        double cy = 0;
+        for (long i = nextStart; i < nextStart + bucketSize; i++) {
+            cx += series.time(i);
+            cy += series.value(channel, i);
+        }
+        cx /= bucketSize;
+        cy /= bucketSize;
+        long from = start + (long) bucket * bucketSize;
+        long best = from;
+        double bestArea = -1;
+        for (long i = from; i < from + bucketSize; i++) {
+            double bx = series.time(i);
+            double by = series.value(channel, i);
+            double area = Math.abs((ax - cx) * (by - ay) - (ax - bx) * (cy - ay));
+            if (area > bestArea) {
+                bestArea = area;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    // number of output points
+    public int size(){
+        if (settled == 0) {
+            return 0;
+        }
+        return (series.end() - 1 > selected[settled - 1]) ? settled + 1 : settled;
+    }
+
+    private long index(int point){
+        return (point < settled) ? selected[point] : series.end() - 1;
+    }
+
+    public double x(int point){
+        return series.time(index(point));
+    }
+
+    public double y(int point){
+        return series.value(channel, index(point));
+    }
+
+    // first output point that may have changed, resets the marker
+    public int changedFrom(){
+        int from = changedFrom;
+        changedFrom = Integer.MAX_VALUE;
+        return from;
+    }
+
+}
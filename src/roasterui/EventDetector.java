@@ -0,0 +1,118 @@
+/*
+ *
+ *          Detects roast events from the status values
+ *
+ *      Fed every status value on the decoding thread:
+ *
+ *          charge          the gas comes on for the first time
+ *          turning point   the lowest drum temperature after the charge,
+ *                          reported once it has risen TP_RISE above it
+ *          first crack     the inflection of the drum rate of rise. Past the
+ *                          first crack temperature (--detect-fc=<temp>,
+ *                          default 380, 0 turns it off) the rate of rise is
+ *                          sampled every few seconds, and once it turns up
+ *                          FLICK deg/min from its lowest the crack is put
+ *                          at that lowest point
+ *          drop            the cooling fan comes on after the charge
+ *
+ *      Each event is reported once. Second crack is left to the operator.
+ *
+*/
+
+
+package roasterui;
+
+public class EventDetector {
+    // Receives a detected event, on the decoding thread
+    public interface Handler {
+        void detected(RoastEvents.Type type, long time);
+    }
+
+    private static final int TP_RISE = 5;
+    private static final double FLICK = 3;
+    private static final long ROR_STEP_MS = 5000;
+    private static final double DEFAULT_FC_TEMP = 380;
+
+    private final Handler handler;
+    private final RateOfRise drumRor = new RateOfRise(30, 1024);
+    private double firstCrackTemp = DEFAULT_FC_TEMP;
+    private long charge = -1;
+    private boolean turned;
+    private boolean cracked;
+    private boolean dropped;
+    private int lowest = Integer.MAX_VALUE;
+    private long lowestAt;
+    private long nextRor;
+    private double lowestRor = Double.NaN;
+    private long lowestRorAt;
+
+    public EventDetector(Handler handler){
+        this.handler = handler;
+    }
+
+    // --detect-fc=<temp> drum temperature first crack is looked for from, 0 to mark it by hand only
+    public void configure(Iterable<String> args){
+        for (String arg : args) {
+            if (arg.startsWith("--detect-fc=")) {
+                firstCrackTemp = Double.parseDouble(arg.substring(12));
+            }
+        }
+    }
+
+    // status value after filtering, time in wall clock ms
+    public void onValue(int address, int value, long now){
+        switch (address) {
+            case RoasterCore.GAS_RELAY:
+                if (value == 1 && charge < 0) {
+                    charge = now;
+                    handler.detected(RoastEvents.Type.CHARGE, now);
+                }
+                break;
+            case RoasterCore.COOLING_RELAY:
+                if (value == 1 && charge >= 0 && !dropped) {
+                    dropped = true;
+                    handler.detected(RoastEvents.Type.DROP, now);
+                }
+                break;
+            case RoasterCore.DRUM_TEMP:
+                if (charge >= 0 && !dropped) {
+                    drumTemp(value, now);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void drumTemp(int value, long now){
+        drumRor.add(now / 1000.0, value);
+        if (!turned) {
+            if (value < lowest) {
+                lowest = value;
+                lowestAt = now;
+            }
+            else if (value >= lowest + TP_RISE) {
+                turned = true;
+                handler.detected(RoastEvents.Type.TURNING_POINT, lowestAt);
+            }
+            return;
+        }
+        if (cracked || firstCrackTemp <= 0 || value < firstCrackTemp || now < nextRor) {
+            return;
+        }
+        nextRor = now + ROR_STEP_MS;
+        double ror = drumRor.slope();
+        if (Double.isNaN(ror)) {
+            return;
+        }
+        if (Double.isNaN(lowestRor) || ror < lowestRor) {
+            lowestRor = ror;
+            lowestRorAt = now;
+        }
+        else if (ror >= lowestRor + FLICK) {
+            cracked = true;
+            handler.detected(RoastEvents.Type.FIRST_CRACK, lowestRorAt);
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ *
+ *          Lock free latency histogram
+ *
+ *      Log-linear buckets, eight per power of two, from a microsecond to
+ *      several minutes, so any percentile is within about 10% of the true
+ *      value. Recording is an index calculation and a couple of atomic adds,
+ *      safe from any number of threads without locking.
+ *
+*/
+
+
+package roasterui;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Histogram {
+    // values below 2^MIN_SHIFT nanoseconds share the first buckets
+    private static final int MIN_SHIFT = 10;
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // up to 2^39 ns, about nine minutes
+    private static final int POWERS = 28;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(POWERS * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos){
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(index(nanos));
+        count.increment();
+        sum.add(nanos);
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+            // retry, another thread raised the max
+        }
+    }
+
+    private static int index(long nanos){
+        long scaled = nanos >>> MIN_SHIFT;
+        if (scaled < SUB_BUCKETS) {
+            return (int) scaled;
+        }
+        int power = 63 - Long.numberOfLeadingZeros(scaled) - SUB_BITS + 1;
+        int sub = (int) (scaled >>> (power - 1)) & (SUB_BUCKETS - 1);
+        return Math.min(POWERS * SUB_BUCKETS - 1, power * SUB_BUCKETS + sub);
+    }
+
+    // upper edge of a bucket in nanoseconds
+    private static long upper(int index){
+        int power = index / SUB_BUCKETS;
+        int sub = index % SUB_BUCKETS;
+        if (power == 0) {
+            return (long) (sub + 1) << MIN_SHIFT;
+        }
+        return (long) (SUB_BUCKETS + sub + 1) << (power - 1 + MIN_SHIFT);
+    }
+
+    public long count(){
+        return count.sum();
+    }
+
+    // nanoseconds
+    public long sum(){
+        return sum.sum();
+    }
+
+    public long max(){
+        return max.get();
+    }
+
+    public double mean(){
+        long n = count.sum();
+        return (n == 0) ? 0 : (double) sum.sum() / n;
+    }
+
+    // nanoseconds at or below which the fraction p of the values fall, 0 when empty
+    public long percentile(double p){
+        long total = 0;
+        long[] counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * p));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max.get(), upper(i));
+            }
+        }
+        return max.get();
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ *
+ *          Roast history browser
+ *
+ *      Lists past roasts from the history index, newest first, filtered by
+ *      bean or date as you type. Only the index is read to fill the list; a
+ *      roast's samples are read when it is shown as the reference curve.
+ *      Logs missing from the index are added in the background when the
+ *      browser opens.
+ *
+*/
+
+
+package roasterui;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.event.ActionEvent;
+import javafx.event.EventHandler;
+import javafx.geometry.Insets;
+import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListView;
+import javafx.scene.control.TextField;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
+import javafx.stage.Stage;
+
+public class HistoryView {
+    private final RoastHistory history;
+    private final RoastChart chart;
+    private final Stage stage = new Stage();
+    private final TextField filter = new TextField();
+    private final ListView<RoastHistory.Entry> list = new ListView<>();
+    private final Label status = new Label();
+    private List<RoastHistory.Entry> entries = Collections.emptyList();
+
+    public HistoryView(RoastHistory history, RoastChart chart){
+        this.history = history;
+        this.chart = chart;
+        filter.setPromptText("Filter by bean or date");
+        filter.textProperty().addListener((observable, oldText, text) -> applyFilter());
+        list.getStyleClass().add("history");
+        Button referenceBtn = new Button("Show as reference");
+        Button clearBtn = new Button("Clear reference");
+        Button closeBtn = new Button("Close");
+        referenceBtn.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                RoastHistory.Entry entry = list.getSelectionModel().getSelectedItem();
+                if (entry != null) {
+                    showReference(entry);
+                }
+            }
+        });
+        clearBtn.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                chart.clearReference();
+                status.setText("");
+            }
+        });
+        closeBtn.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                stage.hide();
+            }
+        });
+        status.getStyleClass().add("ror");
+        HBox buttons = new HBox(8, referenceBtn, clearBtn, closeBtn);
+        VBox box = new VBox(8, filter, list, buttons, status);
+        box.setPadding(new Insets(10));
+        box.getStyleClass().add("historyBox");
+        Scene scene = new Scene(box, 640, 480);
+        scene.getStylesheets().add("resources/RoasterUIStyle.css");
+        stage.setTitle("Roast History");
+        stage.setScene(scene);
+    }
+
+    // Show the browser, the index is read off the FX thread
+    public void show(Set<Path> openLogs){
+        stage.show();
+        stage.toFront();
+        status.setText("Reading index");
+        Thread reader = new Thread(() -> {
+            try {
+                int added = history.reindex(openLogs);
+                List<RoastHistory.Entry> read = history.entries();
+                Collections.reverse(read);
+                Platform.runLater(() -> {
+                    entries = read;
+                    applyFilter();
+                    status.setText(read.size() + " roasts" + ((added > 0) ? ", " + added + " newly indexed" : ""));
+                });
+            } catch (IOException ex) {
+                Platform.runLater(() -> status.setText("Could not read roast history: " + ex.getMessage()));
+            }
+        }, "history-index");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void applyFilter(){
+        String text = filter.getText().trim().toLowerCase(Locale.ROOT);
+        ObservableList<RoastHistory.Entry> shown = FXCollections.observableArrayList();
+        for (RoastHistory.Entry entry : entries) {
+            if (text.isEmpty() || entry.toString().toLowerCase(Locale.ROOT).contains(text)) {
+                shown.add(entry);
+            }
+        }
+        list.setItems(shown);
+    }
+
+    // Read the samples of one roast, only now, and copy its drum curve into the chart
+    private void showReference(RoastHistory.Entry entry){
+        try (RoastLog log = history.load(entry)) {
+            chart.setReference(log);
+            status.setText("Reference: " + entry);
+        } catch (IOException ex) {
+            status.setText("Could not open " + entry.file + ": " + ex.getMessage());
+        }
+    }
+
+}
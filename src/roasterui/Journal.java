@@ -0,0 +1,390 @@
+/*
+ *
+ *          Write ahead journal of commands and status values
+ *
+ *      Every command sent to the roaster and every decoded status value is
+ *      appended as a 20 byte record:
+ *
+ *          time        long    wall clock ms
+ *          type        byte    STATUS, COMMAND or CLOSED
+ *          command     byte
+ *          address     byte    address, or 0 for the valve
+ *          unused      byte
+ *          value       int     status value, or the command's value
+ *          crc         int     CRC32 of the 16 bytes before it
+ *
+ *      Appending copies the record into the open batch under a short lock
+ *      and returns. A journal-writer thread swaps the batch out every commit
+ *      interval, writes it and forces it to the device, so one fsync covers
+ *      everything appended since the last one and no caller ever waits on
+ *      the disk. A crash loses at most the last interval.
+ *
+ *      A clean stop ends the journal with a CLOSED record. A journal that
+ *      does not end with one is replayed on the next start, up to the first
+ *      record whose CRC does not match, and appended to from there.
+ *
+*/
+
+
+package roasterui;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+public class Journal implements Closeable {
+    public static final int STATUS = 0;
+    public static final int COMMAND = 1;
+    public static final int CLOSED = 2;
+    public static final int RECORD_SIZE = 20;
+
+    private static final long DEFAULT_COMMIT_MS = 200;
+    // records per batch, far more than one interval of a roast produces
+    private static final int BATCH_RECORDS = 1 << 14;
+    private static final int READ_RECORDS = 1 << 12;
+
+    // Receives the records of a journal in order
+    public interface Visitor {
+        void record(long time, int type, int command, int address, int value);
+    }
+
+    // State and drum curve rebuilt from a journal
+    public static class Replayed implements Visitor {
+        private final int[] values = new int[RoasterCore.ADDRESSES];
+        private final int[] commanded = new int[RoasterCore.ADDRESSES];
+        private long[] times = new long[1024];
+        private int[][] temps = new int[3][1024];
+        private int points;
+        private long chargeTime;
+        private long records;
+
+        public Replayed(){
+            Arrays.fill(values, -1);
+            Arrays.fill(commanded, -1);
+        }
+
+        @Override
+        public void record(long time, int type, int command, int address, int value){
+            records++;
+            if (type == COMMAND) {
+                if (command == 1 || command == 2) {
+                    commanded[address] = (command == 1) ? 1 : 0;
+                }
+                else if (command == 3) {
+                    commanded[RoasterCore.PRO_VALVE] = value;
+                }
+                return;
+            }
+            if (type != STATUS || address <= 0 || address >= RoasterCore.ADDRESSES) {
+                return;
+            }
+            // a zero temperature means the probe could not be read
+            if (address <= RoasterCore.EXHAUST_TEMP && value == 0) {
+                return;
+            }
+            if (address == RoasterCore.GAS_RELAY && value == 1 && chargeTime == 0) {
+                chargeTime = time;
+            }
+            values[address] = value;
+            if (address == RoasterCore.DRUM_TEMP) {
+                point(time);
+            }
+        }
+
+        private void point(long time){
+            if (points == times.length) {
+                times = Arrays.copyOf(times, points * 2);
+                for (int probe = 0; probe < 3; probe++) {
+                    temps[probe] = Arrays.copyOf(temps[probe], points * 2);
+                }
+            }
+            times[points] = time;
+            for (int probe = 0; probe < 3; probe++) {
+                temps[probe][points] = Math.max(0, values[probe + 1]);
+            }
+            points++;
+        }
+
+        public long records(){
+            return records;
+        }
+
+        // last reported value of an address, -1 when never reported
+        public int value(int address){
+            return values[address];
+        }
+
+        // last relay or valve state set, -1 when never set
+        public int commanded(int address){
+            return commanded[address];
+        }
+
+        // wall clock time the gas first came on, 0 when it never did
+        public long chargeTime(){
+            return chargeTime;
+        }
+
+        // one point per drum temperature, with the other probes as they were then
+        public int points(){
+            return points;
+        }
+
+        public long time(int point){
+            return times[point];
+        }
+
+        // probe address 1 - 3
+        public int temp(int address, int point){
+            return temps[address - 1][point];
+        }
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final long commitNanos;
+    // appended to under the lock, written by the writer thread
+    private ByteBuffer open = ByteBuffer.allocateDirect(BATCH_RECORDS * RECORD_SIZE);
+    private ByteBuffer writing = ByteBuffer.allocateDirect(BATCH_RECORDS * RECORD_SIZE);
+    private final CRC32 crc = new CRC32();
+    private Thread thread;
+    private volatile boolean running;
+    // statistics
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final Histogram fsync = new Histogram();
+    private final Histogram batchRecords = new Histogram();
+
+    private Journal(Path path, FileChannel channel, long commitNanos){
+        this.path = path;
+        this.channel = channel;
+        this.commitNanos = commitNanos;
+    }
+
+    // --journal-commit=<ms> how often the journal is forced to the device
+    public static long commitInterval(Iterable<String> args){
+        long millis = DEFAULT_COMMIT_MS;
+        for (String arg : args) {
+            if (arg.startsWith("--journal-commit=")) {
+                millis = Long.parseLong(arg.substring(17));
+            }
+        }
+        return millis;
+    }
+
+    // Opens a journal for appending after the last good record. Replay an unclosed one first.
+    public static Journal open(Path path, long commitMillis) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long end = validLength(channel);
+        // a closed journal belongs to a finished roast, start over
+        if (end >= RECORD_SIZE && type(channel, end - RECORD_SIZE) == CLOSED) {
+            end = 0;
+        }
+        channel.truncate(end);
+        channel.position(end);
+        Journal journal = new Journal(path, channel, TimeUnit.MILLISECONDS.toNanos(Math.max(1, commitMillis)));
+        journal.start();
+        return journal;
+    }
+
+    // True when the journal holds records from a run that did not stop cleanly
+    public static boolean needsReplay(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long end = validLength(channel);
+            return end >= RECORD_SIZE && type(channel, end - RECORD_SIZE) != CLOSED;
+        }
+    }
+
+    // Reads every good record in order, returns how many there were
+    public static long replay(Path path, Visitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return scan(channel, visitor) / RECORD_SIZE;
+        }
+    }
+
+    private static long validLength(FileChannel channel) throws IOException {
+        return scan(channel, null);
+    }
+
+    private static int type(FileChannel channel, long position) throws IOException {
+        ByteBuffer type = ByteBuffer.allocate(1);
+        channel.read(type, position + 8);
+        return type.get(0);
+    }
+
+    // Length of the good records, handing each to the visitor when there is one
+    private static long scan(FileChannel channel, Visitor visitor) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(READ_RECORDS * RECORD_SIZE);
+        CRC32 crc = new CRC32();
+        long position = 0;
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read < RECORD_SIZE) {
+                return position;
+            }
+            for (int offset = 0; offset + RECORD_SIZE <= read; offset += RECORD_SIZE) {
+                crc.reset();
+                buffer.limit(offset + 16).position(offset);
+                crc.update(buffer);
+                buffer.limit(read);
+                if ((int) crc.getValue() != buffer.getInt(offset + 16)) {
+                    // torn or never written, the journal ends here
+                    return position;
+                }
+                if (visitor != null) {
+                    visitor.record(buffer.getLong(offset), buffer.get(offset + 8), buffer.get(offset + 9),
+                            buffer.get(offset + 10), buffer.getInt(offset + 12));
+                }
+                position += RECORD_SIZE;
+            }
+        }
+    }
+
+    private void start(){
+        running = true;
+        thread = new Thread(this::run, "journal-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // decoded status value, called on the decoding thread
+    public void status(int address, int value){
+        append(STATUS, 0, address, value);
+    }
+
+    // command as sent, from any thread
+    public void command(int command, int value){
+        // relay commands name an address, the valve command carries its value
+        if (command == 3) {
+            append(COMMAND, command, 0, value);
+        }
+        else {
+            append(COMMAND, command, value, 0);
+        }
+    }
+
+    private synchronized void append(int type, int command, int address, int value){
+        if (open.remaining() < RECORD_SIZE) {
+            // the writer fell a whole batch behind, keep what is already queued
+            dropped.incrementAndGet();
+            return;
+        }
+        int start = open.position();
+        open.putLong(System.currentTimeMillis());
+        open.put((byte) type);
+        open.put((byte) command);
+        open.put((byte) address);
+        open.put((byte) 0);
+        open.putInt(value);
+        crc.reset();
+        ByteBuffer record = open.duplicate();
+        record.limit(start + 16).position(start);
+        crc.update(record);
+        open.putInt((int) crc.getValue());
+        records.incrementAndGet();
+    }
+
+    private synchronized ByteBuffer swap(){
+        ByteBuffer full = open;
+        open = writing;
+        writing = full;
+        open.clear();
+        full.flip();
+        return full;
+    }
+
+    // parks instead of sleeping, an interrupt in the middle of a write would close the channel
+    private void run(){
+        while (running) {
+            LockSupport.parkNanos(commitNanos);
+            if (!running) {
+                // the last batch is committed by close
+                return;
+            }
+            try {
+                commit();
+            } catch (IOException ex) {
+                System.out.println("Error writing journal: " + ex);
+            }
+        }
+    }
+
+    // Write and force everything appended so far, one fsync for the whole batch
+    private void commit() throws IOException {
+        ByteBuffer batch = swap();
+        if (!batch.hasRemaining()) {
+            return;
+        }
+        batchRecords.record(batch.remaining() / RECORD_SIZE);
+        while (batch.hasRemaining()) {
+            bytesWritten.addAndGet(channel.write(batch));
+        }
+        long start = System.nanoTime();
+        channel.force(false);
+        fsync.record(System.nanoTime() - start);
+        commits.incrementAndGet();
+    }
+
+    public Path path(){
+        return path;
+    }
+
+    public long records(){
+        return records.get();
+    }
+
+    public long dropped(){
+        return dropped.get();
+    }
+
+    public long commits(){
+        return commits.get();
+    }
+
+    public long bytesWritten(){
+        return bytesWritten.get();
+    }
+
+    // time spent in force() per commit
+    public Histogram fsyncLatency(){
+        return fsync;
+    }
+
+    public String journalReport(){
+        return String.format("Journal %s: %d records  %d commits  %d dropped  %.1f records per commit%n"
+                + "  fsync (ms): p50 %.2f  p99 %.2f  max %.2f%n",
+                path.getFileName(), records.get(), commits.get(), dropped.get(), batchRecords.mean(),
+                fsync.percentile(0.5) / 1e6, fsync.percentile(0.99) / 1e6, fsync.max() / 1e6);
+    }
+
+    // Commit what is left and mark the journal closed, the next open starts a new one
+    @Override
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(2000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        append(CLOSED, 0, 0, 0);
+        commit();
+        channel.close();
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ *
+ *          Serial port transport backed by jSSC
+ *
+ *      A port name of "auto" picks a free port each time it opens, see
+ *      ConnectionManager.ports().
+ *
+*/
+
+
+package roasterui;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import jssc.SerialPort;
+import jssc.SerialPortEvent;
+import jssc.SerialPortEventListener;
+import jssc.SerialPortException;
+
+public class JsscTransport implements SerialTransport, SerialPortEventListener {
+    // ports open in this process, so "auto" does not pick another roaster's port
+    private static final Set<String> OPEN_PORTS = ConcurrentHashMap.newKeySet();
+
+    private final String configuredName;
+    private volatile String portName;
+    private final int baudRate;
+    private SerialPort serialPort;
+    private Receiver receiver;
+
+    public JsscTransport(String portName, int baudRate){
+        this.configuredName = portName;
+        this.portName = portName;
+        this.baudRate = baudRate;
+    }
+
+    @Override
+    public void open(Receiver receiver) throws IOException {
+        this.receiver = receiver;
+        if (configuredName.equals(ConnectionManager.AUTO)) {
+            String port = ConnectionManager.selectPort(OPEN_PORTS);
+            if (port == null) {
+                throw new IOException("No serial port found");
+            }
+            portName = port;
+        }
+        serialPort = new SerialPort(portName);
+        try {
+            serialPort.openPort();
+            serialPort.setParams(baudRate,
+                                 SerialPort.DATABITS_8,
+                                 SerialPort.STOPBITS_1,
+                                 SerialPort.PARITY_NONE);
+            serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_RTSCTS_IN |
+                                  SerialPort.FLOWCONTROL_RTSCTS_OUT);
+            serialPort.addEventListener(this, SerialPort.MASK_RXCHAR);
+        } catch (SerialPortException ex) {
+            close();
+            throw new IOException(ex);
+        }
+        OPEN_PORTS.add(portName);
+    }
+
+    @Override
+    public void serialEvent(SerialPortEvent event) {
+        if(event.isRXCHAR() && event.getEventValue() > 0){
+            try {
+                byte buffer[] = serialPort.readBytes();
+                if (buffer != null) {
+                    receiver.onBytes(buffer, 0, buffer.length);
+                }
+            }
+            catch (SerialPortException ex) {
+                System.out.println(ex);
+                System.out.println("serialEvent Error");
+            }
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes) throws IOException {
+        try {
+            serialPort.writeBytes(bytes);
+        } catch (SerialPortException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    @Override
+    public boolean isOpen(){
+        return serialPort != null && serialPort.isOpened();
+    }
+
+    @Override
+    public void close(){
+        if (isOpen()) {
+            try {
+                serialPort.closePort();//Close serial port
+            } catch (SerialPortException ex) {
+                System.out.println("Failed to close port.");
+            }
+        }
+        OPEN_PORTS.remove(portName);
+    }
+
+    @Override
+    public String name(){
+        return portName;
+    }
+
+}
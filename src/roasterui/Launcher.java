@@ -0,0 +1,27 @@
+/*
+ *      Entry point, starts the JavaFX UI or with --headless just the roasters,
+ *      --export converts roast logs and exits
+ *
+ *      Kept free of JavaFX so a headless start never loads the toolkit.
+ */
+package roasterui;
+
+import java.util.Arrays;
+
+
+public class Launcher {
+
+    public static void main(String[] args) throws Exception {
+        StartupTimeline.mark(StartupTimeline.MAIN);
+        if (Arrays.stream(args).anyMatch(arg -> arg.startsWith("--export="))) {
+            RoastExport.main(args);
+        }
+        else if (Arrays.asList(args).contains("--headless")) {
+            RoasterGroup.main(args);
+        }
+        else {
+            RoasterUI.main(args);
+        }
+    }
+
+}
@@ -9,12 +9,12 @@ public class Log {
     public      int exhaustTemp;
     public      int drumTemp;
     public      int chamberTemp;
-    public      boolean firstCrack;
-    public      boolean secondCrack;
     public      boolean ignitorStatus;
     public      boolean gasStatus;
     public      boolean exhaustStatus;
     public      boolean coolingStatus;
+    public      boolean drumStatus;
+    public      boolean flameStatus;
     public      int     proValve;
     
     @Override
@@ -0,0 +1,333 @@
+/*
+ *
+ *          Metrics registry with text, socket and JMX export
+ *
+ *      Components keep their own counters and Histograms on the hot path and
+ *      register them here by name, so recording never goes through the
+ *      registry. Gauges and rates are read only when someone scrapes.
+ *
+ *      The text form follows the Prometheus exposition format. It can be
+ *      served on a localhost port, written to a file every few seconds and
+ *      every metric is also an attribute of the roasterui:type=Metrics MBean,
+ *      histograms as count, mean, percentiles and max in seconds.
+ *
+*/
+
+
+package roasterui;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class Metrics implements DynamicMBean {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    // name with labels, such as serial_round_trip_seconds{address="1"}
+    private final Map<String, Object> metrics = new ConcurrentSkipListMap<>();
+    private ServerSocket server;
+    private ScheduledExecutorService fileWriter;
+    private ObjectName objectName;
+
+    // Counted by the caller
+    public LongAdder counter(String name){
+        return (LongAdder) metrics.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    public Histogram histogram(String name){
+        return (Histogram) metrics.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    public void register(String name, Histogram histogram){
+        metrics.put(name, histogram);
+    }
+
+    // Value read when scraped
+    public void gauge(String name, DoubleSupplier gauge){
+        metrics.put(name, gauge);
+    }
+
+    // Per second change of a running total between scrapes
+    public void rate(String name, LongSupplier total){
+        metrics.put(name, new Rate(total));
+    }
+
+    public void remove(String prefix){
+        metrics.keySet().removeIf(name -> name.startsWith(prefix));
+    }
+
+    private static final class Rate implements DoubleSupplier {
+        private final LongSupplier total;
+        private long lastTotal;
+        private long lastTime = System.nanoTime();
+
+        Rate(LongSupplier total){
+            this.total = total;
+            this.lastTotal = total.getAsLong();
+        }
+
+        @Override
+        public synchronized double getAsDouble(){
+            long now = System.nanoTime();
+            long value = total.getAsLong();
+            double rate = (now == lastTime) ? 0 : (value - lastTotal) * 1e9 / (now - lastTime);
+            lastTime = now;
+            lastTotal = value;
+            return rate;
+        }
+    }
+
+    public String scrape(){
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+            String name = entry.getKey();
+            Object metric = entry.getValue();
+            if (metric instanceof Histogram) {
+                Histogram histogram = (Histogram) metric;
+                for (double quantile : QUANTILES) {
+                    line(text, label(name, "quantile", Double.toString(quantile)), histogram.percentile(quantile) / 1e9);
+                }
+                line(text, suffix(name, "_max"), histogram.max() / 1e9);
+                line(text, suffix(name, "_sum"), histogram.sum() / 1e9);
+                line(text, suffix(name, "_count"), histogram.count());
+            }
+            else {
+                line(text, name, value(metric));
+            }
+        }
+        return text.toString();
+    }
+
+    private static double value(Object metric){
+        if (metric instanceof LongAdder) {
+            return ((LongAdder) metric).sum();
+        }
+        return ((DoubleSupplier) metric).getAsDouble();
+    }
+
+    private static void line(StringBuilder text, String name, double value){
+        text.append(name).append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            text.append((long) value);
+        }
+        else {
+            text.append(value);
+        }
+        text.append('\n');
+    }
+
+    // metric name with a suffix before any labels
+    private static String suffix(String name, String suffix){
+        int labels = name.indexOf('{');
+        return (labels < 0) ? name + suffix : name.substring(0, labels) + suffix + name.substring(labels);
+    }
+
+    private static String label(String name, String label, String value){
+        String pair = label + "=\"" + value + "\"";
+        int end = name.indexOf('}');
+        return (end < 0) ? name + "{" + pair + "}" : name.substring(0, end) + "," + pair + "}";
+    }
+
+    // Serve the text form over plain HTTP on 127.0.0.1, one request per connection
+    public void serve(int port) throws IOException {
+        server = new ServerSocket(port, 4, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(() -> {
+            while (!server.isClosed()) {
+                try (Socket socket = server.accept()) {
+                    socket.setSoTimeout(1000);
+                    readRequest(socket.getInputStream());
+                    byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                    OutputStream out = socket.getOutputStream();
+                    out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain; version=0.0.4\r\n"
+                            + "Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                    out.write(body);
+                } catch (IOException ex) {
+                    if (!server.isClosed()) {
+                        System.out.println("Metrics request failed: " + ex);
+                    }
+                }
+            }
+        }, "metrics-http");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("metrics on http://127.0.0.1:" + server.getLocalPort() + "/metrics");
+    }
+
+    // skip the request up to the blank line, anything is answered with the metrics
+    private static void readRequest(InputStream in) throws IOException {
+        int newlines = 0;
+        int b;
+        while (newlines < 2 && (b = in.read()) >= 0) {
+            if (b == '\n') {
+                newlines++;
+            }
+            else if (b != '\r') {
+                newlines = 0;
+            }
+        }
+    }
+
+    // Rewrite a scrape file every few seconds, replaced in one move so readers never see half of it
+    public void writeTo(Path file, long seconds){
+        fileWriter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-file");
+            thread.setDaemon(true);
+            return thread;
+        });
+        fileWriter.scheduleAtFixedRate(() -> {
+            try {
+                Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+                Files.write(temp, scrape().getBytes(StandardCharsets.UTF_8));
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                System.out.println("Could not write metrics: " + ex);
+            }
+        }, 0, seconds, TimeUnit.SECONDS);
+    }
+
+    public void registerMBean(String name){
+        try {
+            MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName(name);
+            if (beans.isRegistered(objectName)) {
+                beans.unregisterMBean(objectName);
+            }
+            beans.registerMBean(this, objectName);
+        } catch (JMException ex) {
+            System.out.println("Could not register metrics MBean: " + ex);
+        }
+    }
+
+    public void close(){
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException ex) {
+                System.out.println("Failed to close metrics socket.");
+            }
+        }
+        if (fileWriter != null) {
+            fileWriter.shutdownNow();
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException ex) {
+                // already gone
+            }
+        }
+    }
+
+    // JMX, attribute names are the metric names with labels folded in
+    private static String attribute(String name){
+        return name.replace("\"", "").replace("}", "").replaceAll("[^A-Za-z0-9_]", "_");
+    }
+
+    private List<String[]> attributes(){
+        List<String[]> attributes = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+            String base = attribute(entry.getKey());
+            if (entry.getValue() instanceof Histogram) {
+                for (String part : new String[] {"count", "mean", "p50", "p90", "p99", "max"}) {
+                    attributes.add(new String[] {base + "_" + part, entry.getKey(), part});
+                }
+            }
+            else {
+                attributes.add(new String[] {base, entry.getKey(), null});
+            }
+        }
+        return attributes;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        for (String[] known : attributes()) {
+            if (known[0].equals(attribute)) {
+                Object metric = metrics.get(known[1]);
+                if (known[2] == null) {
+                    return value(metric);
+                }
+                Histogram histogram = (Histogram) metric;
+                switch (known[2]) {
+                    case "count": return (double) histogram.count();
+                    case "mean":  return histogram.mean() / 1e9;
+                    case "p50":   return histogram.percentile(0.5) / 1e9;
+                    case "p90":   return histogram.percentile(0.9) / 1e9;
+                    case "p99":   return histogram.percentile(0.99) / 1e9;
+                    default:      return histogram.max() / 1e9;
+                }
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names){
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            try {
+                list.add(new Attribute(name, getAttribute(name)));
+            } catch (AttributeNotFoundException ex) {
+                // left out, as JMX expects
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes){
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String action, Object[] params, String[] signature){
+        return null;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo(){
+        List<String[]> attributes = attributes();
+        MBeanAttributeInfo[] infos = new MBeanAttributeInfo[attributes.size()];
+        for (int i = 0; i < infos.length; i++) {
+            String[] attribute = attributes.get(i);
+            infos[i] = new MBeanAttributeInfo(attribute[0], "java.lang.Double",
+                    (attribute[2] == null) ? attribute[1] : attribute[1] + " " + attribute[2] + " seconds",
+                    true, false, false);
+        }
+        return new MBeanInfo(Metrics.class.getName(), "Roaster link and UI metrics",
+                infos, null, null, null);
+    }
+
+}
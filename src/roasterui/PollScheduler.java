@@ -0,0 +1,284 @@
+/*
+ *
+ *          Per address status polling
+ *
+ *      Instead of asking for every address once a second, each address is
+ *      polled on its own interval. The intervals follow the roast phase so the
+ *      temperatures are sampled fastest around first crack while relays that
+ *      rarely change are only checked every couple of seconds. While the gas
+ *      is open the flame is checked five times a second for the watchdog.
+ *
+ *      On a binary link one request returns every address, so it is sent
+ *      whenever any address is due.
+ *
+ *      Requests are paid for from a byte budget sized to the serial link. The
+ *      budget shrinks when responses stop keeping up with requests and grows
+ *      back while they do, so the scheduler never floods a slow link.
+ *
+ *      Nothing is requested while the link is down. After a reconnect
+ *      resume() makes every address due at once and starts a fresh window,
+ *      so requests lost with the old connection do not count as congestion.
+ *
+*/
+
+
+package roasterui;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class PollScheduler {
+    // polling rates in Hz for addresses 1 - 10
+    public enum Phase {
+        //           drum chamber exhaust flame drumR coolR exhR gasR ign  valve
+        IDLE        (1,   1,      1,      1,    0.5,  0.5,  0.5, 0.5, 0.5, 0.5),
+        DRYING      (2,   2,      2,      5,    0.5,  0.5,  0.5, 1,   1,   1),
+        MAILLARD    (4,   4,      2,      5,    0.5,  0.5,  0.5, 1,   1,   1),
+        DEVELOPMENT (10,  5,      5,      5,    0.5,  0.5,  0.5, 1,   1,   2),
+        COOLING     (2,   1,      1,      1,    0.5,  1,    0.5, 1,   1,   0.5);
+
+        private final double[] rates;
+
+        Phase(double... rates){
+            this.rates = rates;
+        }
+
+        public double rate(int address){
+            return rates[address - 1];
+        }
+    }
+
+    private static final int FIRST = 1;
+    private static final int LAST = 10;
+    private static final long TICK_MS = 10;
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(5);
+    // share of the raw link speed we are willing to use
+    private static final double LINK_UTILISATION = 0.6;
+    // bytes for a request and its response until we have measured them
+    private static final double DEFAULT_POLL_COST = 14;
+
+    private final ArduinoSerial arduino;
+    private final ScheduledExecutorService executor;
+    // false when the executor is shared with other roasters
+    private final boolean ownExecutor;
+    private ScheduledFuture<?> task;
+    // rate overrides in Hz, 0 means follow the phase
+    private final double[] overrides = new double[LAST + 1];
+    private final long[] nextDue = new long[LAST + 1];
+    private volatile Phase phase = Phase.IDLE;
+    // byte budget
+    private final double linkBytesPerSecond;
+    private double scale = 1;
+    private double tokens;
+    private long lastTick;
+    // measurement window
+    private long windowStart;
+    private long windowPolls;
+    private long polls;
+    private long windowBacklog;
+    private long windowBytes;
+    private final long[] windowCounts = new long[LAST + 1];
+    private final double[] effectiveRates = new double[LAST + 1];
+    private volatile double measuredBytesPerSecond;
+
+    public PollScheduler(ArduinoSerial arduino){
+        this(arduino, Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "poll-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        }), true);
+    }
+
+    // ticks on a scheduler shared with other roasters
+    public PollScheduler(ArduinoSerial arduino, ScheduledExecutorService executor){
+        this(arduino, executor, false);
+    }
+
+    private PollScheduler(ArduinoSerial arduino, ScheduledExecutorService executor, boolean ownExecutor){
+        this.arduino = arduino;
+        // 10 bits on the wire per byte
+        this.linkBytesPerSecond = ArduinoSerial.BAUD_RATE / 10.0;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+    }
+
+    public void start(){
+        long now = System.nanoTime();
+        lastTick = now;
+        windowStart = now;
+        windowBacklog = polls - totalResponses();
+        windowBytes = arduino.bytesSent() + arduino.bytesReceived();
+        for (int address = FIRST; address <= LAST; address++) {
+            nextDue[address] = now;
+            windowCounts[address] = arduino.responses(address);
+        }
+        task = executor.scheduleAtFixedRate(this::tick, 0, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Called after a reconnect, poll everything now and measure from here
+    public synchronized void resume(){
+        long now = System.nanoTime();
+        lastTick = now;
+        tokens = linkBytesPerSecond * LINK_UTILISATION * scale / 4;
+        windowStart = now;
+        windowPolls = polls;
+        windowBacklog = polls - totalResponses();
+        windowBytes = arduino.bytesSent() + arduino.bytesReceived();
+        for (int address = FIRST; address <= LAST; address++) {
+            nextDue[address] = now;
+            windowCounts[address] = arduino.responses(address);
+        }
+    }
+
+    // Runs a task every period on the polling thread, for light housekeeping. Stops with stop()
+    // when the thread is this scheduler's own, cancel it when shared.
+    public ScheduledFuture<?> every(long millis, Runnable job){
+        return executor.scheduleWithFixedDelay(job, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop(){
+        if (task != null) {
+            task.cancel(false);
+        }
+        if (ownExecutor) {
+            executor.shutdownNow();
+        }
+    }
+
+    public void setPhase(Phase phase){
+        this.phase = phase;
+    }
+
+    public Phase getPhase(){
+        return phase;
+    }
+
+    // fixed rate for an address regardless of phase, 0 to follow the phase again
+    public synchronized void setRate(int address, double hz){
+        overrides[address] = hz;
+    }
+
+    public synchronized double rate(int address){
+        return (overrides[address] > 0) ? overrides[address] : phase.rate(address);
+    }
+
+    // achieved responses per second over the last window
+    public synchronized double effectiveRate(int address){
+        return effectiveRates[address];
+    }
+
+    // share of the link budget in use, shrinks while responses fall behind
+    public synchronized double budget(){
+        return scale;
+    }
+
+    // bytes per second seen on the link over the last window
+    public double measuredBandwidth(){
+        return measuredBytesPerSecond;
+    }
+
+    private synchronized void tick(){
+        long now = System.nanoTime();
+        if (!arduino.isConnected()) {
+            lastTick = now;
+            return;
+        }
+        double budget = linkBytesPerSecond * LINK_UTILISATION * scale;
+        tokens = Math.min(budget / 4, tokens + budget * (now - lastTick) / 1e9);
+        lastTick = now;
+        // close the window before polling so this tick's requests are not counted as missing
+        if (now - windowStart >= WINDOW_NANOS) {
+            endWindow(now);
+        }
+        double cost = pollCost();
+        // serve the most overdue address first so none of them starve
+        while (tokens >= cost) {
+            int next = 0;
+            long late = 0;
+            for (int address = FIRST; address <= LAST; address++) {
+                long lateness = now - nextDue[address];
+                if (lateness >= late && rate(address) > 0) {
+                    late = lateness;
+                    next = address;
+                }
+            }
+            if (next == 0) {
+                break;
+            }
+            // one binary frame answers every address, so serve all that are due with it
+            boolean binary = arduino.isBinary();
+            // a request merged into one still waiting gets no response of its own
+            if (arduino.request(binary ? 0 : next)) {
+                polls++;
+                tokens -= cost;
+            }
+            for (int address = FIRST; address <= LAST; address++) {
+                if (address == next || binary && now >= nextDue[address] && rate(address) > 0) {
+                    long interval = (long) (1e9 / rate(address));
+                    nextDue[address] = Math.max(nextDue[address] + interval, now + 1);
+                }
+            }
+        }
+    }
+
+    // bytes one request and its response take on the link
+    private double pollCost(){
+        long responses = totalResponses();
+        if (polls == 0 || responses == 0) {
+            return DEFAULT_POLL_COST;
+        }
+        return (double) (arduino.bytesSent() + arduino.bytesReceived()) / Math.max(polls, responses);
+    }
+
+    private void endWindow(long now){
+        double seconds = (now - windowStart) / 1e9;
+        long sent = polls - windowPolls;
+        long responses = totalResponses();
+        // requests still waiting for an answer, in flight ones cancel out between windows
+        long backlog = polls - responses;
+        long bytes = arduino.bytesSent() + arduino.bytesReceived();
+        measuredBytesPerSecond = (bytes - windowBytes) / seconds;
+        // back off when responses fall behind, creep back up while they keep pace
+        if (sent >= 10 && backlog - windowBacklog > sent * 0.1) {
+            scale = Math.max(0.1, scale * 0.8);
+        }
+        else {
+            scale = Math.min(1, scale + 0.05);
+        }
+        for (int address = FIRST; address <= LAST; address++) {
+            long count = arduino.responses(address);
+            effectiveRates[address] = (count - windowCounts[address]) / seconds;
+            windowCounts[address] = count;
+        }
+        windowStart = now;
+        windowPolls = polls;
+        windowBacklog = backlog;
+        windowBytes = bytes;
+    }
+
+    private long totalResponses(){
+        if (arduino.isBinary()) {
+            // counted once per frame
+            return arduino.responses(0);
+        }
+        long total = 0;
+        for (int address = FIRST; address <= LAST; address++) {
+            total += arduino.responses(address);
+        }
+        return total;
+    }
+
+    public synchronized String rateReport(){
+        StringBuilder report = new StringBuilder(String.format(
+                "Polling %s, link %.0f B/s, budget %.0f%%%n",
+                phase, measuredBytesPerSecond, scale * 100));
+        for (int address = FIRST; address <= LAST; address++) {
+            report.append(String.format("  address %2d: target %5.1f Hz  effective %5.1f Hz%n",
+                    address, rate(address), effectiveRates[address]));
+        }
+        return report.toString();
+    }
+
+}
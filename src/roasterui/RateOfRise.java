@@ -0,0 +1,132 @@
+/*
+ *
+ *          Streaming rate of rise for one temperature probe
+ *
+ *      Keeps the readings of the last few seconds in a primitive ring and the
+ *      running sums needed for a least squares line through them, so adding a
+ *      reading and asking for the slope are both O(1). Times are kept relative
+ *      to the first reading and the sums are rebuilt from the ring every time
+ *      it has been filled once, so rounding errors cannot pile up.
+ *
+*/
+
+
+package roasterui;
+
+
+public class RateOfRise {
+    private final double[] times;
+    private final double[] values;
+    private int head;
+    private int count;
+    private double window;
+    private double base = Double.NaN;
+    private double sumT;
+    private double sumY;
+    private double sumTT;
+    private double sumTY;
+    private int sinceResum;
+
+    // window in seconds, capacity is the most readings the window will hold
+    public RateOfRise(double window, int capacity){
+        this.window = window;
+        times = new double[capacity];
+        values = new double[capacity];
+    }
+
+    public void setWindow(double window){
+        this.window = window;
+    }
+
+    public double getWindow(){
+        return window;
+    }
+
+    public void clear(){
+        head = 0;
+        count = 0;
+        base = Double.NaN;
+        sumT = sumY = sumTT = sumTY = 0;
+    }
+
+    // seconds on any clock, as long as it does not go backwards
+    public void add(double seconds, double value){
+        if (Double.isNaN(base)) {
+            base = seconds;
+        }
+        double t = seconds - base;
+        // drop readings that fell out of the window, or the oldest when full
+        while (count > 0 && (count == times.length || t - times[head] > window)) {
+            double oldT = times[head];
+            double oldY = values[head];
+            sumT -= oldT;
+            sumY -= oldY;
+            sumTT -= oldT * oldT;
+            sumTY -= oldT * oldY;
+            head = (head + 1) % times.length;
+            count--;
+        }
+        int slot = (head + count) % times.length;
+        times[slot] = t;
+        values[slot] = value;
+        count++;
+        sumT += t;
+        sumY += value;
+        sumTT += t * t;
+        sumTY += t * value;
+        if (++sinceResum >= times.length) {
+            resum();
+        }
+    }
+
+    private void resum(){
+        sumT = sumY = sumTT = sumTY = 0;
+        for (int i = 0; i < count; i++) {
+            int slot = (head + i) % times.length;
+            sumT += times[slot];
+            sumY += values[slot];
+            sumTT += times[slot] * times[slot];
+            sumTY += times[slot] * values[slot];
+        }
+        sinceResum = 0;
+    }
+
+    public int count(){
+        return count;
+    }
+
+    // degrees per minute, NaN until there are two readings
+    public double slope(){
+        double denominator = count * sumTT - sumT * sumT;
+        if (count < 2 || denominator <= 0) {
+            return Double.NaN;
+        }
+        return (count * sumTY - sumT * sumY) / denominator * 60;
+    }
+
+    // fitted temperature at the newest reading
+    public double value(){
+        if (count == 0) {
+            return Double.NaN;
+        }
+        double slope = slope();
+        double latest = times[(head + count - 1) % times.length];
+        if (Double.isNaN(slope)) {
+            return values[(head + count - 1) % times.length];
+        }
+        double meanT = sumT / count;
+        return sumY / count + slope / 60 * (latest - meanT);
+    }
+
+    // seconds until the fitted line reaches target, NaN when it is not heading there
+    public double secondsTo(double target){
+        double slope = slope();
+        double value = value();
+        if (Double.isNaN(slope) || slope == 0) {
+            return Double.NaN;
+        }
+        double seconds = (target - value) / slope * 60;
+        return (seconds >= 0) ? seconds : Double.NaN;
+    }
+
+}
@@ -0,0 +1,248 @@
+/*
+ *
+ *          Once per pulse widget updates
+ *
+ *      Responses only store the newest value for a widget and mark it dirty.
+ *      On every FX pulse each dirty widget is updated once with its newest
+ *      value, so a burst of samples costs one gauge update instead of a queue
+ *      of overlapping animations. Widgets skip updates that would not change
+ *      anything, so style classes are only touched when the state flips.
+ *
+ *      Gauge animations are stretched or shortened to the time between
+ *      samples for that gauge and switched off once samples come faster than
+ *      an animation can be seen.
+ *
+ *      The pulse interval, the CSS and layout time of each pulse and the
+ *      number of updates coalesced or skipped are kept for renderReport().
+ *
+*/
+
+
+package roasterui;
+
+import eu.hansolo.medusa.Gauge;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javafx.animation.AnimationTimer;
+import javafx.scene.Scene;
+import javafx.scene.control.Labeled;
+import javafx.scene.control.ToggleButton;
+
+public class RenderCoalescer {
+    // FX thread only, true when the widget changed
+    public interface Widget {
+        boolean apply(double value, double interval);
+    }
+
+    // longest gauge animation, as the gauges were built
+    private static final double MAX_ANIMATION_MS = 750;
+    // below this an animation is not worth starting
+    private static final double MIN_ANIMATION_MS = 40;
+    // 60 fps
+    private static final long FRAME_NANOS = 16_666_667;
+
+    private final List<Widget> widgets = new ArrayList<>();
+    private double[] values = new double[0];
+    // seconds between values per widget, smoothed
+    private double[] intervals = new double[0];
+    private long[] lastSet = new long[0];
+    // one bit per slot, 64 slots to a word
+    private long[] dirty = new long[0];
+    private boolean anyDirty;
+    private final AnimationTimer timer;
+    // statistics
+    private long pulses;
+    private long lastPulse;
+    private long pulseTotal;
+    private long pulseMax;
+    private long slowPulses;
+    private long layoutStart;
+    private long layoutTotal;
+    private long layoutMax;
+    private long layouts;
+    private long applyTotal;
+    private long applyMax;
+    private long applied;
+    private long coalesced;
+    private long unchanged;
+
+    public RenderCoalescer(){
+        timer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                pulse(now);
+            }
+        };
+    }
+
+    // FX thread only, returns the slot to set values on
+    public int add(Widget widget){
+        int slot = widgets.size();
+        widgets.add(widget);
+        if (slot / Long.SIZE == dirty.length) {
+            dirty = Arrays.copyOf(dirty, dirty.length + 1);
+        }
+        values = Arrays.copyOf(values, slot + 1);
+        intervals = Arrays.copyOf(intervals, slot + 1);
+        lastSet = Arrays.copyOf(lastSet, slot + 1);
+        intervals[slot] = 1;
+        return slot;
+    }
+
+    // FX thread only, the widget is updated on the next pulse
+    public void set(int slot, double value){
+        long now = System.nanoTime();
+        if (lastSet[slot] != 0) {
+            intervals[slot] += ((now - lastSet[slot]) / 1e9 - intervals[slot]) * 0.2;
+        }
+        lastSet[slot] = now;
+        int word = slot / Long.SIZE;
+        long bit = 1L << slot;
+        if ((dirty[word] & bit) != 0) {
+            coalesced++;
+        }
+        values[slot] = value;
+        dirty[word] |= bit;
+        anyDirty = true;
+    }
+
+    public void start(){
+        timer.start();
+    }
+
+    public void stop(){
+        timer.stop();
+    }
+
+    // time CSS and layout of every pulse of the scene
+    public void attach(Scene scene){
+        scene.addPreLayoutPulseListener(() -> layoutStart = System.nanoTime());
+        scene.addPostLayoutPulseListener(() -> {
+            if (layoutStart == 0) {
+                return;
+            }
+            long time = System.nanoTime() - layoutStart;
+            layouts++;
+            layoutTotal += time;
+            layoutMax = Math.max(layoutMax, time);
+        });
+    }
+
+    private void pulse(long now){
+        if (lastPulse != 0) {
+            long interval = now - lastPulse;
+            pulses++;
+            pulseTotal += interval;
+            pulseMax = Math.max(pulseMax, interval);
+            // a pulse late by more than half a frame dropped one
+            if (interval > FRAME_NANOS * 3 / 2) {
+                slowPulses++;
+            }
+        }
+        lastPulse = now;
+        if (!anyDirty) {
+            return;
+        }
+        anyDirty = false;
+        long start = System.nanoTime();
+        for (int word = 0; word < dirty.length; word++) {
+            long bits = dirty[word];
+            dirty[word] = 0;
+            while (bits != 0) {
+                int slot = word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (widgets.get(slot).apply(values[slot], intervals[slot])) {
+                    applied++;
+                }
+                else {
+                    unchanged++;
+                }
+            }
+        }
+        long time = System.nanoTime() - start;
+        applyTotal += time;
+        applyMax = Math.max(applyMax, time);
+    }
+
+    // Gauge value, animated over most of the time until the next sample
+    public static Widget gauge(Gauge gauge){
+        return (value, interval) -> {
+            if (Double.compare(gauge.getValue(), value) == 0) {
+                return false;
+            }
+            double duration = Math.min(MAX_ANIMATION_MS, interval * 1000 * 0.8);
+            if (duration < MIN_ANIMATION_MS) {
+                if (gauge.isAnimated()) {
+                    gauge.setAnimated(false);
+                }
+            }
+            else {
+                if (!gauge.isAnimated()) {
+                    gauge.setAnimated(true);
+                }
+                // leave small changes alone so running animations are not restarted for nothing
+                if (Math.abs(gauge.getAnimationDuration() - duration) > gauge.getAnimationDuration() * 0.2) {
+                    gauge.setAnimationDuration((long) duration);
+                }
+            }
+            gauge.setValue(value);
+            return true;
+        };
+    }
+
+    // Toggle button selected while the value is 1
+    public static Widget toggle(ToggleButton button){
+        return (value, interval) -> {
+            boolean on = (value == 1);
+            if (button.isSelected() == on) {
+                return false;
+            }
+            button.setSelected(on);
+            return true;
+        };
+    }
+
+    // Text and style class following an on / off value
+    public static Widget onOff(Labeled label, String onText, String offText, String onClass, String offClass){
+        return (value, interval) -> {
+            boolean on = (value == 1);
+            String text = on ? onText : offText;
+            String add = on ? onClass : offClass;
+            if (text.equals(label.getText()) && label.getStyleClass().contains(add)) {
+                return false;
+            }
+            label.setText(text);
+            label.getStyleClass().removeAll(on ? offClass : onClass);
+            if (!label.getStyleClass().contains(add)) {
+                label.getStyleClass().add(add);
+            }
+            return true;
+        };
+    }
+
+    // Whole number shown through a format such as "%d%%"
+    public static Widget text(Labeled label, String format){
+        return (value, interval) -> {
+            String text = String.format(format, (int) value);
+            if (text.equals(label.getText())) {
+                return false;
+            }
+            label.setText(text);
+            return true;
+        };
+    }
+
+    public String renderReport(){
+        return String.format("Render: %d pulses, mean %.1f ms  max %.1f ms  %d slow (%.1f fps)%n"
+                + "  css and layout (ms): mean %.2f  max %.2f%n"
+                + "  widget updates per pulse (ms): mean %.3f  max %.3f%n"
+                + "  updates applied %d  coalesced %d  unchanged %d%n",
+                pulses, (pulses == 0) ? 0 : pulseTotal / (pulses * 1e6), pulseMax / 1e6, slowPulses,
+                (pulseTotal == 0) ? 0 : pulses * 1e9 / pulseTotal,
+                (layouts == 0) ? 0 : layoutTotal / (layouts * 1e6), layoutMax / 1e6,
+                (pulses == 0) ? 0 : applyTotal / (pulses * 1e6), applyMax / 1e6,
+                applied, coalesced, unchanged);
+    }
+
+}
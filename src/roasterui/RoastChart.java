@@ -0,0 +1,220 @@
+/*
+ *
+ *          Live roast curve for drum, chamber and exhaust temperatures
+ *
+ *      Samples go into a primitive TimeSeries and each curve is drawn from a
+ *      Downsampler sized to the plot width, so the number of chart nodes stays
+ *      the same however long the roast runs. Once per pulse only the points
+ *      that changed since the last pulse are pushed into the chart.
+ *
+ *      A past roast's drum curve can be drawn underneath as a reference. It is
+ *      copied from the log once and lined up so its charge falls on the live
+ *      roast's charge once there is one.
+ *
+ *      Roast events are labelled on the drum curve by a fifth series that
+ *      draws only its labels.
+ *
+*/
+
+
+package roasterui;
+
+import java.io.IOException;
+import javafx.animation.AnimationTimer;
+import javafx.collections.ObservableList;
+import javafx.scene.control.Label;
+import javafx.scene.chart.LineChart;
+import javafx.scene.chart.NumberAxis;
+import javafx.scene.chart.XYChart;
+
+public class RoastChart {
+    public static final int DRUM = 0;
+    public static final int CHAMBER = 1;
+    public static final int EXHAUST = 2;
+    public static final int REFERENCE = 3;
+    public static final int EVENTS = 4;
+    // a bit over an hour at 10 Hz
+    private static final int CAPACITY = 1 << 16;
+
+    private final NumberAxis xAxis = new NumberAxis();
+    private final NumberAxis yAxis = new NumberAxis(0, 700, 100);
+    private final LineChart<Number, Number> chart = new LineChart<>(xAxis, yAxis);
+    private final TimeSeries series = new TimeSeries(CAPACITY, 3);
+    private final TimeSeries reference = new TimeSeries(CAPACITY, 1);
+    private final Downsampler[] downsamplers = new Downsampler[4];
+    private final ObservableList<XYChart.Data<Number, Number>>[] points;
+    private final float[] sample = new float[3];
+    private final float[] referenceSample = new float[1];
+    private final XYChart.Series<Number, Number> events = new XYChart.Series<>();
+    private final AnimationTimer timer;
+    private long startTime = -1;
+    // minutes from the start of the live curve to its charge, where the reference starts
+    private double chargeAt;
+    private boolean charged;
+    private boolean dirty;
+    // every reference point is moved on the next render
+    private boolean referenceMoved;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public RoastChart(){
+        String[] names = {"Drum", "Chamber", "Exhaust", "Reference"};
+        points = new ObservableList[names.length];
+        for (int channel = 0; channel < names.length; channel++) {
+            downsamplers[channel] = (channel == REFERENCE)
+                    ? new Downsampler(reference, 0, 400)
+                    : new Downsampler(series, channel, 400);
+            XYChart.Series<Number, Number> line = new XYChart.Series<>();
+            line.setName(names[channel]);
+            chart.getData().add(line);
+            points[channel] = line.getData();
+        }
+        events.setName("Events");
+        chart.getData().add(events);
+        xAxis.setLabel("Minutes");
+        xAxis.setForceZeroInRange(true);
+        yAxis.setAutoRanging(false);
+        chart.setAnimated(false);
+        chart.setCreateSymbols(false);
+        chart.setLegendVisible(false);
+        chart.getStyleClass().add("roastChart");
+        // one point per pixel of plot width
+        xAxis.widthProperty().addListener((observable, oldWidth, width) -> {
+            for (Downsampler downsampler : downsamplers) {
+                downsampler.setTarget(width.intValue());
+            }
+            dirty = true;
+        });
+        timer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                if (dirty) {
+                    render();
+                }
+            }
+        };
+    }
+
+    // start redrawing, FX thread only
+    public void start(){
+        timer.start();
+    }
+
+    public void stop(){
+        timer.stop();
+    }
+
+    public LineChart<Number, Number> getChart(){
+        return chart;
+    }
+
+    public TimeSeries getSeries(){
+        return series;
+    }
+
+    // FX thread only
+    public void add(long timestamp, int drum, int chamber, int exhaust){
+        if (startTime < 0) {
+            startTime = timestamp;
+        }
+        sample[DRUM] = drum;
+        sample[CHAMBER] = chamber;
+        sample[EXHAUST] = exhaust;
+        series.add((timestamp - startTime) / 60000.0, sample);
+        dirty = true;
+    }
+
+    public void clear(){
+        series.clear();
+        clearMarks();
+        startTime = -1;
+        chargeAt = 0;
+        charged = false;
+        referenceMoved = true;
+        dirty = true;
+    }
+
+    // The live roast was charged now, moves the reference to start here. Only the first call counts
+    public void charge(long timestamp){
+        if (startTime >= 0 && !charged) {
+            charged = true;
+            chargeAt = (timestamp - startTime) / 60000.0;
+            referenceMoved = true;
+            dirty = true;
+        }
+    }
+
+    // Label an event on the curve at its time and drum temperature, FX thread only
+    public void mark(RoastEvents.Type type, long timestamp, int temp){
+        if (startTime < 0) {
+            return;
+        }
+        XYChart.Data<Number, Number> point = new XYChart.Data<>((timestamp - startTime) / 60000.0, temp);
+        Label label = new Label(type.label());
+        label.getStyleClass().add("eventMark");
+        point.setNode(label);
+        events.getData().add(point);
+    }
+
+    public void clearMarks(){
+        events.getData().clear();
+    }
+
+    // Copy the drum curve of a past roast from its charge on, FX thread only
+    public void setReference(RoastLog log) throws IOException {
+        reference.clear();
+        int size = Math.min(log.size(), CAPACITY);
+        // never charged, show it from the start
+        int charge = Math.max(0, RoastEvents.load(log).sample(RoastEvents.Type.CHARGE));
+        if (charge >= size) {
+            charge = 0;
+        }
+        long chargeTime = (size == 0) ? 0 : log.timestamp(charge);
+        for (int i = charge; i < size; i++) {
+            referenceSample[0] = log.drumTemp(i);
+            reference.add((log.timestamp(i) - chargeTime) / 60000.0, referenceSample);
+        }
+        // the downsampler starts over on a new series
+        downsamplers[REFERENCE].setTarget(downsamplers[REFERENCE].getTarget());
+        dirty = true;
+    }
+
+    public void clearReference(){
+        reference.clear();
+        downsamplers[REFERENCE].setTarget(downsamplers[REFERENCE].getTarget());
+        dirty = true;
+    }
+
+    private void render(){
+        dirty = false;
+        for (int channel = 0; channel < downsamplers.length; channel++) {
+            Downsampler downsampler = downsamplers[channel];
+            ObservableList<XYChart.Data<Number, Number>> line = points[channel];
+            downsampler.update();
+            int size = downsampler.size();
+            int from = Math.min(downsampler.changedFrom(), line.size());
+            double offset = 0;
+            if (channel == REFERENCE) {
+                // the reference moves as a whole when the charge is found
+                offset = chargeAt;
+                from = referenceMoved ? 0 : from;
+                referenceMoved = false;
+            }
+            for (int i = from; i < size; i++) {
+                double x = downsampler.x(i) + offset;
+                double y = downsampler.y(i);
+                if (i < line.size()) {
+                    XYChart.Data<Number, Number> point = line.get(i);
+                    point.setXValue(x);
+                    point.setYValue(y);
+                }
+                else {
+                    line.add(new XYChart.Data<>(x, y));
+                }
+            }
+            if (line.size() > size) {
+                line.remove(size, line.size());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,270 @@
+/*
+ *
+ *          Roast events, a sparse index next to the samples
+ *
+ *      Charge, turning point, first and second crack and drop are kept as a
+ *      handful of entries sorted by time instead of a flag on every sample,
+ *      in a file beside the roast log (roast-...rev for roast-...rlog). Each
+ *      mark appends a 16 byte record:
+ *
+ *          time        long    wall clock ms
+ *          sample      int     first sample at or after the event
+ *          type        byte    Type ordinal
+ *          source      byte    MANUAL or AUTO
+ *          unused      short
+ *
+ *      A roast has each event at most once. A later mark of the same type
+ *      replaces the earlier one, except that detection never replaces one
+ *      the operator made. Reading the file back keeps the last record of each
+ *      type, so corrections survive without rewriting anything.
+ *
+ *      The time of an event, the time since it and the development time
+ *      ratio are O(1), the event in force at a given time a binary search.
+ *
+*/
+
+
+package roasterui;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public class RoastEvents implements Closeable {
+    public enum Type {
+        CHARGE("Charge"), TURNING_POINT("TP"), FIRST_CRACK("FC"), SECOND_CRACK("SC"), DROP("Drop");
+
+        private final String label;
+
+        Type(String label){
+            this.label = label;
+        }
+
+        public String label(){
+            return label;
+        }
+    }
+
+    public static final int MANUAL = 0;
+    public static final int AUTO = 1;
+    public static final int RECORD_SIZE = 16;
+
+    private static final Type[] TYPES = Type.values();
+
+    // null when read only
+    private final FileChannel channel;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    // sorted by time, at most one per type
+    private final long[] times = new long[TYPES.length];
+    private final int[] samples = new int[TYPES.length];
+    private final byte[] types = new byte[TYPES.length];
+    private final byte[] sources = new byte[TYPES.length];
+    private int count;
+    // bumped by every change, for redrawing only when something moved
+    private int version;
+    // time and source per type, -1 when not marked
+    private final long[] typeTime = new long[TYPES.length];
+    private final int[] typeSample = new int[TYPES.length];
+    private final int[] typeSource = new int[TYPES.length];
+
+    private RoastEvents(FileChannel channel){
+        this.channel = channel;
+        Arrays.fill(typeTime, -1);
+        Arrays.fill(typeSample, -1);
+        Arrays.fill(typeSource, -1);
+    }
+
+    // roast-x.rev for roast-x.rlog
+    public static Path sidecar(Path log){
+        return log.resolveSibling(log.getFileName().toString().replaceFirst("\\.rlog$", "") + ".rev");
+    }
+
+    // Events of the roast being logged to log, appended to as they are marked
+    public static RoastEvents create(Path log) throws IOException {
+        Path path = sidecar(log);
+        RoastEvents events = new RoastEvents(FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE));
+        events.read(events.channel);
+        events.channel.position(events.channel.size() / RECORD_SIZE * RECORD_SIZE);
+        return events;
+    }
+
+    // Events of a finished roast, read only. Logs from before the event file get their charge
+    // and drop from the relays and the cracks from the per sample flags.
+    public static RoastEvents load(RoastLog log) throws IOException {
+        RoastEvents events = new RoastEvents(null);
+        Path path = sidecar(log.path());
+        if (Files.exists(path)) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                events.read(channel);
+            }
+            return events;
+        }
+        int charge = log.find(RoastLog.GAS, 0);
+        events.derive(log, Type.CHARGE, charge);
+        events.derive(log, Type.FIRST_CRACK, log.find(RoastLog.FIRST_CRACK, Math.max(0, charge)));
+        events.derive(log, Type.SECOND_CRACK, log.find(RoastLog.SECOND_CRACK, Math.max(0, charge)));
+        events.derive(log, Type.DROP, (charge < 0) ? -1 : log.find(RoastLog.COOLING, charge));
+        return events;
+    }
+
+    private void derive(RoastLog log, Type type, int sample){
+        if (sample >= 0) {
+            put(type, log.timestamp(sample), sample, AUTO);
+        }
+    }
+
+    private void read(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(channel.size(), 1 << 20));
+        channel.read(buffer, 0);
+        buffer.flip();
+        while (buffer.remaining() >= RECORD_SIZE) {
+            long time = buffer.getLong();
+            int sample = buffer.getInt();
+            int type = buffer.get();
+            int source = buffer.get();
+            buffer.getShort();
+            if (type >= 0 && type < TYPES.length) {
+                put(TYPES[type], time, sample, source);
+            }
+        }
+    }
+
+    // Marks an event, false when an operator's mark of the type stands and this one was detected
+    public synchronized boolean mark(Type type, long time, int sample, int source) throws IOException {
+        if (source == AUTO && typeSource[type.ordinal()] == MANUAL) {
+            return false;
+        }
+        put(type, time, sample, source);
+        if (channel != null) {
+            record.clear();
+            record.putLong(time).putInt(sample).put((byte) type.ordinal()).put((byte) source).putShort((short) 0);
+            record.flip();
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        }
+        return true;
+    }
+
+    private void put(Type type, long time, int sample, int source){
+        int kind = type.ordinal();
+        if (typeTime[kind] >= 0) {
+            remove(kind);
+        }
+        int at = insertionPoint(time);
+        System.arraycopy(times, at, times, at + 1, count - at);
+        System.arraycopy(samples, at, samples, at + 1, count - at);
+        System.arraycopy(types, at, types, at + 1, count - at);
+        System.arraycopy(sources, at, sources, at + 1, count - at);
+        times[at] = time;
+        samples[at] = sample;
+        types[at] = (byte) kind;
+        sources[at] = (byte) source;
+        count++;
+        typeTime[kind] = time;
+        typeSample[kind] = sample;
+        typeSource[kind] = source;
+        version++;
+    }
+
+    private void remove(int kind){
+        int at = 0;
+        while (types[at] != kind) {
+            at++;
+        }
+        System.arraycopy(times, at + 1, times, at, count - at - 1);
+        System.arraycopy(samples, at + 1, samples, at, count - at - 1);
+        System.arraycopy(types, at + 1, types, at, count - at - 1);
+        System.arraycopy(sources, at + 1, sources, at, count - at - 1);
+        count--;
+    }
+
+    // first position whose time is after time
+    private int insertionPoint(long time){
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (times[middle] <= time) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // The last event at or before time, -1 when there is none
+    public synchronized int floor(long time){
+        return insertionPoint(time) - 1;
+    }
+
+    public synchronized int version(){
+        return version;
+    }
+
+    public synchronized int size(){
+        return count;
+    }
+
+    // i-th event in time order
+    public synchronized long time(int i){
+        return times[i];
+    }
+
+    public synchronized Type type(int i){
+        return TYPES[types[i]];
+    }
+
+    public synchronized int sample(int i){
+        return samples[i];
+    }
+
+    public synchronized int source(int i){
+        return sources[i];
+    }
+
+    // wall clock ms of an event, -1 when not marked
+    public synchronized long time(Type type){
+        return typeTime[type.ordinal()];
+    }
+
+    // first sample at or after an event, -1 when not marked
+    public synchronized int sample(Type type){
+        return typeSample[type.ordinal()];
+    }
+
+    // ms from an event to now, -1 when not marked
+    public synchronized long since(Type type, long now){
+        long time = typeTime[type.ordinal()];
+        return (time < 0) ? -1 : now - time;
+    }
+
+    // First crack to drop, or to now before the drop, over charge to the same. NaN before first crack
+    public synchronized double developmentRatio(long now){
+        long charge = typeTime[Type.CHARGE.ordinal()];
+        long firstCrack = typeTime[Type.FIRST_CRACK.ordinal()];
+        if (charge < 0 || firstCrack < 0) {
+            return Double.NaN;
+        }
+        long drop = typeTime[Type.DROP.ordinal()];
+        long end = (drop >= 0) ? drop : now;
+        return (end <= charge) ? Double.NaN : (double) (end - firstCrack) / (end - charge);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+        }
+    }
+
+}
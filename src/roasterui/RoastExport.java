@@ -0,0 +1,426 @@
+/*
+ *
+ *          Roast log export to CSV and Artisan
+ *
+ *      Streams straight from the log's mapped columns into a buffered file,
+ *      one reusable line buffer and no object per sample, so heap use does
+ *      not grow with the length of the roast. Formats:
+ *
+ *          csv         every column, relays and crack marks as 0 / 1
+ *          artisan     Artisan's CSV import, ET chamber and BT drum, with
+ *                      the charge, cracks and drop as events
+ *          alog        Artisan profile, the same curves and events
+ *
+ *      Events come from the roast's RoastEvents, marked on the sample at or
+ *      after each one.
+ *
+ *      Batch mode converts every .rlog in a directory on a pool with one
+ *      thread per core and reports rows per second and peak heap:
+ *
+ *      java -jar roaster-ui-3.0.jar --export=<log or dir> [--format=csv|artisan|alog] [--out=<dir>]
+ *
+*/
+
+
+package roasterui;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RoastExport {
+    public enum Format {
+        CSV(".csv"), ARTISAN(".artisan.csv"), ALOG(".alog");
+
+        private final String extension;
+
+        Format(String extension){
+            this.extension = extension;
+        }
+
+        public String extension(){
+            return extension;
+        }
+    }
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    // longest line is the csv one, 14 columns
+    private static final int MAX_LINE = 256;
+    // flag bits in csv column order
+    private static final int[] RELAYS = {RoastLog.IGNITOR, RoastLog.GAS, RoastLog.EXHAUST, RoastLog.COOLING,
+            RoastLog.DRUM, RoastLog.FLAME};
+
+    private final RoastLog log;
+    private final OutputStream out;
+    private final byte[] line = new byte[MAX_LINE];
+    private int length;
+    // sample indexes of the events, -1 when not marked
+    private final int charge;
+    private final int turningPoint;
+    private final int drop;
+    private final int firstCrack;
+    private final int secondCrack;
+
+    private RoastExport(RoastLog log, RoastEvents events, OutputStream out){
+        this.log = log;
+        this.out = out;
+        charge = events.sample(RoastEvents.Type.CHARGE);
+        turningPoint = events.sample(RoastEvents.Type.TURNING_POINT);
+        drop = events.sample(RoastEvents.Type.DROP);
+        firstCrack = events.sample(RoastEvents.Type.FIRST_CRACK);
+        secondCrack = events.sample(RoastEvents.Type.SECOND_CRACK);
+    }
+
+    // Writes a whole log, returns the number of sample rows
+    public static int export(RoastLog log, Format format, OutputStream out) throws IOException {
+        RoastExport export = new RoastExport(log, RoastEvents.load(log), out);
+        switch (format) {
+            case ARTISAN:
+                export.artisan();
+                break;
+            case ALOG:
+                export.alog();
+                break;
+            default:
+                export.csv();
+                break;
+        }
+        return log.size();
+    }
+
+    // Exports one log file next to out, returns the number of rows
+    public static int export(Path path, Format format, Path outDir) throws IOException {
+        String name = path.getFileName().toString().replaceFirst("\\.rlog$", "");
+        try (RoastLog log = RoastLog.openReadOnly(path);
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(outDir.resolve(name + format.extension())), BUFFER_SIZE)) {
+            return export(log, format, out);
+        }
+    }
+
+    private void csv() throws IOException {
+        text("time_ms,elapsed_s,drum,chamber,exhaust,pro_valve,ignitor,gas,exhaust_fan,cooling,drum_motor,flame,first_crack,second_crack\n");
+        flush();
+        long start = (log.size() == 0) ? 0 : log.timestamp(0);
+        int[] index = {0};
+        log.read(0, log.size(), (timestamps, drum, chamber, exhaust, proValve, flags, count) -> {
+            for (int i = 0; i < count; i++, index[0]++) {
+                long time = timestamps.get(i);
+                int flag = flags.get(i);
+                number(time).comma();
+                seconds(time - start, 100).comma();
+                number(drum.get(i)).comma();
+                number(chamber.get(i)).comma();
+                number(exhaust.get(i)).comma();
+                number(proValve.get(i) & 0xFF);
+                for (int bit : RELAYS) {
+                    comma().put((flag & bit) != 0 ? '1' : '0');
+                }
+                comma().put(index[0] == firstCrack ? '1' : '0');
+                comma().put(index[0] == secondCrack ? '1' : '0');
+                put('\n');
+                flushLine();
+            }
+        });
+    }
+
+    // Artisan's CSV import: a header line of events, then Time1 Time2 ET BT Event
+    private void artisan() throws IOException {
+        long start = (log.size() == 0) ? 0 : log.timestamp(0);
+        text("Date:" + new SimpleDateFormat("dd.MM.yyyy").format(new Date(log.createdAt())) + "\tUnit:F");
+        event("\tCHARGE:", charge, start);
+        event("\tTP:", turningPoint, start);
+        text("\tDRYe:");
+        event("\tFCs:", firstCrack, start);
+        text("\tFCe:");
+        event("\tSCs:", secondCrack, start);
+        text("\tSCe:");
+        event("\tDROP:", drop, start);
+        text("\tCOOL:\tTime:" + new SimpleDateFormat("HH:mm").format(new Date(log.createdAt())) + "\n");
+        text("Time1\tTime2\tET\tBT\tEvent\n");
+        flush();
+        long chargeTime = (charge < 0) ? 0 : log.timestamp(charge);
+        int[] index = {0};
+        log.read(0, log.size(), (timestamps, drum, chamber, exhaust, proValve, flags, count) -> {
+            for (int i = 0; i < count; i++, index[0]++) {
+                long time = timestamps.get(i);
+                clock(time - start).put('\t');
+                if (charge >= 0 && index[0] >= charge) {
+                    clock(time - chargeTime);
+                }
+                put('\t');
+                number(chamber.get(i)).put('\t');
+                number(drum.get(i)).put('\t');
+                int sample = index[0];
+                String event = (sample == charge) ? "Charge" : (sample == firstCrack) ? "FCs"
+                        : (sample == secondCrack) ? "SCs" : (sample == drop) ? "Drop" : "";
+                for (int c = 0; c < event.length(); c++) {
+                    put(event.charAt(c));
+                }
+                put('\n');
+                flushLine();
+            }
+        });
+    }
+
+    private void event(String label, int sample, long start){
+        text(label);
+        if (sample >= 0 && sample < log.size()) {
+            clock(log.timestamp(sample) - start);
+        }
+    }
+
+    // Artisan profile, a Python literal with one list per curve, one pass over the columns per list
+    private void alog() throws IOException {
+        long start = (log.size() == 0) ? 0 : log.timestamp(0);
+        Date created = new Date(log.createdAt());
+        text("{'version': '2.0', 'mode': 'F', 'title': '" + log.path().getFileName().toString().replace("'", "") + "'");
+        text(", 'roastdate': '" + new SimpleDateFormat("EEE MMM d yyyy").format(created) + "'");
+        text(", 'roastisodate': '" + new SimpleDateFormat("yyyy-MM-dd").format(created) + "'");
+        text(", 'roasttime': '" + new SimpleDateFormat("HH:mm:ss").format(created) + "'");
+        text(", 'roastepoch': " + log.createdAt() / 1000);
+        // charge, dry end, FCs, FCe, SCs, SCe, drop, cool. Charge is -1 and the rest 0 when not marked
+        text(", 'timeindex': [" + charge + ", 0, " + Math.max(0, firstCrack) + ", 0, "
+                + Math.max(0, secondCrack) + ", 0, " + Math.max(0, drop) + ", 0]");
+        flush();
+        column("timex", (timestamps, drum, chamber, exhaust, i) -> seconds(timestamps.get(i) - start, 1000));
+        column("temp1", (timestamps, drum, chamber, exhaust, i) -> number(chamber.get(i)));
+        column("temp2", (timestamps, drum, chamber, exhaust, i) -> number(drum.get(i)));
+        text(", 'extradevices': [25], 'extraname1': ['Exhaust'], 'extraname2': ['']");
+        column("extratimex", "[[", "]]", (timestamps, drum, chamber, exhaust, i) -> seconds(timestamps.get(i) - start, 1000));
+        column("extratemp1", "[[", "]]", (timestamps, drum, chamber, exhaust, i) -> number(exhaust.get(i)));
+        text(", 'extratemp2': [[]]}\n");
+        flush();
+    }
+
+    private interface Cell {
+        void put(LongBuffer timestamps, IntBuffer drum, IntBuffer chamber, IntBuffer exhaust, int i);
+    }
+
+    private void column(String key, Cell cell) throws IOException {
+        column(key, "[", "]", cell);
+    }
+
+    private void column(String key, String open, String close, Cell cell) throws IOException {
+        text(", '" + key + "': " + open);
+        flush();
+        boolean[] first = {true};
+        log.read(0, log.size(), (timestamps, drum, chamber, exhaust, proValve, flags, count) -> {
+            for (int i = 0; i < count; i++) {
+                if (!first[0]) {
+                    put(',').put(' ');
+                }
+                first[0] = false;
+                cell.put(timestamps, drum, chamber, exhaust, i);
+                if (length > MAX_LINE - 32) {
+                    flushLine();
+                }
+            }
+        });
+        text(close);
+    }
+
+    // line buffer, the visitor cannot throw so write errors surface from flushLine
+    private RoastExport put(char c){
+        line[length++] = (byte) c;
+        return this;
+    }
+
+    private RoastExport comma(){
+        return put(',');
+    }
+
+    private RoastExport number(long value){
+        if (value < 0) {
+            put('-');
+            value = -value;
+        }
+        long divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        while (divisor > 0) {
+            put((char) ('0' + value / divisor % 10));
+            divisor /= 10;
+        }
+        return this;
+    }
+
+    // milliseconds as seconds with two decimals (per 100) or three (per 1000)
+    private RoastExport seconds(long millis, int per){
+        if (millis < 0) {
+            put('-');
+            millis = -millis;
+        }
+        number(millis / 1000).put('.');
+        long fraction = (per == 100) ? millis % 1000 / 10 : millis % 1000;
+        if (per == 1000 && fraction < 100) {
+            put('0');
+        }
+        if (fraction < 10) {
+            put('0');
+        }
+        return number(fraction);
+    }
+
+    // mm:ss
+    private RoastExport clock(long millis){
+        long seconds = Math.max(0, millis) / 1000;
+        long minutes = seconds / 60;
+        if (minutes < 10) {
+            put('0');
+        }
+        number(minutes).put(':');
+        if (seconds % 60 < 10) {
+            put('0');
+        }
+        return number(seconds % 60);
+    }
+
+    private void text(String text){
+        for (int c = 0; c < text.length(); c++) {
+            if (length == MAX_LINE) {
+                flushLine();
+            }
+            put(text.charAt(c));
+        }
+    }
+
+    private void flushLine(){
+        try {
+            flush();
+        } catch (IOException ex) {
+            throw new ExportFailed(ex);
+        }
+    }
+
+    private void flush() throws IOException {
+        out.write(line, 0, length);
+        length = 0;
+    }
+
+    // carries a write error out of a RangeVisitor
+    private static class ExportFailed extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ExportFailed(IOException cause){
+            super(cause);
+        }
+    }
+
+    // --format=csv|artisan|alog, csv when not given
+    public static Format format(Iterable<String> args){
+        for (String arg : args) {
+            if (arg.startsWith("--format=")) {
+                return Format.valueOf(arg.substring(9).toUpperCase());
+            }
+        }
+        return Format.CSV;
+    }
+
+    // Batch entry point, converts one log or every log in a directory in parallel
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = Arrays.asList(args);
+        Path source = null;
+        Path outDir = null;
+        for (String arg : arguments) {
+            if (arg.startsWith("--export=")) {
+                source = Paths.get(arg.substring(9));
+            }
+            if (arg.startsWith("--out=")) {
+                outDir = Paths.get(arg.substring(6));
+            }
+        }
+        if (source == null) {
+            source = RoastHistory.directory(arguments);
+        }
+        Format format = format(arguments);
+        List<Path> logs = new ArrayList<>();
+        if (Files.isDirectory(source)) {
+            try (DirectoryStream<Path> found = Files.newDirectoryStream(source, "*.rlog")) {
+                for (Path path : found) {
+                    logs.add(path);
+                }
+            }
+        }
+        else {
+            logs.add(source);
+        }
+        if (outDir == null) {
+            outDir = Files.isDirectory(source) ? source : source.toAbsolutePath().getParent();
+        }
+        Files.createDirectories(outDir);
+        logs.sort(null);
+        System.out.print(convert(logs, format, outDir, Runtime.getRuntime().availableProcessors()));
+    }
+
+    // Converts logs on a pool of threads, returns the report
+    public static String convert(List<Path> logs, Format format, Path outDir, int threads) throws InterruptedException {
+        List<MemoryPoolMXBean> heap = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heap.add(pool);
+            }
+        }
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "export");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+        List<Future<Integer>> rows = new ArrayList<>();
+        for (Path path : logs) {
+            rows.add(pool.submit(() -> {
+                try {
+                    return export(path, format, outDir);
+                } catch (IOException | ExportFailed ex) {
+                    failed.incrementAndGet();
+                    System.out.println("Could not export " + path.getFileName() + ": " + ex);
+                    return 0;
+                }
+            }));
+        }
+        long total = 0;
+        for (Future<Integer> count : rows) {
+            try {
+                total += count.get();
+            } catch (java.util.concurrent.ExecutionException ex) {
+                failed.incrementAndGet();
+            }
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.SECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long peak = 0;
+        for (MemoryPoolMXBean bean : heap) {
+            peak += bean.getPeakUsage().getUsed();
+        }
+        return String.format("Exported %d of %d logs as %s to %s on %d threads%n"
+                + "  %d rows in %.2f s, %.0f rows/s, peak heap %.1f MB%n",
+                logs.size() - failed.get(), logs.size(), format.toString().toLowerCase(), outDir, threads,
+                total, seconds, total / seconds, peak / 1048576.0);
+    }
+
+}
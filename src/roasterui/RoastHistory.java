@@ -0,0 +1,373 @@
+/*
+ *
+ *          Index of past roasts
+ *
+ *      Every finished roast log gets one fixed size record in index.rhx next
+ *      to the logs:
+ *
+ *          date        long    wall clock time the roast started
+ *          duration    int     charge to drop in ms
+ *          charge      short   drum temperature when the gas first came on
+ *          drop        short   drum temperature when the cooling fan came on
+ *          first crack int     ms after charge, -1 when not marked
+ *          second crack int    ms after charge, -1 when not marked
+ *          samples     int
+ *          file        48 bytes, the log's file name
+ *          bean        48 bytes, UTF-8
+ *
+ *      The file name is the key a roast is found by and is never cut. One
+ *      longer than the field goes to index.rhn instead, and the field holds
+ *      its offset and length there. The bean is only shown and is cut to fit.
+ *
+ *      Records are appended and the count in the header bumped afterwards,
+ *      as in RoastLog. Browsing and filtering only read the index, the log
+ *      itself is opened read only when a roast is picked and its pages are
+ *      read as they are touched. Opening the history reads just the header,
+ *      so startup does not depend on how many roasts there are.
+ *
+ *      Logs without a record, from a crash or from before the index, are
+ *      picked up by reindex().
+ *
+*/
+
+
+package roasterui;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+public class RoastHistory implements Closeable {
+    public static final String INDEX_FILE = "index.rhx";
+    public static final String NAMES_FILE = "index.rhn";
+
+    private static final int MAGIC = 0x52484958; // RHIX
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int COUNT_OFFSET = 8;
+    private static final int RECORD_SIZE = 128;
+    private static final int NAME_OFFSET = 32;
+    private static final int BEAN_OFFSET = 80;
+    private static final int TEXT_SIZE = 48;
+    // name length that marks a file name kept in the names file
+    private static final int LONG_NAME = 0xFF;
+
+    // One index record, the samples stay on disk until load()
+    public static class Entry {
+        public final int index;
+        public final long date;
+        public final int duration;
+        public final int chargeTemp;
+        public final int dropTemp;
+        public final int firstCrack;
+        public final int secondCrack;
+        public final int samples;
+        public final String file;
+        public final String bean;
+
+        public Entry(int index, long date, int duration, int chargeTemp, int dropTemp,
+                     int firstCrack, int secondCrack, int samples, String file, String bean){
+            this.index = index;
+            this.date = date;
+            this.duration = duration;
+            this.chargeTemp = chargeTemp;
+            this.dropTemp = dropTemp;
+            this.firstCrack = firstCrack;
+            this.secondCrack = secondCrack;
+            this.samples = samples;
+            this.file = file;
+            this.bean = bean;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("%tF %<tR  %-16s  %2d:%02d  %3d° - %3d°%s",
+                    date, bean.isEmpty() ? "-" : bean, duration / 60000, duration / 1000 % 60,
+                    chargeTemp, dropTemp,
+                    (firstCrack < 0) ? "" : String.format("  FC %d:%02d", firstCrack / 60000, firstCrack / 1000 % 60));
+        }
+    }
+
+    private final Path dir;
+    private final FileChannel channel;
+    // file names too long for a record, appended, opened on first use
+    private FileChannel names;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private int count;
+    // read on first use only
+    private List<Entry> entries;
+
+    private RoastHistory(Path dir, FileChannel channel, int count){
+        this.dir = dir;
+        this.channel = channel;
+        this.count = count;
+    }
+
+    // --logdir=<dir>, defaults to ~/roasts
+    public static Path directory(Iterable<String> args){
+        String dir = System.getProperty("user.home") + "/roasts";
+        for (String arg : args) {
+            if (arg.startsWith("--logdir=")) {
+                dir = arg.substring(9);
+            }
+        }
+        return Paths.get(dir);
+    }
+
+    // Opens or creates the index in a log directory, only the header is read
+    public static RoastHistory open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        FileChannel channel = FileChannel.open(dir.resolve(INDEX_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (channel.size() == 0) {
+            header.putInt(MAGIC).putInt(VERSION).putInt(0).flip();
+            channel.write(header, 0);
+            return new RoastHistory(dir, channel, 0);
+        }
+        channel.read(header, 0);
+        if (header.getInt(0) != MAGIC) {
+            channel.close();
+            throw new IOException("Not a roast index: " + dir.resolve(INDEX_FILE));
+        }
+        // a record written after the last count update is lost, as its log will be picked up again
+        long complete = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+        return new RoastHistory(dir, channel, (int) Math.min(header.getInt(COUNT_OFFSET), complete));
+    }
+
+    public Path directory(){
+        return dir;
+    }
+
+    public synchronized int size(){
+        return count;
+    }
+
+    // Every record, read from the index once
+    public synchronized List<Entry> entries() throws IOException {
+        if (entries == null) {
+            List<Entry> read = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                read.add(read(i));
+            }
+            entries = read;
+        }
+        return new ArrayList<>(entries);
+    }
+
+    public List<Entry> find(Predicate<Entry> filter) throws IOException {
+        List<Entry> found = new ArrayList<>();
+        for (Entry entry : entries()) {
+            if (filter.test(entry)) {
+                found.add(entry);
+            }
+        }
+        return found;
+    }
+
+    // the newest roast without reading the rest, null when there is none
+    public synchronized Entry latest() throws IOException {
+        return (count == 0) ? null : read(count - 1);
+    }
+
+    private Entry read(int index) throws IOException {
+        record.clear();
+        channel.read(record, HEADER_SIZE + (long) index * RECORD_SIZE);
+        String file = ((record.get(28) & 0xFF) == LONG_NAME)
+                ? longName(record.getLong(NAME_OFFSET), record.getInt(NAME_OFFSET + 8))
+                : text(NAME_OFFSET, record.get(28));
+        return new Entry(index, record.getLong(0), record.getInt(8), record.getShort(12), record.getShort(14),
+                record.getInt(16), record.getInt(20), record.getInt(24),
+                file, text(BEAN_OFFSET, record.get(29)));
+    }
+
+    private FileChannel names() throws IOException {
+        if (names == null) {
+            names = FileChannel.open(dir.resolve(NAMES_FILE), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return names;
+    }
+
+    private String longName(long offset, int length) throws IOException {
+        ByteBuffer name = ByteBuffer.allocate(length);
+        while (name.hasRemaining() && names().read(name, offset + name.position()) > 0) {
+            // until the whole name is in
+        }
+        return new String(name.array(), 0, name.position(), StandardCharsets.UTF_8);
+    }
+
+    private String text(int offset, byte length){
+        return new String(record.array(), offset, Math.min(TEXT_SIZE, length & 0xFF), StandardCharsets.UTF_8);
+    }
+
+    // The samples of a roast, read only, close it when done
+    public RoastLog load(Entry entry) throws IOException {
+        Path path = dir.resolve(entry.file);
+        if (!Files.exists(path) && cut(entry.file)) {
+            // an older index cut long names to the field, the log starts with what is left
+            try (DirectoryStream<Path> logs = Files.newDirectoryStream(dir, "*.rlog")) {
+                for (Path log : logs) {
+                    if (log.getFileName().toString().startsWith(entry.file)) {
+                        path = log;
+                        break;
+                    }
+                }
+            }
+        }
+        return RoastLog.openReadOnly(path);
+    }
+
+    // a name an older index may have cut, its field full but for a split character
+    private static boolean cut(String file){
+        return file.getBytes(StandardCharsets.UTF_8).length > TEXT_SIZE - 4;
+    }
+
+    // Summarise a finished log and append its record
+    public synchronized Entry add(RoastLog log, String bean) throws IOException {
+        int size = log.size();
+        RoastEvents events = RoastEvents.load(log);
+        // a log that was never charged is indexed from start to end
+        int first = Math.min(Math.max(0, events.sample(RoastEvents.Type.CHARGE)), Math.max(0, size - 1));
+        int drop = events.sample(RoastEvents.Type.DROP);
+        if (drop < first || drop >= size) {
+            drop = Math.max(0, size - 1);
+        }
+        int firstCrack = since(log, first, events.sample(RoastEvents.Type.FIRST_CRACK), drop);
+        int secondCrack = since(log, first, events.sample(RoastEvents.Type.SECOND_CRACK), drop);
+        int duration = (size == 0) ? 0 : (int) (log.timestamp(drop) - log.timestamp(first));
+        Entry entry = new Entry(count, log.createdAt(), duration,
+                (size == 0) ? 0 : log.drumTemp(first), (size == 0) ? 0 : log.drumTemp(drop),
+                firstCrack, secondCrack, size, log.path().getFileName().toString(), (bean == null) ? "" : bean);
+        write(entry);
+        return entry;
+    }
+
+    // ms from the charge to a marked sample up to the drop, -1 when it was not marked by then
+    private static int since(RoastLog log, int charge, int marked, int drop){
+        return (marked < 0 || marked > drop) ? -1 : (int) (log.timestamp(marked) - log.timestamp(charge));
+    }
+
+    private void write(Entry entry) throws IOException {
+        byte[] file = entry.file.getBytes(StandardCharsets.UTF_8);
+        byte[] bean = truncate(entry.bean);
+        record.clear();
+        record.putLong(0, entry.date);
+        record.putInt(8, entry.duration);
+        record.putShort(12, (short) entry.chargeTemp);
+        record.putShort(14, (short) entry.dropTemp);
+        record.putInt(16, entry.firstCrack);
+        record.putInt(20, entry.secondCrack);
+        record.putInt(24, entry.samples);
+        record.put(29, (byte) bean.length);
+        for (int i = 0; i < TEXT_SIZE; i++) {
+            record.put(NAME_OFFSET + i, (file.length <= TEXT_SIZE && i < file.length) ? file[i] : 0);
+            record.put(BEAN_OFFSET + i, (i < bean.length) ? bean[i] : 0);
+        }
+        if (file.length <= TEXT_SIZE) {
+            record.put(28, (byte) file.length);
+        }
+        else {
+            // the name first, a record never points past the end of the names file
+            long offset = names().size();
+            ByteBuffer name = ByteBuffer.wrap(file);
+            while (name.hasRemaining()) {
+                names().write(name, offset + name.position());
+            }
+            record.put(28, (byte) LONG_NAME);
+            record.putLong(NAME_OFFSET, offset);
+            record.putInt(NAME_OFFSET + 8, file.length);
+        }
+        channel.write(record, HEADER_SIZE + (long) entry.index * RECORD_SIZE);
+        // count last, a torn record is never counted
+        ByteBuffer counted = ByteBuffer.allocate(4).putInt(0, entry.index + 1);
+        channel.write(counted, COUNT_OFFSET);
+        count = entry.index + 1;
+        if (entries != null) {
+            entries.add(entry);
+        }
+    }
+
+    // whole characters only, at most TEXT_SIZE bytes, for the bean
+    private static byte[] truncate(String text){
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = bytes.length;
+        if (length <= TEXT_SIZE) {
+            return bytes;
+        }
+        length = TEXT_SIZE;
+        while ((bytes[length] & 0xC0) == 0x80) {
+            length--;
+        }
+        byte[] cut = new byte[length];
+        System.arraycopy(bytes, 0, cut, 0, length);
+        return cut;
+    }
+
+    // Index logs in the directory that have no record, skipping any still being written.
+    // Holds the lock throughout, a log closed meanwhile is added either here or by its owner.
+    public synchronized int reindex(Set<Path> skip) throws IOException {
+        Set<String> known = new HashSet<>();
+        List<String> cut = new ArrayList<>();
+        for (Entry entry : entries()) {
+            known.add(entry.file);
+            if (cut(entry.file)) {
+                cut.add(entry.file);
+            }
+        }
+        List<Path> missing = new ArrayList<>();
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(dir, "*.rlog")) {
+            for (Path path : logs) {
+                String file = path.getFileName().toString();
+                if (!known.contains(file) && !skip.contains(path) && !startsWithAny(file, cut)) {
+                    missing.add(path);
+                }
+            }
+        }
+        missing.sort(null);
+        int added = 0;
+        for (Path path : missing) {
+            try (RoastLog log = RoastLog.openReadOnly(path)) {
+                if (log.size() > 0) {
+                    add(log, "");
+                    added++;
+                }
+            } catch (IOException ex) {
+                System.out.println("Skipping " + path.getFileName() + ": " + ex.getMessage());
+            }
+        }
+        return added;
+    }
+
+    private static boolean startsWithAny(String file, List<String> prefixes){
+        for (String prefix : prefixes) {
+            if (file.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.force(false);
+        channel.close();
+        if (names != null) {
+            names.force(false);
+            names.close();
+        }
+    }
+
+}
@@ -0,0 +1,332 @@
+/*
+ *
+ *          Append only roast log stored as memory mapped columns
+ *
+ *      One file per roast. After a small header the file is split into chunks
+ *      of CHUNK_SAMPLES samples, and each chunk holds one column per field:
+ *
+ *          timestamp   long        drum/chamber/exhaust    int
+ *          proValve    byte        flags                   byte
+ *
+ *      Appends write straight into the mapped chunk and bump the committed
+ *      count in the header, so nothing is allocated per sample. sync(),
+ *      called once a second while logging, forces the chunks written since
+ *      the last one and then records the synced count in the header. On open
+ *      the log is cut back to that count: a power cut loses what the kernel
+ *      had not written, in any order of pages, so nothing past it can be
+ *      trusted to be whole. At most the last second or so is lost, after a
+ *      power cut or a crash of the process alike.
+ *
+ *      Version 1 logs, from before sync(), have no synced count. Their
+ *      timestamp is written last, and on open the count is walked back to
+ *      the last sample with a timestamp and forward over any that made it to
+ *      disk after the header.
+ *
+*/
+
+
+package roasterui;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class RoastLog implements Closeable {
+    // flag bits
+    public static final int IGNITOR         = 1;
+    public static final int GAS             = 1 << 1;
+    public static final int EXHAUST         = 1 << 2;
+    public static final int COOLING         = 1 << 3;
+    public static final int DRUM            = 1 << 4;
+    public static final int FLAME           = 1 << 5;
+    // crack marks of logs from before RoastEvents, no longer written
+    public static final int FIRST_CRACK     = 1 << 6;
+    public static final int SECOND_CRACK    = 1 << 7;
+
+    public static final int CHUNK_SAMPLES = 4096;
+
+    private static final int MAGIC = 0x524C4F47; // RLOG
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int COUNT_OFFSET = 16;
+    // samples known to be on the device, from version 2
+    private static final int SYNCED_OFFSET = 32;
+    // column offsets inside a chunk
+    private static final int TIMESTAMPS = 0;
+    private static final int DRUM_TEMPS = TIMESTAMPS + CHUNK_SAMPLES * 8;
+    private static final int CHAMBER_TEMPS = DRUM_TEMPS + CHUNK_SAMPLES * 4;
+    private static final int EXHAUST_TEMPS = CHAMBER_TEMPS + CHUNK_SAMPLES * 4;
+    private static final int PRO_VALVE = EXHAUST_TEMPS + CHUNK_SAMPLES * 4;
+    private static final int FLAGS = PRO_VALVE + CHUNK_SAMPLES;
+    private static final int CHUNK_SIZE = FLAGS + CHUNK_SAMPLES;
+
+    // Receives a run of samples that share a chunk, buffers are positioned at the first one
+    public interface RangeVisitor {
+        void visit(LongBuffer timestamps, IntBuffer drum, IntBuffer chamber, IntBuffer exhaust,
+                   ByteBuffer proValve, ByteBuffer flags, int count);
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final FileChannel.MapMode mode;
+    // copy on write so readers on other threads never see the list mid resize
+    private final CopyOnWriteArrayList<MappedByteBuffer> chunks = new CopyOnWriteArrayList<>();
+    private volatile int size;
+    // samples forced to the device, guarded by this
+    private int synced;
+
+    private RoastLog(Path path, FileChannel channel, MappedByteBuffer header, FileChannel.MapMode mode){
+        this.path = path;
+        this.channel = channel;
+        this.header = header;
+        this.mode = mode;
+    }
+
+    public static RoastLog create(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(8, CHUNK_SAMPLES);
+        header.putLong(COUNT_OFFSET, 0);
+        header.putLong(24, System.currentTimeMillis());
+        return new RoastLog(path, channel, header, FileChannel.MapMode.READ_WRITE);
+    }
+
+    // Opens an existing log for reading and further appends
+    public static RoastLog open(Path path) throws IOException {
+        return open(path, FileChannel.MapMode.READ_WRITE);
+    }
+
+    // Opens a finished log without ever writing to it, pages are only read when touched
+    public static RoastLog openReadOnly(Path path) throws IOException {
+        return open(path, FileChannel.MapMode.READ_ONLY);
+    }
+
+    private static RoastLog open(Path path, FileChannel.MapMode mode) throws IOException {
+        FileChannel channel = (mode == FileChannel.MapMode.READ_ONLY)
+                ? FileChannel.open(path, StandardOpenOption.READ)
+                : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() < HEADER_SIZE) {
+            channel.close();
+            throw new IOException("Not a roast log: " + path);
+        }
+        MappedByteBuffer header = channel.map(mode, 0, HEADER_SIZE);
+        if (header.getInt(0) != MAGIC || header.getInt(8) != CHUNK_SAMPLES) {
+            channel.close();
+            throw new IOException("Not a roast log: " + path);
+        }
+        RoastLog log = new RoastLog(path, channel, header, mode);
+        log.recover();
+        return log;
+    }
+
+    private void recover() throws IOException {
+        long available = (channel.size() - HEADER_SIZE) / CHUNK_SIZE * CHUNK_SAMPLES;
+        int count = (int) Math.min(header.getLong(COUNT_OFFSET), available);
+        for (int chunk = 0; chunk < available / CHUNK_SAMPLES; chunk++) {
+            chunk(chunk);
+        }
+        if (header.getInt(4) >= 2) {
+            // only synced samples are known to be whole
+            count = (int) Math.min(header.getLong(SYNCED_OFFSET), available);
+        } else {
+            // drop samples the header counted but whose pages never reached the disk
+            while (count > 0 && timestamp(count - 1) == 0) {
+                count--;
+            }
+            // pick up samples that were written after the last header update
+            while (count < available && timestamp(count) != 0
+                    && (count == 0 || timestamp(count) >= timestamp(count - 1))) {
+                count++;
+            }
+        }
+        size = count;
+        synced = count;
+        if (mode == FileChannel.MapMode.READ_WRITE) {
+            header.putLong(COUNT_OFFSET, count);
+        }
+    }
+
+    private MappedByteBuffer chunk(int index) throws IOException {
+        while (chunks.size() <= index) {
+            long offset = HEADER_SIZE + (long) chunks.size() * CHUNK_SIZE;
+            chunks.add(channel.map(mode, offset, CHUNK_SIZE));
+        }
+        return chunks.get(index);
+    }
+
+    // Single writer, O(1) and allocation free except when a new chunk is mapped
+    public void append(Log sample) throws IOException {
+        int index = size;
+        MappedByteBuffer chunk = chunk(index / CHUNK_SAMPLES);
+        int i = index % CHUNK_SAMPLES;
+        chunk.putInt(DRUM_TEMPS + i * 4, sample.drumTemp);
+        chunk.putInt(CHAMBER_TEMPS + i * 4, sample.chamberTemp);
+        chunk.putInt(EXHAUST_TEMPS + i * 4, sample.exhaustTemp);
+        chunk.put(PRO_VALVE + i, (byte) sample.proValve);
+        chunk.put(FLAGS + i, (byte) flags(sample));
+        // timestamp last, a non zero timestamp marks a complete sample in version 1 logs
+        chunk.putLong(TIMESTAMPS + i * 8, sample.timestamp);
+        size = index + 1;
+        header.putLong(COUNT_OFFSET, index + 1);
+    }
+
+    private static int flags(Log sample){
+        int flags = 0;
+        if (sample.ignitorStatus)   flags |= IGNITOR;
+        if (sample.gasStatus)       flags |= GAS;
+        if (sample.exhaustStatus)   flags |= EXHAUST;
+        if (sample.coolingStatus)   flags |= COOLING;
+        if (sample.drumStatus)      flags |= DRUM;
+        if (sample.flameStatus)     flags |= FLAME;
+        return flags;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public Path path(){
+        return path;
+    }
+
+    // wall clock time the log was created
+    public long createdAt(){
+        return header.getLong(24);
+    }
+
+    public long timestamp(int index){
+        return chunks.get(index / CHUNK_SAMPLES).getLong(TIMESTAMPS + index % CHUNK_SAMPLES * 8);
+    }
+
+    public int drumTemp(int index){
+        return chunks.get(index / CHUNK_SAMPLES).getInt(DRUM_TEMPS + index % CHUNK_SAMPLES * 4);
+    }
+
+    public int chamberTemp(int index){
+        return chunks.get(index / CHUNK_SAMPLES).getInt(CHAMBER_TEMPS + index % CHUNK_SAMPLES * 4);
+    }
+
+    public int exhaustTemp(int index){
+        return chunks.get(index / CHUNK_SAMPLES).getInt(EXHAUST_TEMPS + index % CHUNK_SAMPLES * 4);
+    }
+
+    public int proValve(int index){
+        return chunks.get(index / CHUNK_SAMPLES).get(PRO_VALVE + index % CHUNK_SAMPLES) & 0xFF;
+    }
+
+    public int flags(int index){
+        return chunks.get(index / CHUNK_SAMPLES).get(FLAGS + index % CHUNK_SAMPLES) & 0xFF;
+    }
+
+    // First sample at or after from with any of the flag bits set, -1 when there is none
+    public int find(int flag, int from){
+        int end = size;
+        for (int i = Math.max(0, from); i < end; i++) {
+            if ((flags(i) & flag) != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // First sample at or after time, size() when every sample is older. Timestamps never go back
+    public int indexOf(long time){
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timestamp(middle) < time) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Copies one sample into a reusable Log
+    public void read(int index, Log into){
+        int flags = flags(index);
+        into.timestamp      = timestamp(index);
+        into.drumTemp       = drumTemp(index);
+        into.chamberTemp    = chamberTemp(index);
+        into.exhaustTemp    = exhaustTemp(index);
+        into.proValve       = proValve(index);
+        into.ignitorStatus  = (flags & IGNITOR) != 0;
+        into.gasStatus      = (flags & GAS) != 0;
+        into.exhaustStatus  = (flags & EXHAUST) != 0;
+        into.coolingStatus  = (flags & COOLING) != 0;
+        into.drumStatus     = (flags & DRUM) != 0;
+        into.flameStatus    = (flags & FLAME) != 0;
+    }
+
+    // Hands out views of the mapped columns for samples [from, to), no data is copied
+    public void read(int from, int to, RangeVisitor visitor){
+        to = Math.min(to, size);
+        while (from < to) {
+            ByteBuffer chunk = chunks.get(from / CHUNK_SAMPLES).duplicate();
+            int i = from % CHUNK_SAMPLES;
+            int count = Math.min(to - from, CHUNK_SAMPLES - i);
+            visitor.visit(column(chunk, TIMESTAMPS + i * 8, count * 8).asLongBuffer(),
+                          column(chunk, DRUM_TEMPS + i * 4, count * 4).asIntBuffer(),
+                          column(chunk, CHAMBER_TEMPS + i * 4, count * 4).asIntBuffer(),
+                          column(chunk, EXHAUST_TEMPS + i * 4, count * 4).asIntBuffer(),
+                          column(chunk, PRO_VALVE + i, count),
+                          column(chunk, FLAGS + i, count),
+                          count);
+            from += count;
+        }
+    }
+
+    private static ByteBuffer column(ByteBuffer chunk, int offset, int length){
+        chunk.limit(offset + length).position(offset);
+        return chunk.slice().asReadOnlyBuffer();
+    }
+
+    // Forces the chunks appended to since the last sync, then marks their samples as synced.
+    // May run on another thread than the appends.
+    public synchronized void sync(){
+        int count = size;
+        if (mode == FileChannel.MapMode.READ_ONLY || count == synced) {
+            return;
+        }
+        for (int chunk = synced / CHUNK_SAMPLES; chunk <= (count - 1) / CHUNK_SAMPLES; chunk++) {
+            chunks.get(chunk).force();
+        }
+        header.putLong(SYNCED_OFFSET, count);
+        header.force();
+        synced = count;
+    }
+
+    // Flushes mapped pages to the device
+    public synchronized void force(){
+        if (mode == FileChannel.MapMode.READ_ONLY) {
+            return;
+        }
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+        header.putLong(SYNCED_OFFSET, size);
+        header.force();
+        synced = size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+}
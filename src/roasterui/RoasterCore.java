@@ -0,0 +1,546 @@
+/*
+ *
+ *          Headless roaster control and telemetry
+ *
+ *      Owns one roaster's serial link, the status polling, the state model and
+ *      the roast log, and runs entirely on its own threads: decoded frames are
+ *      applied on the transport's reader thread, or a shared decode pool when
+ *      several roasters run together, and polling runs on the poll scheduler's
+ *      thread. The JavaFX UI is just one subscriber; RoasterGroup creates the
+ *      cores and runs them headless without loading the toolkit.
+ *
+ *      The link is kept up by a ConnectionManager. After a reconnect the relays
+ *      and valve are set again to what was last set here and the full status
+ *      is asked for at once. Gas and ignitor are only ever turned off this way,
+ *      never back on without the operator.
+ *
+ *      Commands and status values go to a write ahead Journal next to the
+ *      roast logs. When the last run did not stop cleanly its journal is
+ *      replayed on start, which brings back the reported values and what was
+ *      last set, and keeps the drum curve for the UI.
+ *
+ *      Every status value passes the SafetyWatchdog first, on the decoding
+ *      thread. When it trips, gas and ignitor are turned off ahead of any
+ *      other command and the valve loop lets go of the valve.
+ *
+*/
+
+
+package roasterui;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class RoasterCore implements TelemetryListener {
+    // addresses 0 - 10, see RoasterUI
+    public static final int ADDRESSES = 11;
+    public static final int DRUM_TEMP       = 1;
+    public static final int CHAMBER_TEMP    = 2;
+    public static final int EXHAUST_TEMP    = 3;
+    public static final int FLAME           = 4;
+    public static final int DRUM_RELAY      = 5;
+    public static final int COOLING_RELAY   = 6;
+    public static final int EXHAUST_RELAY   = 7;
+    public static final int GAS_RELAY       = 8;
+    public static final int IGNITOR         = 9;
+    public static final int PRO_VALVE       = 10;
+    // ms of roast log a power cut may take
+    private static final long LOG_SYNC_MS = 1000;
+
+    private final List<String> args;
+    // shown on the dashboard and used as the roaster="" metric label, null when it is the only one
+    private final String name;
+    private final ArduinoSerial arduino;
+    private final PollScheduler poller;
+    private final ValveController valveController;
+    private final ConnectionManager connection;
+    private final SafetyWatchdog watchdog;
+    private final Metrics metrics;
+    private final CopyOnWriteArrayList<TelemetryListener> subscribers = new CopyOnWriteArrayList<>();
+    // latest known value per address, filtered where a filter is configured
+    private final AtomicIntegerArray values = new AtomicIntegerArray(ADDRESSES);
+    // latest reading as received
+    private final AtomicIntegerArray raw = new AtomicIntegerArray(ADDRESSES);
+    // --filter=<address>:<stages>, null for an address passed through as received
+    private final SignalFilter[] filters = new SignalFilter[ADDRESSES];
+    // last relay and valve state set from here, -1 when never set
+    private final AtomicIntegerArray commanded = new AtomicIntegerArray(ADDRESSES);
+    // roast log, written on the decoding thread only
+    private volatile RoastLog roastLog;
+    // forces the roast log to the device once a second
+    private ScheduledFuture<?> logSync;
+    private final Log sample = new Log();
+    // charge, cracks and drop of the roast being logged, null without a roast log
+    private RoastEvents events;
+    private final EventDetector detector;
+    // null with --no-journal or when it could not be opened
+    private Journal journal;
+    // what the journal of a run that did not stop cleanly held, null otherwise
+    private Journal.Replayed replayed;
+
+    // decodePool and scheduler may be shared with other roasters, null gives this roaster its own
+    public RoasterCore(List<String> args, String name, SerialTransport transport,
+                       Executor decodePool, ScheduledExecutorService scheduler, Metrics metrics){
+        this.args = args;
+        this.name = name;
+        this.metrics = metrics;
+        arduino = new ArduinoSerial(transport, decodePool);
+        poller = (scheduler == null) ? new PollScheduler(arduino) : new PollScheduler(arduino, scheduler);
+        // --rate=<address>:<hz> pins an address to a fixed polling rate
+        for (String arg : args) {
+            if (arg.startsWith("--rate=")) {
+                String[] rate = arg.substring(7).split(":");
+                poller.setRate(Integer.parseInt(rate[0]), Double.parseDouble(rate[1]));
+            }
+        }
+        // --protocol=text skips asking the roaster for binary status frames
+        if (args.contains("--protocol=text")) {
+            arduino.setBinaryAllowed(false);
+        }
+        valveController = new ValveController(this);
+        valveController.configure(args);
+        subscribe(valveController);
+        connection = new ConnectionManager(arduino, name, this::resync);
+        connection.configure(args);
+        watchdog = new SafetyWatchdog(this::shutdown);
+        watchdog.configure(args);
+        for (int address = 1; address < ADDRESSES; address++) {
+            filters[address] = SignalFilter.forAddress(args, address);
+        }
+        detector = new EventDetector((type, time) -> mark(type, time, RoastEvents.AUTO));
+        detector.configure(args);
+        for (int address = 0; address < ADDRESSES; address++) {
+            commanded.set(address, -1);
+        }
+        registerMetrics();
+    }
+
+    // metric name with this roaster's label, unchanged for a lone roaster
+    public String metric(String metric){
+        if (name == null) {
+            return metric;
+        }
+        String label = "roaster=\"" + name + "\"";
+        int labels = metric.indexOf('{');
+        return (labels < 0) ? metric + "{" + label + "}" : metric.substring(0, labels + 1) + label + "," + metric.substring(labels + 1);
+    }
+
+    // Everything here is read when scraped, the components record on their own
+    private void registerMetrics(){
+        metrics.gauge(metric("serial_bytes_received_total"), arduino::bytesReceived);
+        metrics.gauge(metric("serial_bytes_sent_total"), arduino::bytesSent);
+        metrics.gauge(metric("serial_frames_total"), arduino::frames);
+        metrics.rate(metric("serial_frames_per_second"), arduino::frames);
+        metrics.gauge(metric("serial_parse_errors_total"), arduino::malformedFrames);
+        metrics.gauge(metric("serial_reconnects_total"), arduino::reconnects);
+        metrics.gauge(metric("serial_decode_overflow_bytes_total"), arduino::decodeOverflow);
+        metrics.gauge(metric("serial_binary"), () -> arduino.isBinary() ? 1 : 0);
+        metrics.gauge(metric("serial_link_up"), () -> arduino.isConnected() ? 1 : 0);
+        metrics.gauge(metric("serial_link_drops_total"), connection::drops);
+        metrics.register(metric("serial_first_sample_seconds"), arduino.firstSample());
+        metrics.register(metric("serial_outage_seconds"), connection.outage());
+        for (SafetyWatchdog.Rule rule : SafetyWatchdog.Rule.values()) {
+            metrics.gauge(metric("safety_trips_total{rule=\"" + rule.toString().toLowerCase() + "\"}"), () -> watchdog.trips(rule));
+        }
+        metrics.register(metric("safety_shutdown_seconds"), arduino.getWriter().urgentLatency());
+        for (int address = 1; address < ADDRESSES; address++) {
+            SignalFilter filter = filters[address];
+            int index = address;
+            if (filter != null) {
+                metrics.gauge(metric("filter_rejected_total{address=\"" + address + "\"}"), filter::rejected);
+                metrics.gauge(metric("filter_raw{address=\"" + address + "\"}"), () -> raw.get(index));
+            }
+        }
+        metrics.gauge(metric("journal_records_total"), () -> (journal == null) ? 0 : journal.records());
+        metrics.gauge(metric("journal_dropped_total"), () -> (journal == null) ? 0 : journal.dropped());
+        metrics.gauge(metric("journal_commits_total"), () -> (journal == null) ? 0 : journal.commits());
+        metrics.register(metric("serial_round_trip_seconds{address=\"0\"}"), arduino.roundTrip(0));
+        for (int address = 1; address < ADDRESSES; address++) {
+            int item = address;
+            metrics.register(metric("serial_round_trip_seconds{address=\"" + address + "\"}"), arduino.roundTrip(address));
+            metrics.gauge(metric("serial_value_age_seconds{address=\"" + address + "\"}"), () -> arduino.valueAge(item));
+            metrics.gauge(metric("poll_effective_hz{address=\"" + address + "\"}"), () -> poller.effectiveRate(item));
+        }
+        CommandWriter writer = arduino.getWriter();
+        metrics.gauge(metric("command_queue_depth"), writer::depth);
+        metrics.gauge(metric("command_merged_total"), writer::merged);
+        metrics.gauge(metric("command_retries_total"), writer::retries);
+        metrics.gauge(metric("command_failed_total"), writer::failed);
+        metrics.gauge(metric("command_stale_status_total"), writer::stale);
+        metrics.register(metric("command_echo_seconds"), writer.echoLatency());
+        metrics.gauge(metric("response_queue_depth"), arduino.commandQueue::depth);
+        metrics.gauge(metric("poll_budget_ratio"), poller::budget);
+        metrics.gauge(metric("valve_loop_enabled"), () -> valveController.isEnabled() ? 1 : 0);
+        metrics.gauge(metric("valve_loop_jitter_p99_seconds"), valveController::jitterP99);
+    }
+
+    public void start(){
+        openRoastLog();
+        openJournal();
+        // interlocks see every status before anything else, stale ones included
+        arduino.setMonitor(watchdog);
+        arduino.setListener(this);
+        poller.start();
+        logSync = poller.every(LOG_SYNC_MS, this::syncLog);
+        connection.start();
+        // --auto hands the valve to the controller from the start
+        if (args.contains("--auto")) {
+            valveController.setEnabled(true);
+        }
+    }
+
+    // the metrics stay with whoever created them
+    public void stop(){
+        valveController.stop();
+        if (logSync != null) {
+            logSync.cancel(false);
+        }
+        poller.stop();
+        connection.stop();
+        if (journal != null) {
+            arduino.setJournal(null);
+            try {
+                journal.close();
+            } catch (IOException ex) {
+                System.out.println("Failed to close journal.");
+            }
+        }
+        if (roastLog != null) {
+            try {
+                roastLog.close();
+            } catch (IOException ex) {
+                System.out.println("Failed to close roast log.");
+            }
+        }
+        if (events != null) {
+            try {
+                events.close();
+            } catch (IOException ex) {
+                System.out.println("Failed to close roast events.");
+            }
+        }
+    }
+
+    // Roast logs go to ~/roasts unless --logdir=<dir> is given
+    private void openRoastLog(){
+        DateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss");
+        try {
+            Path logDir = Files.createDirectories(RoastHistory.directory(args));
+            String prefix = (name == null) ? "roast-" : "roast-" + name + "-";
+            roastLog = RoastLog.create(logDir.resolve(prefix + format.format(new Date()) + ".rlog"));
+            events = RoastEvents.create(roastLog.path());
+        } catch (IOException ex) {
+            System.out.println("Could not create roast log: " + ex);
+        }
+    }
+
+    // Mark a roast event at time, by hand from any thread or detected on the decoding thread.
+    // False when there is no roast log or a detected event would replace one marked by hand.
+    public boolean mark(RoastEvents.Type type, long time, int source){
+        RoastEvents target = events;
+        RoastLog log = roastLog;
+        if (target == null) {
+            return false;
+        }
+        try {
+            boolean marked = target.mark(type, time, (log == null) ? -1 : log.indexOf(time), source);
+            if (marked && source == RoastEvents.AUTO) {
+                System.out.println(((name == null) ? "" : name + ": ") + type.label() + " detected");
+            }
+            return marked;
+        } catch (IOException ex) {
+            System.out.println("Error writing roast events: " + ex);
+            return false;
+        }
+    }
+
+    // journal.wal, or journal-<name>.wal with several roasters, in the log directory
+    private void openJournal(){
+        if (args.contains("--no-journal")) {
+            return;
+        }
+        Path path = RoastHistory.directory(args).resolve((name == null) ? "journal.wal" : "journal-" + name + ".wal");
+        try {
+            if (Journal.needsReplay(path)) {
+                long start = System.nanoTime();
+                Journal.Replayed journaled = new Journal.Replayed();
+                Journal.replay(path, journaled);
+                restore(journaled);
+                replayed = journaled;
+                System.out.printf("%sreplayed %d journal records in %.0f ms%n", (name == null) ? "" : name + ": ",
+                        journaled.records(), (System.nanoTime() - start) / 1e6);
+            }
+            journal = Journal.open(path, Journal.commitInterval(args));
+            arduino.setJournal(journal);
+            metrics.register(metric("journal_fsync_seconds"), journal.fsyncLatency());
+        } catch (IOException ex) {
+            System.out.println("Could not open journal: " + ex);
+        }
+    }
+
+    // Values and commanded state from before the crash, resync sends the commanded state again
+    private void restore(Journal.Replayed journaled){
+        for (int address = 1; address < ADDRESSES; address++) {
+            if (journaled.value(address) >= 0) {
+                values.set(address, journaled.value(address));
+            }
+            if (journaled.commanded(address) >= 0) {
+                commanded.set(address, journaled.commanded(address));
+            }
+        }
+        updatePhase();
+    }
+
+    // Subscribers are called on the decoding thread and must not block
+    public void subscribe(TelemetryListener listener){
+        subscribers.add(listener);
+    }
+
+    public void unsubscribe(TelemetryListener listener){
+        subscribers.remove(listener);
+    }
+
+    // Called on the decoding thread for every decoded frame
+    // Interlocks and the journal get the reading as received, a filter's lag must not delay a
+    // shutdown. Values, the roast log and subscribers get it filtered.
+    @Override
+    public void onFrame(int command, int address, int value){
+        Journal target = journal;
+        if (target != null && command == 0 && address > 0) {
+            target.status(address, value);
+        }
+        if (command == 0 && address == 0) {
+            // end of a binary frame, unchanged values were left out so log once per frame
+            logSample();
+            return;
+        }
+        if (command == 0 && address > 0 && address < ADDRESSES) {
+            // a zero temperature means the probe could not be read
+            if (address <= EXHAUST_TEMP && value == 0) {
+                return;
+            }
+            raw.set(address, value);
+            SignalFilter filter = filters[address];
+            if (filter != null) {
+                value = filter.apply(value);
+            }
+            values.set(address, value);
+            detector.onValue(address, value, System.currentTimeMillis());
+            if (address == DRUM_TEMP && !arduino.isBinary()) {
+                logSample();
+            }
+            updatePhase();
+        }
+        for (TelemetryListener subscriber : subscribers) {
+            subscriber.onFrame(command, address, value);
+        }
+    }
+
+    // Called by the connection manager after every connect
+    private void resync(){
+        // readings from before the link dropped are too old to smooth new ones with
+        for (SignalFilter filter : filters) {
+            if (filter != null) {
+                filter.reset();
+            }
+        }
+        poller.resume();
+        restoreCommanded();
+        arduino.request(0);
+        StartupTimeline.mark(StartupTimeline.FIRST_REQUEST);
+    }
+
+    // Send relays and valve again, whatever was set while the link was down never arrived.
+    // Relays that are already right ignore it.
+    private void restoreCommanded(){
+        for (int address = DRUM_RELAY; address <= IGNITOR; address++) {
+            int wanted = commanded.get(address);
+            // the roaster may have restarted with the flame out, gas and ignitor only go on by hand
+            if (wanted < 0 || wanted == 1 && (address == GAS_RELAY || address == IGNITOR)) {
+                continue;
+            }
+            arduino.send((wanted == 1) ? 1 : 2, address);
+        }
+        int valve = commanded.get(PRO_VALVE);
+        if (valve >= 0) {
+            arduino.send(3, valve);
+        }
+    }
+
+    // Called on the decoding thread when an interlock trips, must not block
+    private void shutdown(SafetyWatchdog.Rule rule, long detectedAt){
+        arduino.sendUrgent(2, GAS_RELAY, detectedAt);
+        arduino.sendUrgent(2, IGNITOR, detectedAt);
+        values.set(GAS_RELAY, 0);
+        values.set(IGNITOR, 0);
+        commanded.set(GAS_RELAY, 0);
+        commanded.set(IGNITOR, 0);
+        watchdog.commanded(GAS_RELAY, false);
+        // the valve loop would keep driving a burner that is out
+        valveController.setEnabled(false);
+        System.out.println(((name == null) ? "" : name + ": ") + "safety shutdown, " + rule.toString().toLowerCase().replace('_', ' '));
+    }
+
+    // On the polling thread, bounds what a power cut can take from the roast log
+    private void syncLog(){
+        RoastLog log = roastLog;
+        if (log == null) {
+            return;
+        }
+        try {
+            log.sync();
+        } catch (RuntimeException ex) {
+            // a failed force must not cancel the next one
+            System.out.println("Could not sync roast log: " + ex);
+        }
+    }
+
+    // Append the current state, once per drum temperature reading
+    private void logSample(){
+        if (roastLog == null) {
+            return;
+        }
+        sample.timestamp = System.currentTimeMillis();
+        sample.drumTemp = values.get(DRUM_TEMP);
+        sample.chamberTemp = values.get(CHAMBER_TEMP);
+        sample.exhaustTemp = values.get(EXHAUST_TEMP);
+        sample.proValve = values.get(PRO_VALVE);
+        sample.ignitorStatus = isOn(IGNITOR);
+        sample.gasStatus = isOn(GAS_RELAY);
+        sample.exhaustStatus = isOn(EXHAUST_RELAY);
+        sample.coolingStatus = isOn(COOLING_RELAY);
+        sample.drumStatus = isOn(DRUM_RELAY);
+        sample.flameStatus = isOn(FLAME);
+        try {
+            roastLog.append(sample);
+        } catch (IOException ex) {
+            System.out.println("Error writing roast log: " + ex);
+            roastLog = null;
+        }
+    }
+
+    // Poll faster as the roast gets closer to first crack
+    private void updatePhase(){
+        PollScheduler.Phase phase;
+        int drumTemp = values.get(DRUM_TEMP);
+        if (isOn(COOLING_RELAY)) {
+            phase = PollScheduler.Phase.COOLING;
+        }
+        else if (!isOn(GAS_RELAY)) {
+            phase = PollScheduler.Phase.IDLE;
+        }
+        else if (drumTemp < 300) {
+            phase = PollScheduler.Phase.DRYING;
+        }
+        else if (drumTemp < 380) {
+            phase = PollScheduler.Phase.MAILLARD;
+        }
+        else {
+            phase = PollScheduler.Phase.DEVELOPMENT;
+        }
+        poller.setPhase(phase);
+    }
+
+    public int value(int address){
+        return values.get(address);
+    }
+
+    // latest reading before filtering, 0 when none came yet
+    public int raw(int address){
+        return raw.get(address);
+    }
+
+    // null when the address is not filtered
+    public SignalFilter filter(int address){
+        return filters[address];
+    }
+
+    // null when there is no roast log
+    public RoastEvents getEvents(){
+        return events;
+    }
+
+    public boolean isOn(int address){
+        return values.get(address) == 1;
+    }
+
+    // relay addresses 5 - 9, false when gas or ignitor on is refused because an interlock is tripped
+    public boolean setRelay(int address, boolean on){
+        if (on && (address == GAS_RELAY || address == IGNITOR) && watchdog.isTripped()) {
+            System.out.println(((name == null) ? "" : name + ": ") + "burner locked out until the safety fault clears");
+            return false;
+        }
+        watchdog.commanded(address, on);
+        values.set(address, on ? 1 : 0);
+        commanded.set(address, on ? 1 : 0);
+        arduino.send(on ? 1 : 2, address); // commands: 1 - relay on, 2 - relay off
+        return true;
+    }
+
+    public void setValve(int percent){
+        values.set(PRO_VALVE, percent);
+        commanded.set(PRO_VALVE, percent);
+        arduino.send(3, percent); // command address for provalve 3
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    public ArduinoSerial getArduino(){
+        return arduino;
+    }
+
+    public PollScheduler getPoller(){
+        return poller;
+    }
+
+    public Metrics getMetrics(){
+        return metrics;
+    }
+
+    public ConnectionManager getConnection(){
+        return connection;
+    }
+
+    public Journal getJournal(){
+        return journal;
+    }
+
+    // the state and curve of a run that did not stop cleanly, null when the last one did
+    public Journal.Replayed getReplayed(){
+        return replayed;
+    }
+
+    public SafetyWatchdog getWatchdog(){
+        return watchdog;
+    }
+
+    public ValveController getValveController(){
+        return valveController;
+    }
+
+    public RoastLog getRoastLog(){
+        return roastLog;
+    }
+
+    public String status(){
+        ConnectionManager.State state = connection.getState();
+        return String.format("drum %d  chamber %d  exhaust %d  flame %s  gas %s  valve %d%%%s%s",
+                value(DRUM_TEMP), value(CHAMBER_TEMP), value(EXHAUST_TEMP),
+                isOn(FLAME) ? "on" : "off", isOn(GAS_RELAY) ? "on" : "off", value(PRO_VALVE),
+                valveController.isEnabled() ? " auto" : "",
+                (state == ConnectionManager.State.CONNECTED) ? "" : "  link " + state.toString().toLowerCase());
+    }
+
+}
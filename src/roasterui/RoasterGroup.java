@@ -0,0 +1,305 @@
+/*
+ *
+ *          Every roaster on this machine
+ *
+ *      Creates one RoasterCore per port given with --port=<a>,<b> (default
+ *      /dev/rfcomm0, "auto" picks a port) and owns what they share: the metrics registry and its
+ *      exports, and with more than one roaster a small decode pool and a
+ *      single poll scheduler thread. The pool has one thread per core at most,
+ *      each link decodes as one task at a time on it, so adding a roaster adds
+ *      its port's reader thread and not a thread per stage.
+ *
+ *      A lone roaster runs as before, decoding on the reader thread with
+ *      unlabelled metrics. Several are labelled roaster="<port name>".
+ *
+ *      Every roast log is added to the roast history when the group stops,
+ *      with the bean given by --bean=<name>.
+ *
+ *      Headless, the startup timeline is printed once the first sample is in.
+ *
+*/
+
+
+package roasterui;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RoasterGroup {
+    public static final String DEFAULT_PORT = "/dev/rfcomm0";
+
+    private final List<String> args;
+    private final List<RoasterCore> cores = new ArrayList<>();
+    private final Metrics metrics = new Metrics();
+    // null when the log directory could not be opened
+    private RoastHistory history;
+    // only when there is more than one roaster
+    private ThreadPoolExecutor decodePool;
+    private ScheduledExecutorService scheduler;
+    // only with --ws-port
+    private TelemetryServer telemetryServer;
+
+    public RoasterGroup(List<String> args){
+        this.args = args;
+        List<String> ports = ports(args);
+        StartupTimeline.register(metrics);
+        if (ports.size() == 1) {
+            cores.add(new RoasterCore(args, null, openTransport(ports.get(0)), null, null, metrics));
+            return;
+        }
+        int threads = Math.min(ports.size(), Runtime.getRuntime().availableProcessors());
+        decodePool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), daemon("link-pool-"));
+        scheduler = Executors.newSingleThreadScheduledExecutor(daemon("poll-scheduler-"));
+        for (String port : ports) {
+            cores.add(new RoasterCore(args, name(port), openTransport(port), decodePool, scheduler, metrics));
+        }
+        metrics.gauge("link_pool_threads", decodePool::getPoolSize);
+        metrics.gauge("link_pool_queue_depth", () -> decodePool.getQueue().size());
+        metrics.gauge("link_pool_tasks_total", decodePool::getCompletedTaskCount);
+    }
+
+    // --port=<a>,<b> in the order given, may be repeated
+    public static List<String> ports(List<String> args){
+        List<String> ports = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                for (String port : arg.substring(7).split(",")) {
+                    if (!port.isEmpty() && !ports.contains(port)) {
+                        ports.add(port);
+                    }
+                }
+            }
+        }
+        if (ports.isEmpty()) {
+            ports.add(DEFAULT_PORT);
+        }
+        return ports;
+    }
+
+    // /dev/ttyUSB0 is ttyUSB0
+    public static String name(String port){
+        return port.substring(port.lastIndexOf('/') + 1);
+    }
+
+    private static ThreadFactory daemon(String prefix){
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // --simulate[=<hz>] runs every port against the built in simulator
+    private SerialTransport openTransport(String port){
+        for (String arg : args) {
+            if (arg.startsWith("--simulate")) {
+                SimulatedRoaster simulator = new SimulatedRoaster();
+                if (arg.startsWith("--simulate=")) {
+                    simulator.setBaudRate(0);
+                    simulator.setTelemetryRate(Double.parseDouble(arg.substring(11)));
+                    simulator.setJitter(0.2);
+                }
+                return simulator;
+            }
+        }
+        return new JsscTransport(port, ArduinoSerial.BAUD_RATE);
+    }
+
+    // --metrics-port=<port> serves the metrics on localhost, --metrics-file=<path> rewrites a file every 5 s
+    private void exportMetrics(){
+        metrics.registerMBean("roasterui:type=Metrics");
+        for (String arg : args) {
+            try {
+                if (arg.startsWith("--metrics-port=")) {
+                    metrics.serve(Integer.parseInt(arg.substring(15)));
+                }
+            } catch (IOException ex) {
+                System.out.println("Could not serve metrics: " + ex);
+            }
+            if (arg.startsWith("--metrics-file=")) {
+                metrics.writeTo(Paths.get(arg.substring(15)), 5);
+            }
+        }
+    }
+
+    // Links first, the platform MBean server takes longer to come up than the port takes to open
+    public void start(){
+        for (RoasterCore core : cores) {
+            core.start();
+        }
+        try {
+            history = RoastHistory.open(RoastHistory.directory(args));
+        } catch (IOException ex) {
+            System.out.println("Could not open roast history: " + ex);
+        }
+        exportMetrics();
+        serveTelemetry();
+    }
+
+    // --ws-port=<port> streams every roaster to WebSocket clients
+    private void serveTelemetry(){
+        int port = TelemetryServer.port(args);
+        if (port == 0) {
+            return;
+        }
+        List<String> names = new ArrayList<>();
+        for (String roaster : ports(args)) {
+            names.add(name(roaster));
+        }
+        try {
+            telemetryServer = new TelemetryServer(cores, names, port);
+            telemetryServer.register(metrics);
+            telemetryServer.start();
+        } catch (IOException ex) {
+            System.out.println("Could not serve telemetry: " + ex);
+        }
+    }
+
+    public void stop(){
+        if (telemetryServer != null) {
+            telemetryServer.stop();
+        }
+        for (RoasterCore core : cores) {
+            RoastLog log = core.getRoastLog();
+            core.stop();
+            if (log != null) {
+                index(log.path());
+            }
+        }
+        if (history != null) {
+            try {
+                history.close();
+            } catch (IOException ex) {
+                System.out.println("Failed to close roast history.");
+            }
+        }
+        metrics.close();
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            decodePool.shutdownNow();
+        }
+    }
+
+    // --bean=<name>, empty when not given
+    private String bean(){
+        String bean = "";
+        for (String arg : args) {
+            if (arg.startsWith("--bean=")) {
+                bean = arg.substring(7);
+            }
+        }
+        return bean;
+    }
+
+    // Add a closed roast log to the history, logs with no samples are left out
+    private void index(Path path){
+        if (history == null) {
+            return;
+        }
+        try (RoastLog log = RoastLog.openReadOnly(path)) {
+            if (log.size() > 0) {
+                history.add(log, bean());
+            }
+        } catch (IOException ex) {
+            System.out.println("Could not add " + path.getFileName() + " to the roast history: " + ex);
+        }
+    }
+
+    // Logs currently being written, not to be picked up by RoastHistory.reindex
+    public Set<Path> openLogs(){
+        Set<Path> open = new HashSet<>();
+        for (RoasterCore core : cores) {
+            RoastLog log = core.getRoastLog();
+            if (log != null) {
+                open.add(log.path());
+            }
+        }
+        return open;
+    }
+
+    public int size(){
+        return cores.size();
+    }
+
+    public RoasterCore get(int index){
+        return cores.get(index);
+    }
+
+    public List<RoasterCore> cores(){
+        return Collections.unmodifiableList(cores);
+    }
+
+    public Metrics getMetrics(){
+        return metrics;
+    }
+
+    public RoastHistory getHistory(){
+        return history;
+    }
+
+    // the reports of every roaster, headed by its name when there are several
+    public String report(){
+        StringBuilder report = new StringBuilder();
+        for (RoasterCore core : cores) {
+            if (core.getName() != null) {
+                report.append("== ").append(core.getName()).append(" ==\n");
+            }
+            report.append(core.getConnection().connectionReport());
+            report.append(core.getPoller().rateReport());
+            report.append(core.getValveController().timingReport());
+            report.append(core.getArduino().getWriter().commandReport());
+            report.append(core.getArduino().protocolReport());
+            if (core.getJournal() != null) {
+                report.append(core.getJournal().journalReport());
+            }
+        }
+        if (telemetryServer != null) {
+            report.append(telemetryServer.serverReport());
+        }
+        return report.toString();
+    }
+
+    // Headless entry point, logs until interrupted
+    public static void main(String[] args) throws InterruptedException {
+        RoasterGroup group = new RoasterGroup(Arrays.asList(args));
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            group.stop();
+            System.out.print(group.report());
+            stopped.countDown();
+        }));
+        group.start();
+        // --cds-train stops once the first sample is in, the shutdown hook prints the reports
+        boolean training = StartupTimeline.training(group.args);
+        StartupTimeline.await(() -> {
+            System.out.print(StartupTimeline.startupReport());
+            if (training) {
+                System.exit(0);
+            }
+        }, StartupTimeline.FIRST_SAMPLE);
+        System.out.println("Running headless, Ctrl-C to stop");
+        while (!stopped.await(5, TimeUnit.SECONDS)) {
+            for (RoasterCore core : group.cores()) {
+                System.out.println((core.getName() == null) ? core.status() : core.getName() + ": " + core.status());
+            }
+        }
+    }
+
+}
@@ -43,13 +43,16 @@ import eu.hansolo.medusa.Gauge;
 import eu.hansolo.medusa.GaugeBuilder;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.net.URL;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import javafx.animation.KeyFrame;
 import javafx.animation.Timeline;
 import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.css.CssParser;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.geometry.Insets;
@@ -101,6 +104,11 @@ public class RoasterUI extends Application {
     private         ToggleButton coolingBtn;
     // Flame Status
     private         Button flameBtn;
+    // Link state of the roaster on the main panel
+    private         Label linkLabel;
+    // Time since first crack and development ratio of the roaster on the main panel
+    private         Label eventLabel;
+    private         int shownEvents = -1;
     // Status Variables
     private         boolean ignitorStatus = false;
     private         boolean gasStatus = false;
@@ -113,12 +121,59 @@ public class RoasterUI extends Application {
     private         int drumTemp = 0;
     private         int chamberTemp = 0;
     private         int exhaustTemp = 0;
-    // log array
-    private         ArrayList<Log> logData;
-    // Arduino Connection
-    private ArduinoSerial arduino;
+    // Rate of rise and time to target per probe, indexed by address
+    private final   RateOfRise[] rateOfRise = new RateOfRise[4];
+    private final   double[] targetTemp = {0, 400, 0, 0};
+    private final   Label[] rorLabel = new Label[4];
+    // Live roast curves
+    private         RoastChart roastChart;
+    // Past roasts, created when first opened
+    private         HistoryView historyView;
+    // Widget updates, applied once per pulse
+    private final   RenderCoalescer render = new RenderCoalescer();
+    private         int drumSlot, chamberSlot, exhaustSlot, flameSlot, valveSlot;
+    private         int drumBtnSlot, coolingBtnSlot, exhaustBtnSlot, gasBtnSlot, ignitorBtnSlot;
+    // Serial links, polling, state and logging, one core per roaster
+    private RoasterGroup group;
+    // the roaster shown on the main panel
+    private RoasterCore core;
+    private int selected;
+    // Dashboard tiles, only when there is more than one roaster
+    private         List<String> ports;
+    private         HBox dashboard;
+    private         VBox[] tiles;
+    private         Label[] tileAge;
+    private         int[] tileSlot;
+    // Pushes responses to the FX thread, null when polling the queues
+    private TelemetryDispatcher[] dispatchers;
+    // Responses waiting for queueLoop when --poll is given, one queue per roaster
+    private CommandQueue[] responseQueues;
+    // Loads the fonts and stylesheet while init builds the widgets
+    private Thread preload;
+    // Liquid Crystal faces the stylesheet uses
+    private static final String[] FONTS = {"LiquidCrystal-Normal.otf", "LiquidCrystal-Bold.otf"};
     
     @Override public void init(){
+        // Serial links first, the port opens and the first status request goes out while the UI is built
+        startRoasters();
+        preload = new Thread(this::preloadResources, "resource-preload");
+        preload.setDaemon(true);
+        preload.start();
+        // Rate of rise over a 30 second window unless --ror-window=<address>:<seconds>
+        for (int address = 1; address <= 3; address++) {
+            rateOfRise[address] = new RateOfRise(30, 1024);
+        }
+        // --target=<address>:<temp> sets the temperature to predict, 0 hides the prediction
+        for (String arg : getParameters().getRaw()) {
+            if (arg.startsWith("--ror-window=")) {
+                String[] window = arg.substring(13).split(":");
+                rateOfRise[Integer.parseInt(window[0])].setWindow(Double.parseDouble(window[1]));
+            }
+            if (arg.startsWith("--target=")) {
+                String[] target = arg.substring(9).split(":");
+                targetTemp[Integer.parseInt(target[0])] = Double.parseDouble(target[1]);
+            }
+        }
         // Create a pane for gauges
         HBox gauges = addGauges();
         gauges.getStyleClass().add("gaugeBox");
@@ -126,6 +181,13 @@ public class RoasterUI extends Application {
         VBox btnBox = addBtnBox();
         // Vbox for slider below gauges
         VBox sliderBox = addSliderBox();
+        // Roast curves below the slider
+        roastChart = new RoastChart();
+        // One tile per roaster above everything else when there are several
+        ports = RoasterGroup.ports(getParameters().getRaw());
+        if (ports.size() > 1) {
+            dashboard = addDashboard();
+        }
         // Build Grid
         pane = new GridPane();
         pane.setPadding(new Insets(10));
@@ -135,16 +197,38 @@ public class RoasterUI extends Application {
         // Add Gauges
         pane.add(gauges,       0, 0);
         // Add Button Box
-        pane.add(btnBox,        1, 0, 1, 2);
+        pane.add(btnBox,        1, 0, 1, 3);
         // Add Slider box to pane
         pane.add(sliderBox,     0, 1, 1, 1);
+        // Add chart to pane
+        pane.add(roastChart.getChart(), 0, 2, 1, 1);
         // Anchor Pane to center Items
         anchorPane = new GridPane();
         anchorPane.setPadding(new Insets(5));
-        anchorPane.add(pane,0,0);
+        if (dashboard != null) {
+            anchorPane.add(dashboard, 0, 0);
+        }
+        anchorPane.add(pane, 0, 1);
         anchorPane.setBackground(new Background(new BackgroundFill(MaterialDesign.GREY_900.get(), CornerRadii.EMPTY, Insets.EMPTY)));
         anchorPane.setAlignment(Pos.CENTER);
+        StartupTimeline.mark(StartupTimeline.UI_BUILT);
+    }
 
+    // Fonts register with the toolkit from any thread. Parsing the stylesheet here loads the
+    // parser and converter classes, which is most of what the scene's own parse costs on a cold JVM.
+    private void preloadResources(){
+        for (String face : FONTS) {
+            URL font = getClass().getResource("/resources/fonts/liquid_crystal/" + face);
+            if (font == null || Font.loadFont(font.toExternalForm(), 12) == null) {
+                System.out.println("Could not load font " + face);
+            }
+        }
+        try {
+            new CssParser().parse(getClass().getResource("/resources/RoasterUIStyle.css"));
+        } catch (IOException ex) {
+            System.out.println("Could not read stylesheet: " + ex);
+        }
+        StartupTimeline.mark(StartupTimeline.RESOURCES_LOADED);
     }
     
     
@@ -161,10 +245,13 @@ public class RoasterUI extends Application {
         chamber         = builder.decimals(0).maxValue(700).unit("Chamber").build();
         exhaust         = builder.decimals(0).maxValue(700).unit("Exhaust").build();
         drum            = builder.decimals(0).maxValue(700).unit("Drum").build();
+        drumSlot        = render.add(RenderCoalescer.gauge(drum));
+        chamberSlot     = render.add(RenderCoalescer.gauge(chamber));
+        exhaustSlot     = render.add(RenderCoalescer.gauge(exhaust));
         // Vboxes to build gauges
-        VBox chamberBox        = getVBox("Chamber Temp", MaterialDesign.RED_300.get(), chamber);
-        VBox exhaustBox     = getVBox("Exhaust Temp", MaterialDesign.ORANGE_300.get(), exhaust);
-        VBox drumBox = getVBox("Drum Temp", MaterialDesign.CYAN_300.get(), drum);
+        VBox chamberBox        = getVBox("Chamber Temp", MaterialDesign.RED_300.get(), chamber, 2);
+        VBox exhaustBox     = getVBox("Exhaust Temp", MaterialDesign.ORANGE_300.get(), exhaust, 3);
+        VBox drumBox = getVBox("Drum Temp", MaterialDesign.CYAN_300.get(), drum, 1);
         // Add items to hbox
         hbox.getChildren().add(chamberBox);
         hbox.getChildren().add(exhaustBox);
@@ -172,6 +259,90 @@ public class RoasterUI extends Application {
         return hbox;
     }
     
+    // Compact status of every roaster, click a tile to show that roaster below
+    private HBox addDashboard(){
+        HBox hbox = new HBox();
+        hbox.setPadding(new Insets(10, 10, 0, 10));
+        hbox.setSpacing(8);
+        tiles = new VBox[ports.size()];
+        tileAge = new Label[ports.size()];
+        tileSlot = new int[ports.size()];
+        for (int i = 0; i < ports.size(); i++) {
+            int index = i;
+            Label name = new Label(RoasterGroup.name(ports.get(i)));
+            name.getStyleClass().add("tileName");
+            Label drumLabel = new Label("D --");
+            Label chamberLabel = new Label("C --");
+            Label exhaustLabel = new Label("E --");
+            Label flameLabel = new Label("OFF");
+            Label valveLabel = new Label("0%");
+            tileAge[i] = new Label("no data");
+            HBox temps = new HBox(6, drumLabel, chamberLabel, exhaustLabel);
+            HBox burner = new HBox(6, flameLabel, valveLabel, tileAge[i]);
+            for (Label label : new Label[] {drumLabel, chamberLabel, exhaustLabel, valveLabel, tileAge[i]}) {
+                label.getStyleClass().add("ror");
+            }
+            // five slots per tile, drum first
+            tileSlot[i] = render.add(RenderCoalescer.text(drumLabel, "D %d\u00B0"));
+            render.add(RenderCoalescer.text(chamberLabel, "C %d\u00B0"));
+            render.add(RenderCoalescer.text(exhaustLabel, "E %d\u00B0"));
+            render.add(RenderCoalescer.onOff(flameLabel, "ON", "OFF", "flameOn", "flameOff"));
+            render.add(RenderCoalescer.text(valveLabel, "%d%%"));
+            tiles[i] = new VBox(name, temps, burner);
+            tiles[i].getStyleClass().add("tile");
+            tiles[i].setOnMouseClicked(event -> select(index));
+            hbox.getChildren().add(tiles[i]);
+        }
+        tiles[0].getStyleClass().add("tileSelected");
+        return hbox;
+    }
+
+    // Show another roaster on the main panel, widgets start from its latest values
+    private void select(int index){
+        if (index == selected) {
+            return;
+        }
+        tiles[selected].getStyleClass().remove("tileSelected");
+        tiles[index].getStyleClass().add("tileSelected");
+        selected = index;
+        core = group.get(index);
+        drumTemp = chamberTemp = exhaustTemp = 0;
+        for (int address = 1; address <= 3; address++) {
+            rateOfRise[address].clear();
+            rorLabel[address].setText("RoR --");
+        }
+        roastChart.clear();
+        shownEvents = -1;
+        // drum last so the first chart point has every temperature
+        for (int address = RoasterCore.ADDRESSES - 1; address >= 1; address--) {
+            updatePanel(address, core.value(address));
+        }
+    }
+
+    // Link state, and on the tiles the seconds since each roaster's last drum temperature
+    private void linkLoop(){
+        Timeline linkTimeline = new Timeline(
+            new KeyFrame(Duration.seconds(1), event -> {
+                ConnectionManager.State state = core.getConnection().getState();
+                String link = (state == ConnectionManager.State.CONNECTED) ? "Link up"
+                        : (state == ConnectionManager.State.LOST) ? "Link lost, reconnecting" : "Connecting";
+                if (!link.equals(linkLabel.getText())) {
+                    linkLabel.setText(link);
+                    linkLabel.getStyleClass().setAll((state == ConnectionManager.State.CONNECTED) ? "ror" : "tileStale");
+                }
+                for (int i = 0; tiles != null && i < tiles.length; i++) {
+                    double age = group.get(i).getArduino().valueAge(RoasterCore.DRUM_TEMP);
+                    boolean stale = Double.isNaN(age) || age > 5;
+                    tileAge[i].setText(Double.isNaN(age) ? "no data" : String.format("%.0fs", age));
+                    tileAge[i].getStyleClass().setAll(stale ? "tileStale" : "ror");
+                }
+                showEvents();
+            })
+        );
+        linkTimeline.setCycleCount(Timeline.INDEFINITE);
+        linkTimeline.play();
+    }
+    
     // Gas Slider Box
     private VBox addSliderBox(){
         HBox hbox = new HBox();
@@ -186,16 +357,41 @@ public class RoasterUI extends Application {
         // Set Button
         Button setBtn = new Button("Set");
         setBtn.getStyleClass().add("setBtn");
+        // Auto Button, hands the valve to the PID loop
+        ToggleButton autoBtn = new ToggleButton("Auto");
+        autoBtn.getStyleClass().add("setBtn");
+        Label autoLabel = new Label();
+        autoLabel.getStyleClass().add("ror");
         // Add items to box
         hbox.getChildren().add(gasSlider);
         hbox.getChildren().add(setBtn);
+        hbox.getChildren().add(autoBtn);
+        hbox.getChildren().add(autoLabel);
         // Set listener for button
         setBtn.setOnAction(new EventHandler<ActionEvent>() {
             @Override
             public void handle(ActionEvent event) {
+                // setting the valve by hand takes it back from the PID loop
+                core.getValveController().setEnabled(false);
+                autoBtn.setSelected(false);
+                autoLabel.setText("");
                 proValve = (int) gasSlider.getValue();
-                proValveValue.setText(Integer.toString(proValve) + "%");
-                arduino.send(3, proValve); // command address for provalve 3
+                render.set(valveSlot, proValve);
+                core.setValve(proValve);
+            }
+        });
+        autoBtn.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                ValveController controller = core.getValveController();
+                controller.setEnabled(autoBtn.isSelected());
+                if (autoBtn.isSelected()) {
+                    String unit = (controller.getMode() == ValveController.Mode.ROR) ? "\u00B0/min" : "\u00B0";
+                    autoLabel.setText(String.format("%s %.0f%s", controller.getMode().toString().toLowerCase(), controller.target(), unit));
+                }
+                else {
+                    autoLabel.setText("");
+                }
             }
         });
         // VBox for label slider
@@ -237,12 +433,24 @@ public class RoasterUI extends Application {
         valveLabel.getStyleClass().add("flameLabel");
         valveBox.getChildren().add(valveLabel);
         valveBox.getChildren().add(proValveValue);
+        linkLabel = new Label("Connecting");
+        linkLabel.getStyleClass().add("ror");
+        valveBox.getChildren().add(linkLabel);
+        eventLabel = new Label("DTR --");
+        eventLabel.getStyleClass().add("ror");
+        valveBox.getChildren().add(eventLabel);
+        // Roast events by hand, detection never overrides these
+        HBox markBox = new HBox(5, addMarkBtn("Charge", RoastEvents.Type.CHARGE), addMarkBtn("FC", RoastEvents.Type.FIRST_CRACK),
+                addMarkBtn("SC", RoastEvents.Type.SECOND_CRACK), addMarkBtn("Drop", RoastEvents.Type.DROP));
+        flameSlot = render.add(RenderCoalescer.onOff(flameBtn, "ON", "OFF", "flameOn", "flameOff"));
+        valveSlot = render.add(RenderCoalescer.text(proValveValue, "%d%%"));
         // Initialize toggle Buttons
         ignitorBtn = new ToggleButton("Ignitor");
         gasBtn = new ToggleButton("Gas Valve");
         drumBtn = new ToggleButton("Drum");
         exhaustBtn = new ToggleButton("Exhaust Fan");
         coolingBtn = new ToggleButton("Cooling Fan");
+        Button historyBtn = new Button("History");
         Button quitBtn = new Button("Exit");
         // Add CSS styles
         ignitorBtn.getStyleClass().add("tBtn");
@@ -250,7 +458,13 @@ public class RoasterUI extends Application {
         drumBtn.getStyleClass().add("tBtn");
         exhaustBtn.getStyleClass().add("tBtn");
         coolingBtn.getStyleClass().add("tBtn");
+        historyBtn.getStyleClass().add("tBtn");
         quitBtn.getStyleClass().add("tBtn");
+        drumBtnSlot = render.add(RenderCoalescer.toggle(drumBtn));
+        coolingBtnSlot = render.add(RenderCoalescer.toggle(coolingBtn));
+        exhaustBtnSlot = render.add(RenderCoalescer.toggle(exhaustBtn));
+        gasBtnSlot = render.add(RenderCoalescer.toggle(gasBtn));
+        ignitorBtnSlot = render.add(RenderCoalescer.toggle(ignitorBtn));
         //Button Actions
         ignitorBtn.setOnAction(new EventHandler<ActionEvent>() {
             @Override
@@ -282,6 +496,12 @@ public class RoasterUI extends Application {
                 setItem("cooling");
             }
         });
+        historyBtn.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                showHistory();
+            }
+        });
         quitBtn.setOnAction(new EventHandler<ActionEvent>() {
             @Override
             public void handle(ActionEvent event) {
@@ -296,13 +516,91 @@ public class RoasterUI extends Application {
         vbox.getChildren().add(coolingBtn);
         vbox.getChildren().add(flameBox);
         vbox.getChildren().add(valveBox);
+        vbox.getChildren().add(markBox);
+        vbox.getChildren().add(historyBtn);
         vbox.getChildren().add(quitBtn);
 
         return vbox;
     }
     
+    // Marks an event now on the roaster shown
+    private Button addMarkBtn(String text, RoastEvents.Type type){
+        Button button = new Button(text);
+        button.getStyleClass().add("setBtn");
+        button.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                core.mark(type, System.currentTimeMillis(), RoastEvents.MANUAL);
+                showEvents();
+            }
+        });
+        return button;
+    }
+
+    // Relabels the chart when the events changed, and shows the time since first crack
+    // and the development ratio, neither of which looks at the samples
+    private void showEvents(){
+        RoastEvents events = core.getEvents();
+        if (events == null) {
+            return;
+        }
+        if (events.version() != shownEvents) {
+            shownEvents = events.version();
+            RoastLog log = core.getRoastLog();
+            roastChart.clearMarks();
+            for (int i = 0; i < events.size(); i++) {
+                int sample = events.sample(i);
+                int temp = (log != null && sample >= 0 && sample < log.size()) ? log.drumTemp(sample) : drumTemp;
+                roastChart.mark(events.type(i), events.time(i), temp);
+            }
+        }
+        long now = System.currentTimeMillis();
+        long sinceCrack = events.since(RoastEvents.Type.FIRST_CRACK, now);
+        double ratio = events.developmentRatio(now);
+        String text = Double.isNaN(ratio) ? "DTR --" : String.format("DTR %.0f%%", ratio * 100);
+        if (sinceCrack >= 0) {
+            text = String.format("FC +%d:%02d  %s", sinceCrack / 60000, sinceCrack / 1000 % 60, text);
+        }
+        eventLabel.setText(text);
+    }
+
+    private void showHistory(){
+        if (group.getHistory() == null) {
+            return;
+        }
+        if (historyView == null) {
+            historyView = new HistoryView(group.getHistory(), roastChart);
+        }
+        historyView.show(group.openLogs());
+    }
+
+    // --reference=<file|last> starts with a past roast under the live curve
+    private void openReference(){
+        RoastHistory history = group.getHistory();
+        for (String arg : getParameters().getRaw()) {
+            if (!arg.startsWith("--reference=") || history == null) {
+                continue;
+            }
+            String file = arg.substring(12);
+            try {
+                if (file.equals("last")) {
+                    RoastHistory.Entry latest = history.latest();
+                    if (latest == null) {
+                        continue;
+                    }
+                    file = latest.file;
+                }
+                try (RoastLog log = RoastLog.openReadOnly(history.directory().resolve(file))) {
+                    roastChart.setReference(log);
+                }
+            } catch (IOException ex) {
+                System.out.println("Could not open reference roast " + file + ": " + ex);
+            }
+        }
+    }
+
     private void setItem(String item){
-        int command; int address; boolean status = false;
+        int address; boolean status = false;
         switch (item){
             case "ignitor":
                 ignitorStatus = !ignitorStatus; 
@@ -332,12 +630,21 @@ public class RoasterUI extends Application {
             default:
                 return;
         }
-        command = (status) ? 1 : 2; // commands: 1 - relay on, 2 - relay off
-        arduino.send(command, address);
+        if (!core.setRelay(address, status)) {
+            // locked out, the button goes back to what the roaster has
+            if (address == 8) {
+                gasStatus = false;
+                render.set(gasBtnSlot, 0);
+            }
+            else {
+                ignitorStatus = false;
+                render.set(ignitorBtnSlot, 0);
+            }
+        }
     }
     
     // Box build for gauges
-    private VBox getVBox(final String TEXT, final Color COLOR, final Gauge GAUGE) {
+    private VBox getVBox(final String TEXT, final Color COLOR, final Gauge GAUGE, final int ADDRESS) {
         Rectangle bar = new Rectangle(150, 3);
         bar.setArcWidth(6);
         bar.setArcHeight(6);
@@ -347,7 +654,11 @@ public class RoasterUI extends Application {
         label.setAlignment(Pos.CENTER);
         label.setPadding(new Insets(0, 0, 10, 0));
         GAUGE.setBarColor(COLOR);
-        VBox vBox = new VBox(bar, label, GAUGE);
+        // Rate of rise below the gauge
+        Label ror = new Label("RoR --");
+        ror.getStyleClass().add("ror");
+        rorLabel[ADDRESS] = ror;
+        VBox vBox = new VBox(bar, label, GAUGE, ror);
         vBox.setSpacing(3);
         vBox.setAlignment(Pos.CENTER);
         return vBox;
@@ -355,9 +666,22 @@ public class RoasterUI extends Application {
     
     @Override
     public void start(Stage stage) {
+        // the stylesheet names the fonts, they are in long before the widgets are built
+        try {
+            preload.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
         Rectangle2D primaryScreenBounds = Screen.getPrimary().getVisualBounds();
         Scene scene = new Scene(anchorPane);
-        scene.getStylesheets().add("resources/RoasterUIStyle.css"); 
+        scene.getStylesheets().add("resources/RoasterUIStyle.css");
+        // the first pulse lays out the whole scene and hands it to the renderer
+        Runnable[] firstFrame = new Runnable[1];
+        firstFrame[0] = () -> {
+            StartupTimeline.mark(StartupTimeline.FIRST_FRAME);
+            Platform.runLater(() -> scene.removePostLayoutPulseListener(firstFrame[0]));
+        };
+        scene.addPostLayoutPulseListener(firstFrame[0]);
         stage.setTitle("Coffee Roaster v3.0");
         stage.setScene(scene);
         stage.setX(primaryScreenBounds.getMinX());
@@ -366,39 +690,127 @@ public class RoasterUI extends Application {
         stage.setHeight(primaryScreenBounds.getHeight());
         stage.setFullScreen(true);
         stage.show();
-        // Loop for sending status commands to arduino
+        render.attach(scene);
+        render.start();
+        roastChart.start();
+        // Hook the roasters up to the widgets
         statusLoop();
         // Loop for checking responses from arduino
-        queueLoop();
+        if (responseQueues != null) {
+            queueLoop();
+        }
+        linkLoop();
+        // --cds-train exits once the first frame and the first sample are in
+        boolean training = StartupTimeline.training(getParameters().getRaw());
+        StartupTimeline.await(() -> {
+            System.out.print(StartupTimeline.startupReport());
+            if (training) {
+                Platform.runLater(this::stop);
+            }
+        }, StartupTimeline.FIRST_FRAME, StartupTimeline.FIRST_SAMPLE);
+    }
+
+    // Connecting and polling start before any widget exists, see statusLoop for the UI side
+    private void startRoasters(){
+        group = new RoasterGroup(getParameters().getRaw());
+        core = group.get(0);
+        group.start();
     }
     
+    // Responses are pushed to the UI unless --poll is given
     private void statusLoop(){
-        arduino = new ArduinoSerial();
-        arduino.connect();
-         int statusFreq = 1000;
-        Timeline statusTimer = new Timeline(
-            new KeyFrame(Duration.millis(statusFreq), event -> {
-                arduino.send(0,0);
-            })
-        );
-        statusTimer.setCycleCount(Timeline.INDEFINITE);
-        statusTimer.play();
+        boolean poll = getParameters().getRaw().contains("--poll");
+        if (!poll) {
+            dispatchers = new TelemetryDispatcher[group.size()];
+        }
+        else {
+            responseQueues = new CommandQueue[group.size()];
+        }
+        for (int i = 0; i < group.size(); i++) {
+            int index = i;
+            RoasterCore roaster = group.get(i);
+            if (!poll) {
+                dispatchers[i] = new TelemetryDispatcher((command, address, value) -> processResponse(index, command, address, value), Platform::runLater);
+                roaster.subscribe(dispatchers[i]);
+                group.getMetrics().register(roaster.metric("fx_dispatch_latency_seconds"), dispatchers[i].latencyHistogram());
+            }
+            else {
+                CommandQueue queue = new CommandQueue(256);
+                responseQueues[i] = queue;
+                roaster.subscribe(queue::offer);
+                group.getMetrics().gauge(roaster.metric("fx_response_queue_depth"), queue::depth);
+            }
+        }
+        replayJournal();
+        openReference();
+    }
+
+    // After a crash the journal brings back the roast curve. The widgets start from each roaster's
+    // values, replayed or received before statusLoop subscribed, responses queued since follow.
+    private void replayJournal(){
+        for (int i = 0; i < group.size(); i++) {
+            RoasterCore roaster = group.get(i);
+            Journal.Replayed replayed = roaster.getReplayed();
+            if (replayed != null && i == selected) {
+                for (int point = 0; point < replayed.points(); point++) {
+                    roastChart.add(replayed.time(point), replayed.temp(RoasterCore.DRUM_TEMP, point),
+                            replayed.temp(RoasterCore.CHAMBER_TEMP, point), replayed.temp(RoasterCore.EXHAUST_TEMP, point));
+                }
+                if (replayed.chargeTime() != 0) {
+                    roastChart.charge(replayed.chargeTime());
+                }
+            }
+            // drum last so the first live chart point has every temperature
+            for (int address = RoasterCore.ADDRESSES - 1; address >= 1; address--) {
+                processResponse(i, 0, address, roaster.value(address));
+            }
+        }
     }
     
+    // Refresh the rate of rise and time to target shown under a gauge
+    private void updateRateOfRise(int address, int value){
+        RateOfRise ror = rateOfRise[address];
+        ror.add(System.nanoTime() / 1e9, value);
+        double slope = ror.slope();
+        if (Double.isNaN(slope)) {
+            return;
+        }
+        String text = String.format("RoR %+.1f\u00B0/min", slope);
+        double seconds = (targetTemp[address] > 0) ? ror.secondsTo(targetTemp[address]) : Double.NaN;
+        if (!Double.isNaN(seconds)) {
+            text += String.format("  %.0f\u00B0 in %d:%02d", targetTemp[address], (int) seconds / 60, (int) seconds % 60);
+        }
+        rorLabel[address].setText(text);
+    }
     
-    public void processResponse(String response){
-        String[] parts = response.split(",");
-        // declare vars for readability
-        int command = Integer.parseInt(parts[0]);
-        int address = Integer.parseInt(parts[1]);
-        int value;
+    public void processResponse(int index, int command, int address, int value){
         if (command != 0){
-            System.out.println("Command: "+response);
+            System.out.println("Command: "+command+","+address);
             return;
         }
-        // response commands should always be 0
-        value = Integer.parseInt(parts[2]);
-        
+        // response commands should always be 0, widgets are updated on the next pulse
+        if (tiles != null) {
+            updateTile(index, address, value);
+        }
+        if (index == selected) {
+            updatePanel(address, value);
+        }
+    }
+
+    private void updateTile(int index, int address, int value){
+        int slot = tileSlot[index];
+        if (address >= 1 && address <= 3 && value != 0) {
+            render.set(slot + address - 1, value);
+        }
+        else if (address == 4) {
+            render.set(slot + 3, value);
+        }
+        else if (address == 10) {
+            render.set(slot + 4, value);
+        }
+    }
+
+    private void updatePanel(int address, int value){
         switch (address) {
             // Drum Temp
             case 1:
@@ -406,7 +818,9 @@ public class RoasterUI extends Application {
                     break;
                 }
                 drumTemp = value;
-                drum.setValue(drumTemp);
+                render.set(drumSlot, drumTemp);
+                updateRateOfRise(1, value);
+                roastChart.add(System.currentTimeMillis(), drumTemp, chamberTemp, exhaustTemp);
                 break;
             // Chamber Temp
             case 2:
@@ -414,7 +828,8 @@ public class RoasterUI extends Application {
                     break;
                 }
                 chamberTemp = value;
-                chamber.setValue(chamberTemp);
+                render.set(chamberSlot, chamberTemp);
+                updateRateOfRise(2, value);
                 break;
             // Exhaust Temp
             case 3:
@@ -422,87 +837,48 @@ public class RoasterUI extends Application {
                     break;
                 }
                 exhaustTemp = value;
-                exhaust.setValue(exhaustTemp);
+                render.set(exhaustSlot, exhaustTemp);
+                updateRateOfRise(3, value);
                 break;
             // Flame Status
             case 4:
-                if(flameStatus && value == 0){
-                    flameStatus = false;
-                    flameBtn.setText("OFF");
-                    flameBtn.getStyleClass().removeAll("flameOn");
-                    flameBtn.getStyleClass().add("flameOff");
-                }
-                if(!flameStatus && value == 1){
-                    flameStatus = true;
-                    flameBtn.setText("ON");
-                    flameBtn.getStyleClass().removeAll("flameOff");
-                    flameBtn.getStyleClass().add("flameOn");
-                }
+                flameStatus = (value == 1);
+                render.set(flameSlot, value);
                 break;
             // Drum Motor
             case 5:
-                if(drumStatus && value == 0){
-                    drumStatus = false;
-                    drumBtn.setSelected(false);
-                }
-                if(!drumStatus && value == 1){
-                    drumStatus = true;
-                    drumBtn.setSelected(true);
-                }
+                drumStatus = (value == 1);
+                render.set(drumBtnSlot, value);
                 break;
             // Cooling Fan
             case 6:
-                if(coolingStatus && value == 0){
-                    coolingStatus = false;
-                    coolingBtn.setSelected(false);
-                }
-                if(!coolingStatus && value == 1){
-                    coolingStatus = true;
-                    coolingBtn.setSelected(true);
-                }
+                coolingStatus = (value == 1);
+                render.set(coolingBtnSlot, value);
                 break;
             // Exhaust Fan
             case 7:
-                if(exhaustStatus && value == 0){
-                    exhaustStatus = false;
-                    exhaustBtn.setSelected(false);
-                }
-                if(!exhaustStatus && value == 1){
-                    exhaustStatus = true;
-                    exhaustBtn.setSelected(true);
-                }
+                exhaustStatus = (value == 1);
+                render.set(exhaustBtnSlot, value);
                 break;
-            // Gas Valve
+            // Gas Valve, the first time it opens is the charge the reference lines up with
             case 8:
-                if(gasStatus && value == 0){
-                    gasStatus = false;
-                    gasBtn.setSelected(false);
-                }
-                if(!gasStatus && value == 1){
-                    gasStatus = true;
-                    gasBtn.setSelected(true);
+                if (value == 1) {
+                    roastChart.charge(System.currentTimeMillis());
                 }
+                gasStatus = (value == 1);
+                render.set(gasBtnSlot, value);
                 break;
             // Ignitor Status
             case 9:
-                if(ignitorStatus && value == 0){
-                    ignitorStatus = false;
-                    ignitorBtn.setSelected(false);
-                }
-                if(!ignitorStatus && value == 1){
-                    ignitorStatus = true;
-                    ignitorBtn.setSelected(true);
-                }
+                ignitorStatus = (value == 1);
+                render.set(ignitorBtnSlot, value);
                 break;
             // Proportional Valve
             case 10:
-                if (value != proValve){
-                    proValve = value;
-                    proValveValue.setText(Integer.toString(proValve) + "%");
-                }
+                proValve = value;
+                render.set(valveSlot, proValve);
                 break;
         }
-        
     }
     
     public void queueLoop(){
@@ -517,15 +893,26 @@ public class RoasterUI extends Application {
     }
     
     private void checkQueue(){
-        while (arduino.commandQueue.size() != 0){
-            String response = arduino.checkQueue();
-            processResponse(response);
+        for (int i = 0; i < responseQueues.length; i++) {
+            long response;
+            while ((response = responseQueues[i].poll()) != CommandQueue.EMPTY){
+                processResponse(i, CommandQueue.command(response),
+                                   CommandQueue.address(response),
+                                   CommandQueue.value(response));
+            }
         }
     }
     
     
     @Override public void stop() {
-        arduino.close();
+        group.stop();
+        System.out.print(group.report());
+        System.out.print(render.renderReport());
+        if (dispatchers != null) {
+            for (TelemetryDispatcher dispatcher : dispatchers) {
+                System.out.print(dispatcher.latencyReport());
+            }
+        }
         System.exit(0);
     }
     
@@ -0,0 +1,175 @@
+/*
+ *
+ *          Burner interlocks checked as status arrives
+ *
+ *      Sees every decoded status value on the decoding thread, before the
+ *      roast log, the valve loop or the UI, and keeps its own copy of the
+ *      flame, gas, ignitor and probe readings as the roaster reported them,
+ *      not as the buttons last set them. That includes statuses held back
+ *      from the UI for disagreeing with a command still on its way. The rules:
+ *
+ *          flame out   the gas is open and the flame was lit and went out
+ *          no ignition the gas has been open without a flame for too long
+ *          ignitor     the ignitor has been on for too long
+ *          over temp   a probe reads above its limit
+ *
+ *      A gas valve closed from here counts as closed for a moment before the
+ *      roaster confirms it, so the flame going out after it is not a fault.
+ *
+ *      A broken rule calls the shutdown handler once, on this thread, which
+ *      queues the shutdown commands ahead of everything else. The rule trips
+ *      again only after it has cleared, and until then the gas and ignitor
+ *      cannot be turned on by hand. Nothing here waits on the UI, so a
+ *      stalled FX thread does not delay the shutdown.
+ *
+*/
+
+
+package roasterui;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SafetyWatchdog implements TelemetryListener {
+    public enum Rule { FLAME_OUT, NO_IGNITION, IGNITOR, OVER_TEMP }
+
+    // Called on the decoding thread, must not block
+    public interface Handler {
+        void shutdown(Rule rule, long detectedAt);
+    }
+
+    private static final long DEFAULT_IGNITION_MS = 5000;
+    private static final long DEFAULT_IGNITOR_MS = 10000;
+    private static final int DEFAULT_MAX_TEMP = 650;
+    // a relay command is echoed or given up on within this
+    private static final long COMMAND_NANOS = TimeUnit.MILLISECONDS.toNanos(2000);
+
+    private final Handler handler;
+    private volatile long ignitionNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IGNITION_MS);
+    private volatile long ignitorNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IGNITOR_MS);
+    // limit per probe address 1 - 3
+    private final int[] maxTemp = {0, DEFAULT_MAX_TEMP, DEFAULT_MAX_TEMP, DEFAULT_MAX_TEMP};
+    // state as reported, only touched on the decoding thread
+    private final int[] temps = new int[4];
+    private boolean flame;
+    private boolean gas;
+    private boolean ignitor;
+    // the flame was seen since the gas opened
+    private boolean lit;
+    private long gasSince;
+    private long ignitorSince;
+    // when the gas was last closed from here, any thread
+    private volatile long gasClosedAt = Long.MIN_VALUE / 2;
+    // rules that tripped and have not cleared yet, written on the decoding thread only
+    private volatile int tripped;
+    // statistics
+    private final AtomicLong[] trips = new AtomicLong[Rule.values().length];
+
+    public SafetyWatchdog(Handler handler){
+        this.handler = handler;
+        for (int i = 0; i < trips.length; i++) {
+            trips[i] = new AtomicLong();
+        }
+    }
+
+    // --safety-ignition=<ms> --safety-ignitor=<ms> --safety-max=<address>:<temp>
+    public void configure(Iterable<String> args){
+        for (String arg : args) {
+            if (arg.startsWith("--safety-ignition=")) {
+                ignitionNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(arg.substring(18)));
+            }
+            if (arg.startsWith("--safety-ignitor=")) {
+                ignitorNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(arg.substring(17)));
+            }
+            if (arg.startsWith("--safety-max=")) {
+                String[] limit = arg.substring(13).split(":");
+                maxTemp[Integer.parseInt(limit[0])] = Integer.parseInt(limit[1]);
+            }
+        }
+    }
+
+    // Called on the decoding thread with every status value
+    @Override
+    public void onFrame(int command, int address, int value){
+        if (command != 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        switch (address) {
+            case 1:
+            case 2:
+            case 3:
+                // zero is an unreadable probe, not a temperature
+                if (value != 0) {
+                    temps[address] = value;
+                }
+                break;
+            case 4:
+                flame = (value == 1);
+                if (flame) {
+                    lit = gas;
+                }
+                break;
+            case 8:
+                if (value == 1 && !gas) {
+                    gasSince = now;
+                    lit = flame;
+                }
+                gas = (value == 1);
+                break;
+            case 9:
+                if (value == 1 && !ignitor) {
+                    ignitorSince = now;
+                }
+                ignitor = (value == 1);
+                break;
+            default:
+                // end of a binary frame and the other addresses still give the timed rules a look
+                break;
+        }
+        boolean open = gas && now - gasClosedAt > COMMAND_NANOS;
+        check(Rule.FLAME_OUT, open && lit && !flame, now);
+        check(Rule.NO_IGNITION, open && !lit && !flame && now - gasSince > ignitionNanos, now);
+        check(Rule.IGNITOR, ignitor && now - ignitorSince > ignitorNanos, now);
+        check(Rule.OVER_TEMP, temps[1] > maxTemp[1] || temps[2] > maxTemp[2] || temps[3] > maxTemp[3], now);
+    }
+
+    private void check(Rule rule, boolean broken, long now){
+        int bit = 1 << rule.ordinal();
+        if (!broken) {
+            tripped &= ~bit;
+            return;
+        }
+        if ((tripped & bit) != 0) {
+            return;
+        }
+        tripped |= bit;
+        trips[rule.ordinal()].incrementAndGet();
+        handler.shutdown(rule, now);
+    }
+
+    // Called from any thread when a relay is set from here
+    public void commanded(int address, boolean on){
+        if (address == RoasterCore.GAS_RELAY && !on) {
+            gasClosedAt = System.nanoTime();
+        }
+    }
+
+    // a rule tripped and the roaster has not yet reported it cleared, any thread
+    public boolean isTripped(){
+        return tripped != 0;
+    }
+
+    public long trips(Rule rule){
+        return trips[rule.ordinal()].get();
+    }
+
+    public long trips(){
+        long total = 0;
+        for (AtomicLong count : trips) {
+            total += count.get();
+        }
+        return total;
+    }
+
+}
@@ -0,0 +1,27 @@
+/*
+ *      Byte link to the roaster, a real serial port or a simulator
+ */
+package roasterui;
+
+import java.io.IOException;
+
+
+public interface SerialTransport {
+
+    // Called on the transport's reader thread, the buffer is only valid during the call
+    interface Receiver {
+        void onBytes(byte[] buffer, int offset, int count);
+    }
+
+    void open(Receiver receiver) throws IOException;
+
+    void write(byte[] bytes) throws IOException;
+
+    boolean isOpen();
+
+    void close();
+
+    // description for log messages
+    String name();
+
+}
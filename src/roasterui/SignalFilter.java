@@ -0,0 +1,283 @@
+/*
+ *
+ *          Filter stages for one status address
+ *
+ *      Thermocouple readings come with noise and the odd spike. A filter is
+ *      a chain of stages applied in order to every reading of an address,
+ *      given with --filter=<address>:<stage>,<stage>,...
+ *
+ *          outlier=<deg>[:<n>]     hold the last value when a reading is more
+ *                                  than deg from the median of the last ones,
+ *                                  accept after n in a row (default 3), so a
+ *                                  real step such as the charge gets through
+ *          median=<n>              median of the last n readings, n odd
+ *          ema=<alpha>             exponential moving average, 0 < alpha <= 1
+ *          kalman=<q>:<r>          one dimensional Kalman filter, q process
+ *                                  and r measurement noise variance
+ *
+ *      e.g. --filter=1:outlier=40,median=3,ema=0.5
+ *
+ *      Each stage keeps its history in primitive arrays sized when it is
+ *      created, filtering a reading allocates nothing. Filters are not
+ *      thread safe, a roaster filters on its decoding thread only.
+ *
+*/
+
+
+package roasterui;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SignalFilter {
+    private static final int OUTLIER_WINDOW = 5;
+    private static final int DEFAULT_OUTLIER_RUN = 3;
+
+    // One step of the chain, fed the output of the one before
+    private abstract static class Stage {
+        abstract double apply(double value);
+
+        abstract void reset();
+    }
+
+    // Running median over a ring, the sorted copy is updated in place
+    private static class Median extends Stage {
+        private final double[] ring;
+        private final double[] sorted;
+        private int count;
+        private int next;
+
+        Median(int window){
+            ring = new double[window];
+            sorted = new double[window];
+        }
+
+        @Override
+        double apply(double value){
+            if (count == ring.length) {
+                remove(ring[next]);
+            }
+            count++;
+            ring[next] = value;
+            next = (next + 1) % ring.length;
+            insert(value);
+            return median();
+        }
+
+        // sorted holds count - 1 values here
+        private void insert(double value){
+            int i = count - 1;
+            while (i > 0 && sorted[i - 1] > value) {
+                sorted[i] = sorted[i - 1];
+                i--;
+            }
+            sorted[i] = value;
+        }
+
+        private void remove(double value){
+            int i = 0;
+            while (sorted[i] != value) {
+                i++;
+            }
+            System.arraycopy(sorted, i + 1, sorted, i, count - i - 1);
+            count--;
+        }
+
+        double median(){
+            int middle = (count - 1) / 2;
+            return (count % 2 == 1) ? sorted[middle] : (sorted[middle] + sorted[middle + 1]) / 2;
+        }
+
+        int count(){
+            return count;
+        }
+
+        @Override
+        void reset(){
+            count = 0;
+            next = 0;
+        }
+    }
+
+    private static class Outlier extends Stage {
+        private final double limit;
+        private final int run;
+        private final Median recent = new Median(OUTLIER_WINDOW);
+        private double last;
+        private int rejectedInRow;
+        // read when scraped
+        private volatile long rejected;
+
+        Outlier(double limit, int run){
+            this.limit = limit;
+            this.run = run;
+        }
+
+        @Override
+        double apply(double value){
+            boolean outlier = recent.count() > 0 && Math.abs(value - recent.median()) > limit;
+            if (outlier && rejectedInRow < run) {
+                rejectedInRow++;
+                rejected++;
+                return last;
+            }
+            if (outlier) {
+                // the readings stayed away, they are the new level and the old ones are history
+                recent.reset();
+            }
+            rejectedInRow = 0;
+            recent.apply(value);
+            last = value;
+            return value;
+        }
+
+        @Override
+        void reset(){
+            recent.reset();
+            rejectedInRow = 0;
+        }
+    }
+
+    private static class Ema extends Stage {
+        private final double alpha;
+        private double value;
+        private boolean started;
+
+        Ema(double alpha){
+            this.alpha = alpha;
+        }
+
+        @Override
+        double apply(double sample){
+            value = started ? value + alpha * (sample - value) : sample;
+            started = true;
+            return value;
+        }
+
+        @Override
+        void reset(){
+            started = false;
+        }
+    }
+
+    private static class Kalman extends Stage {
+        private final double q;
+        private final double r;
+        private double estimate;
+        private double variance;
+        private boolean started;
+
+        Kalman(double q, double r){
+            this.q = q;
+            this.r = r;
+        }
+
+        @Override
+        double apply(double sample){
+            if (!started) {
+                estimate = sample;
+                variance = r;
+                started = true;
+                return estimate;
+            }
+            variance += q;
+            double gain = variance / (variance + r);
+            estimate += gain * (sample - estimate);
+            variance *= 1 - gain;
+            return estimate;
+        }
+
+        @Override
+        void reset(){
+            started = false;
+        }
+    }
+
+    private final String spec;
+    private final Stage[] stages;
+
+    private SignalFilter(String spec, Stage[] stages){
+        this.spec = spec;
+        this.stages = stages;
+    }
+
+    // outlier=40,median=3,ema=0.5
+    public static SignalFilter parse(String spec){
+        List<Stage> stages = new ArrayList<>();
+        for (String stage : spec.split(",")) {
+            String[] kind = stage.split("=", 2);
+            String[] params = (kind.length > 1) ? kind[1].split(":") : new String[0];
+            switch (kind[0]) {
+                case "outlier":
+                    stages.add(new Outlier(Double.parseDouble(params[0]),
+                            (params.length > 1) ? Integer.parseInt(params[1]) : DEFAULT_OUTLIER_RUN));
+                    break;
+                case "median":
+                    int window = Integer.parseInt(params[0]);
+                    if (window < 1 || window % 2 == 0) {
+                        throw new IllegalArgumentException("Median window must be odd: " + stage);
+                    }
+                    stages.add(new Median(window));
+                    break;
+                case "ema":
+                    double alpha = Double.parseDouble(params[0]);
+                    if (alpha <= 0 || alpha > 1) {
+                        throw new IllegalArgumentException("EMA alpha must be in (0, 1]: " + stage);
+                    }
+                    stages.add(new Ema(alpha));
+                    break;
+                case "kalman":
+                    stages.add(new Kalman(Double.parseDouble(params[0]), Double.parseDouble(params[1])));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown filter stage: " + stage);
+            }
+        }
+        return new SignalFilter(spec, stages.toArray(new Stage[0]));
+    }
+
+    // --filter=<address>:<stages>, null when the address is not filtered
+    public static SignalFilter forAddress(Iterable<String> args, int address){
+        SignalFilter filter = null;
+        String prefix = "--filter=" + address + ":";
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                filter = parse(arg.substring(prefix.length()));
+            }
+        }
+        return filter;
+    }
+
+    // Filtered reading, rounded to the whole degrees the roaster reports
+    public int apply(int raw){
+        double value = raw;
+        for (Stage stage : stages) {
+            value = stage.apply(value);
+        }
+        return (int) Math.round(value);
+    }
+
+    // Forget the history, the next reading starts every stage afresh
+    public void reset(){
+        for (Stage stage : stages) {
+            stage.reset();
+        }
+    }
+
+    // readings held back by outlier stages
+    public long rejected(){
+        long rejected = 0;
+        for (Stage stage : stages) {
+            if (stage instanceof Outlier) {
+                rejected += ((Outlier) stage).rejected;
+            }
+        }
+        return rejected;
+    }
+
+    @Override
+    public String toString(){
+        return spec;
+    }
+
+}
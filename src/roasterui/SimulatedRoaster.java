@@ -0,0 +1,463 @@
+/*
+ *
+ *          In process roaster that speaks the arduino serial protocol
+ *
+ *      Answers status requests, relay and valve commands the same way the
+ *      arduino does and runs a small thermal model driven by the gas, ignitor,
+ *      drum, fan relays and the proportional valve. On top of that it can
+ *      stream unsolicited status lines at up to a few kHz with jitter, hand
+ *      bytes to the reader in randomly split chunks and inject garbage, so the
+ *      parsing and UI path can be load tested without hardware.
+ *
+ *      Unless told otherwise it accepts the binary status protocol and then
+ *      answers with frames from the BinaryFrame reference encoder.
+ *
+ *      Temperatures are in Fahrenheit like the real probes.
+ *
+*/
+
+
+package roasterui;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class SimulatedRoaster implements SerialTransport, TelemetryListener {
+    private static final double AMBIENT = 70;
+    // chamber heating in degrees per second at full valve
+    private static final double BURNER = 40;
+    // smallest flame the valve allows
+    private static final double MIN_FLAME = 0.15;
+    // a full binary frame every so many, deltas in between
+    private static final int FULL_EVERY = 20;
+
+    // configuration
+    private volatile double telemetryRate;
+    private volatile double jitter;
+    private volatile int maxChunk = 64;
+    private volatile double garbageRate;
+    private volatile int baudRate = ArduinoSerial.BAUD_RATE;
+    private volatile double timeScale = 1;
+    private volatile boolean binarySupported = true;
+    private volatile boolean linkUp = true;
+    private volatile boolean blowOut;
+    private final Random random;
+
+    // roaster state, only touched on the simulator thread
+    private final boolean[] relays = new boolean[11];
+    private int proValve;
+    private boolean flame;
+    private double drumTemp = AMBIENT;
+    private double chamberTemp = AMBIENT;
+    private double exhaustTemp = AMBIENT;
+    // binary protocol state
+    private boolean binary;
+    private final int[] current = new int[11];
+    private final int[] lastSent = new int[11];
+    private int sinceFull = FULL_EVERY;
+    private final byte[] frame = new byte[BinaryFrame.MAX_FRAME + 4];
+
+    // link
+    private final ConcurrentLinkedQueue<byte[]> inbox = new ConcurrentLinkedQueue<>();
+    private final TelemetryDecoder requestDecoder = new TelemetryDecoder(this, false);
+    private final byte[] outbox = new byte[1 << 16];
+    private int outStart;
+    private int outEnd;
+    private Receiver receiver;
+    private Thread thread;
+    private volatile boolean running;
+
+    // statistics
+    private final AtomicLong linesSent = new AtomicLong();
+    private final AtomicLong garbageSent = new AtomicLong();
+    private final AtomicLong bytesDelivered = new AtomicLong();
+    private final AtomicLong requestsReceived = new AtomicLong();
+
+    public SimulatedRoaster(){
+        this(System.nanoTime());
+    }
+
+    public SimulatedRoaster(long seed){
+        random = new Random(seed);
+    }
+
+    // unsolicited status lines per second, 0 to only answer requests
+    public void setTelemetryRate(double hz){
+        this.telemetryRate = hz;
+    }
+
+    // random variation of the telemetry period, 0.2 is +-20%
+    public void setJitter(double jitter){
+        this.jitter = jitter;
+    }
+
+    // largest chunk handed to the reader at once, 1 delivers byte by byte
+    public void setMaxChunk(int maxChunk){
+        this.maxChunk = Math.max(1, maxChunk);
+    }
+
+    // chance per line of a garbage line being sent first
+    public void setGarbageRate(double garbageRate){
+        this.garbageRate = garbageRate;
+    }
+
+    // bits per second on the simulated link, 0 for unlimited
+    public void setBaudRate(int baudRate){
+        this.baudRate = baudRate;
+    }
+
+    // false answers like firmware that only knows the text protocol
+    public void setBinarySupported(boolean binarySupported){
+        this.binarySupported = binarySupported;
+    }
+
+    // false loses everything in both directions and fails opening, like a Bluetooth link out of range
+    public void setLinkUp(boolean linkUp){
+        this.linkUp = linkUp;
+    }
+
+    // puts the flame out with the gas still open, like a gust through the burner
+    public void blowOut(){
+        this.blowOut = true;
+    }
+
+    // speed up the thermal model, 10 runs a roast ten times faster
+    public void setTimeScale(double timeScale){
+        this.timeScale = timeScale;
+    }
+
+    @Override
+    public void open(Receiver receiver) throws IOException {
+        if (running) {
+            throw new IOException("Simulator already open");
+        }
+        if (!linkUp) {
+            throw new IOException("Simulator link down");
+        }
+        this.receiver = receiver;
+        running = true;
+        thread = new Thread(this::run, "roaster-simulator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void write(byte[] bytes) throws IOException {
+        if (!running) {
+            throw new IOException("Simulator closed");
+        }
+        inbox.add(bytes.clone());
+    }
+
+    @Override
+    public boolean isOpen(){
+        return running;
+    }
+
+    @Override
+    public void close(){
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(1000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public String name(){
+        return "simulator";
+    }
+
+    private void run(){
+        long last = System.nanoTime();
+        long nextTelemetry = last;
+        long lastDelivery = last;
+        double byteCredit = 0;
+        int nextAddress = 1;
+        while (running) {
+            long now = System.nanoTime();
+            step((now - last) / 1e9 * timeScale);
+            last = now;
+            byte[] request;
+            while ((request = inbox.poll()) != null) {
+                if (linkUp) {
+                    requestDecoder.decode(request);
+                }
+            }
+            if (!linkUp) {
+                outStart = outEnd = 0;
+            }
+            double rate = telemetryRate;
+            if (rate > 0 && now >= nextTelemetry) {
+                // catch up without bursting after a long pause
+                int lines = 0;
+                while (now >= nextTelemetry && lines++ < 100) {
+                    status(nextAddress);
+                    nextAddress = (nextAddress % 10) + 1;
+                    double period = 1e9 / rate;
+                    nextTelemetry += (long) (period * (1 + jitter * (random.nextDouble() * 2 - 1)));
+                }
+                if (now - nextTelemetry > TimeUnit.SECONDS.toNanos(1)) {
+                    nextTelemetry = now;
+                }
+            }
+            // pace delivery to the link speed
+            int baud = baudRate;
+            if (baud > 0) {
+                byteCredit = Math.min(outbox.length, byteCredit + (now - lastDelivery) / 1e9 * baud / 10);
+            }
+            else {
+                byteCredit = outbox.length;
+            }
+            lastDelivery = now;
+            while (outEnd > outStart && byteCredit >= 1) {
+                int chunk = Math.min(outEnd - outStart, 1 + random.nextInt(maxChunk));
+                chunk = Math.min(chunk, (int) byteCredit);
+                receiver.onBytes(outbox, outStart, chunk);
+                outStart += chunk;
+                byteCredit -= chunk;
+                bytesDelivered.addAndGet(chunk);
+            }
+            if (outStart == outEnd) {
+                outStart = outEnd = 0;
+            }
+            long wait = TimeUnit.MILLISECONDS.toNanos(1);
+            if (rate > 0) {
+                wait = Math.min(wait, nextTelemetry - System.nanoTime());
+            }
+            if (wait > 0 && inbox.isEmpty()) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+
+    // Thermal model, dt in seconds
+    private void step(double dt){
+        if (dt <= 0) {
+            return;
+        }
+        // the ignitor lights the gas, the flame holds while the gas is open
+        boolean gas = relays[8];
+        if (blowOut) {
+            blowOut = false;
+            flame = false;
+        }
+        flame = gas && (flame || relays[9]);
+        double heat = flame ? BURNER * (MIN_FLAME + (1 - MIN_FLAME) * proValve / 100.0) : 0;
+        double exhaustFan = relays[7] ? 0.015 : 0;
+        double beans = relays[5] ? 0.006 : 0.003;
+        double cooling = relays[6] ? 0.05 : 0;
+        // large steps are split so the model stays stable
+        while (dt > 0) {
+            double h = Math.min(dt, 0.1);
+            double chamber = heat - (chamberTemp - AMBIENT) * (0.055 + exhaustFan)
+                             - (chamberTemp - drumTemp) * beans * 0.5;
+            double drum = (chamberTemp - drumTemp) * beans - (drumTemp - AMBIENT) * cooling;
+            double exhaust = (chamberTemp - exhaustTemp) * (relays[7] ? 0.03 : 0.02)
+                             - (exhaustTemp - AMBIENT) * 0.005;
+            chamberTemp += chamber * h;
+            drumTemp += drum * h;
+            exhaustTemp += exhaust * h;
+            dt -= h;
+        }
+    }
+
+    // Request from the host, command and address or valve value
+    @Override
+    public void onFrame(int command, int address, int value){
+        requestsReceived.incrementAndGet();
+        switch (command) {
+            case 0:
+                if (binary) {
+                    statusFrame(address);
+                }
+                else if (address == 0) {
+                    for (int item = 1; item <= 10; item++) {
+                        status(item);
+                    }
+                }
+                else if (address <= 10) {
+                    status(address);
+                }
+                break;
+            case 1:
+            case 2:
+                if (address >= 5 && address <= 9) {
+                    relays[address] = (command == 1);
+                }
+                echo(command, address);
+                break;
+            case 3:
+                proValve = Math.max(0, Math.min(100, address));
+                echo(command, address);
+                break;
+            case BinaryFrame.PROTOCOL_COMMAND:
+                // old firmware ignores commands it does not know
+                if (binarySupported && address == BinaryFrame.VERSION) {
+                    // a line ending first ends any binary frame a reconnected host is reading as text
+                    put((byte) '\r');
+                    put((byte) '\n');
+                    line(command, address, BinaryFrame.VERSION);
+                    binary = true;
+                    sinceFull = FULL_EVERY;
+                }
+                break;
+        }
+    }
+
+    public int value(int address){
+        switch (address) {
+            case 1:  return (int) Math.round(drumTemp + random.nextGaussian() * 0.5);
+            case 2:  return (int) Math.round(chamberTemp + random.nextGaussian() * 0.5);
+            case 3:  return (int) Math.round(exhaustTemp + random.nextGaussian() * 0.5);
+            case 4:  return flame ? 1 : 0;
+            case 10: return proValve;
+            default: return relays[address] ? 1 : 0;
+        }
+    }
+
+    private void status(int address){
+        if (garbageRate > 0 && random.nextDouble() < garbageRate) {
+            garbage();
+        }
+        if (binary) {
+            statusFrame(address);
+            return;
+        }
+        line(0, address, value(address));
+    }
+
+    // 0 sends what changed since the last frame, or everything every FULL_EVERY frames
+    private void statusFrame(int address){
+        int mask = 0;
+        for (int item = 1; item <= 10; item++) {
+            current[item] = value(item);
+            if (item == address || address == 0 && current[item] != lastSent[item]) {
+                mask |= 1 << item;
+            }
+        }
+        int length;
+        if (address == 0 && ++sinceFull >= FULL_EVERY) {
+            sinceFull = 0;
+            length = BinaryFrame.full(frame, 0, current);
+            mask = 0x7FE;
+        }
+        else {
+            length = BinaryFrame.delta(frame, 0, current, mask);
+        }
+        for (int item = 1; item <= 10; item++) {
+            if ((mask & (1 << item)) != 0) {
+                lastSent[item] = current[item];
+            }
+        }
+        frame(length);
+    }
+
+    private void echo(int command, int value){
+        if (binary) {
+            frame(BinaryFrame.echo(frame, 0, command, value));
+        }
+        else {
+            line(command, value, TelemetryListener.NO_VALUE);
+        }
+    }
+
+    private void frame(int length){
+        if (!room()) {
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            put(frame[i]);
+        }
+        linesSent.incrementAndGet();
+    }
+
+    private void garbage(){
+        // start with a byte the protocol never uses so the line can not parse
+        put((byte) '~');
+        int length = random.nextInt(12);
+        for (int i = 0; i < length; i++) {
+            // anything but a line ending
+            int b = random.nextInt(256);
+            put((byte) ((b == '\n' || b == '\r') ? '#' : b));
+        }
+        put((byte) '\r');
+        put((byte) '\n');
+        garbageSent.incrementAndGet();
+    }
+
+    // drop output the reader has not kept up with instead of growing
+    private boolean room(){
+        if (outbox.length - outEnd < 32) {
+            if (outStart > 0) {
+                System.arraycopy(outbox, outStart, outbox, 0, outEnd - outStart);
+                outEnd -= outStart;
+                outStart = 0;
+            }
+            return outbox.length - outEnd >= 32;
+        }
+        return true;
+    }
+
+    private void line(int command, int address, int value){
+        if (!room()) {
+            return;
+        }
+        putInt(command);
+        put((byte) ',');
+        putInt(address);
+        if (value != TelemetryListener.NO_VALUE) {
+            put((byte) ',');
+            putInt(value);
+        }
+        put((byte) '\r');
+        put((byte) '\n');
+        linesSent.incrementAndGet();
+    }
+
+    private void putInt(int value){
+        if (value < 0) {
+            put((byte) '-');
+            value = -value;
+        }
+        int divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        while (divisor > 0) {
+            put((byte) ('0' + value / divisor % 10));
+            divisor /= 10;
+        }
+    }
+
+    private void put(byte b){
+        if (outEnd < outbox.length) {
+            outbox[outEnd++] = b;
+        }
+    }
+
+    public long linesSent(){
+        return linesSent.get();
+    }
+
+    public long garbageSent(){
+        return garbageSent.get();
+    }
+
+    public long bytesDelivered(){
+        return bytesDelivered.get();
+    }
+
+    public long requestsReceived(){
+        return requestsReceived.get();
+    }
+
+}
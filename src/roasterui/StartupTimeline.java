@@ -0,0 +1,107 @@
+/*
+ *
+ *          Startup timeline
+ *
+ *      Milliseconds from the JVM starting to each step of startup, the port
+ *      opening, the first status request, the UI built, the first frame and
+ *      the first sample. Each mark is kept the first time it is reached, so
+ *      reconnects later on do not move it. The report is printed once the
+ *      marks a run waits for are all in, and the same times are exported as
+ *      startup_seconds{step="..."} so a slower start shows up in the metrics.
+ *
+ *      --cds-train exits cleanly once startup is complete, for a run with
+ *      -XX:ArchiveClassesAtExit that records the classes startup loads into a
+ *      class data sharing archive. Later runs map the archive with
+ *      -XX:SharedArchiveFile instead of loading and verifying those classes.
+ *
+*/
+
+
+package roasterui;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class StartupTimeline {
+    public static final String MAIN = "main";
+    public static final String PORT_OPEN = "port open";
+    public static final String FIRST_REQUEST = "first status request";
+    public static final String UI_BUILT = "ui built";
+    public static final String RESOURCES_LOADED = "fonts and css loaded";
+    public static final String FIRST_FRAME = "first frame";
+    public static final String FIRST_SAMPLE = "first sample";
+
+    // nanoTime when the JVM started, the JVM only knows its start to the millisecond
+    private static final long JVM_START = System.nanoTime()
+            - ManagementFactory.getRuntimeMXBean().getUptime() * 1_000_000L;
+    // step to nanos since JVM start, in the order reached
+    private static final Map<String, Long> marks = new ConcurrentHashMap<>();
+    private static final List<String> order = new ArrayList<>();
+    private static final List<String> waitingFor = new ArrayList<>();
+    private static Runnable onComplete;
+    private static boolean complete;
+
+    private StartupTimeline(){
+    }
+
+    // Keeps the first time a step is reached
+    public static void mark(String step){
+        long at = System.nanoTime() - JVM_START;
+        if (marks.putIfAbsent(step, at) != null) {
+            return;
+        }
+        Runnable done = null;
+        synchronized (StartupTimeline.class) {
+            order.add(step);
+            if (!complete && marks.keySet().containsAll(waitingFor) && !waitingFor.isEmpty()) {
+                complete = true;
+                done = onComplete;
+            }
+        }
+        // never on the marking thread, that may be the one the callback stops
+        if (done != null) {
+            new Thread(done, "startup-complete").start();
+        }
+    }
+
+    // Runs whenComplete on its own thread once every step given has been marked
+    public static synchronized void await(Runnable whenComplete, String... steps){
+        onComplete = whenComplete;
+        for (String step : steps) {
+            waitingFor.add(step);
+        }
+        if (marks.keySet().containsAll(waitingFor)) {
+            complete = true;
+            new Thread(whenComplete, "startup-complete").start();
+        }
+    }
+
+    // --cds-train, exit once startup is complete so the archive is written
+    public static boolean training(List<String> args){
+        return args.contains("--cds-train");
+    }
+
+    // seconds since JVM start, NaN until reached
+    public static double seconds(String step){
+        Long at = marks.get(step);
+        return (at == null) ? Double.NaN : at / 1e9;
+    }
+
+    public static void register(Metrics metrics){
+        for (String step : new String[] {MAIN, PORT_OPEN, FIRST_REQUEST, UI_BUILT, RESOURCES_LOADED, FIRST_FRAME, FIRST_SAMPLE}) {
+            metrics.gauge("startup_seconds{step=\"" + step.replace(' ', '_') + "\"}", () -> seconds(step));
+        }
+    }
+
+    public static synchronized String startupReport(){
+        StringBuilder report = new StringBuilder("Startup (ms since JVM start):\n");
+        for (String step : order) {
+            report.append(String.format("  %-22s %6.0f%n", step, marks.get(step) / 1e6));
+        }
+        return report.toString();
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ *
+ *          Streaming decoder for arduino response lines
+ *
+ *      Parses "command,address[,value]" lines straight from the bytes handed
+ *      over by the serial port into primitive fields, without building any
+ *      strings. Frames that do not parse are counted and skipped up to the
+ *      next line ending.
+ *
+*/
+
+
+package roasterui;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TelemetryDecoder {
+    // longest line we expect, anything longer is treated as garbage
+    private static final int MAX_FRAME = 32;
+    // largest absolute value a field may hold
+    private static final int MAX_FIELD = 99999999;
+
+    private final TelemetryListener listener;
+    // false when decoding requests, where a status frame has no value
+    private final boolean statusNeedsValue;
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+    // parser state for the current line
+    private final int[] fields = new int[3];
+    private int fieldIndex;
+    private int accumulator;
+    private int digits;
+    private boolean negative;
+    private boolean bad;
+    private int length;
+
+    public TelemetryDecoder(TelemetryListener listener){
+        this(listener, true);
+    }
+
+    public TelemetryDecoder(TelemetryListener listener, boolean statusNeedsValue){
+        this.listener = listener;
+        this.statusNeedsValue = statusNeedsValue;
+    }
+
+    public void decode(byte[] buffer){
+        decode(buffer, 0, buffer.length);
+    }
+
+    public void decode(byte[] buffer, int offset, int count){
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            decode(buffer[i]);
+        }
+    }
+
+    public void decode(byte b){
+        if (b == '\r' || b == '\n') {
+            if (length > 0) {
+                endFrame();
+            }
+            return;
+        }
+        length++;
+        if (bad) {
+            return;
+        }
+        if (length > MAX_FRAME) {
+            bad = true;
+        }
+        else if (b >= '0' && b <= '9') {
+            accumulator = accumulator * 10 + (b - '0');
+            digits++;
+            if (accumulator > MAX_FIELD) {
+                bad = true;
+            }
+        }
+        else if (b == ',') {
+            if (digits == 0 || fieldIndex == fields.length - 1) {
+                bad = true;
+            }
+            else {
+                fields[fieldIndex++] = negative ? -accumulator : accumulator;
+                resetField();
+            }
+        }
+        else if (b == '-' && digits == 0 && !negative) {
+            negative = true;
+        }
+        else if (b != ' ') {
+            bad = true;
+        }
+    }
+
+    private void endFrame(){
+        if (!bad && digits > 0 && fieldIndex > 0) {
+            fields[fieldIndex] = negative ? -accumulator : accumulator;
+            int command = fields[0];
+            int address = fields[1];
+            int value = (fieldIndex == 2) ? fields[2] : TelemetryListener.NO_VALUE;
+            // status responses always carry a value
+            if (statusNeedsValue && command == 0 && value == TelemetryListener.NO_VALUE) {
+                malformed.incrementAndGet();
+            }
+            else {
+                frames.incrementAndGet();
+                listener.onFrame(command, address, value);
+            }
+        }
+        else {
+            malformed.incrementAndGet();
+        }
+        fieldIndex = 0;
+        length = 0;
+        bad = false;
+        resetField();
+    }
+
+    private void resetField(){
+        accumulator = 0;
+        digits = 0;
+        negative = false;
+    }
+
+    public long frames(){
+        return frames.get();
+    }
+
+    public long malformed(){
+        return malformed.get();
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ *
+ *          Coalescing push dispatcher from the serial thread to the UI
+ *
+ *      Decoded status frames only overwrite the latest value for their address
+ *      and mark it dirty. A single drain task is handed to the FX executor while
+ *      anything is dirty, so the FX event queue never holds more than one
+ *      dispatcher task no matter how fast samples arrive.
+ *
+*/
+
+
+package roasterui;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class TelemetryDispatcher implements TelemetryListener {
+    // addresses 0 - 10, see RoasterUI
+    public static final int ADDRESSES = 11;
+
+    private final TelemetryListener consumer;
+    private final Executor fxExecutor;
+    // latest value and arrival time per address
+    private final AtomicIntegerArray values = new AtomicIntegerArray(ADDRESSES);
+    private final AtomicLongArray receivedAt = new AtomicLongArray(ADDRESSES);
+    // one bit per address with a value the consumer has not seen
+    private final AtomicInteger dirty = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Runnable drainTask = this::drain;
+    // sample to screen latency, only touched on the consumer thread
+    private final long[] latencyCount = new long[ADDRESSES];
+    private final long[] latencyTotal = new long[ADDRESSES];
+    private final long[] latencyMax = new long[ADDRESSES];
+    private long drains;
+    // the same latency for every address, safe to read from any thread
+    private final Histogram latency = new Histogram();
+
+    public TelemetryDispatcher(TelemetryListener consumer, Executor fxExecutor){
+        this.consumer = consumer;
+        this.fxExecutor = fxExecutor;
+    }
+
+    // Called on the serial thread
+    @Override
+    public void onFrame(int command, int address, int value){
+        if (command != 0 || address <= 0 || address >= ADDRESSES) {
+            // command echoes are rare, pass them through as they are
+            fxExecutor.execute(() -> consumer.onFrame(command, address, value));
+            return;
+        }
+        values.set(address, value);
+        receivedAt.set(address, System.nanoTime());
+        int bit = 1 << address;
+        int bits;
+        do {
+            bits = dirty.get();
+        } while ((bits & bit) == 0 && !dirty.compareAndSet(bits, bits | bit));
+        if (scheduled.compareAndSet(false, true)) {
+            fxExecutor.execute(drainTask);
+        }
+    }
+
+    // Called on the FX thread
+    private void drain(){
+        // clear first so a frame arriving during the drain schedules another one
+        scheduled.set(false);
+        int bits = dirty.getAndSet(0);
+        drains++;
+        while (bits != 0) {
+            int address = Integer.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            long sampled = receivedAt.get(address);
+            consumer.onFrame(0, address, values.get(address));
+            long latency = System.nanoTime() - sampled;
+            this.latency.record(latency);
+            latencyCount[address]++;
+            latencyTotal[address] += latency;
+            if (latency > latencyMax[address]) {
+                latencyMax[address] = latency;
+            }
+        }
+    }
+
+    public Histogram latencyHistogram(){
+        return latency;
+    }
+
+    public long drains(){
+        return drains;
+    }
+
+    // mean sample to screen latency in milliseconds, 0 when nothing was seen
+    public double meanLatency(int address){
+        long count = latencyCount[address];
+        return (count == 0) ? 0 : latencyTotal[address] / (count * 1e6);
+    }
+
+    public double maxLatency(int address){
+        return latencyMax[address] / 1e6;
+    }
+
+    public String latencyReport(){
+        StringBuilder report = new StringBuilder("Sample to screen latency (ms)\n");
+        for (int address = 1; address < ADDRESSES; address++) {
+            report.append(String.format("  address %2d: mean %7.2f  max %7.2f  samples %d%n",
+                    address, meanLatency(address), maxLatency(address), latencyCount[address]));
+        }
+        return report.toString();
+    }
+
+}
@@ -0,0 +1,13 @@
+/*
+ *      Callback for decoded arduino frames
+ */
+package roasterui;
+
+
+public interface TelemetryListener {
+    // value used when a frame only carries command and address
+    int NO_VALUE = Integer.MIN_VALUE;
+
+    void onFrame(int command, int address, int value);
+
+}
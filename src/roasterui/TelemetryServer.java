@@ -0,0 +1,693 @@
+/*
+ *
+ *          Live roast state over WebSocket
+ *
+ *      --ws-port=<port> serves a small status page on / and streams the
+ *      state of every roaster to WebSocket clients on /ws?rate=<hz>, so a
+ *      roast can be followed from a phone on the shop floor. It listens on
+ *      every interface and only ever sends, nothing a client says changes
+ *      the roaster.
+ *
+ *      One telemetry-server thread runs a selector over all connections.
+ *      It never hears from the serial side: when a client is due it reads
+ *      each roaster's latest values, the same atomics RoasterCore keeps
+ *      anyway, and sends what changed since that client's last message, so
+ *      a client at 1 Hz gets one message a second however fast the values
+ *      move. The decoding and FX threads do no work for it at all.
+ *
+ *      Every client gets a fixed output buffer. A client whose last message
+ *      has not gone out by the time the next one is due skips that one, its
+ *      next delta covers both, and one that stays stuck for STALL_MS is
+ *      dropped. Nothing queues up behind a slow client.
+ *
+ *      Messages are JSON text frames. The first names the roasters, then
+ *      every value message carries the roaster index, the time and the
+ *      values that changed, all of them in the first one:
+ *
+ *          {"roasters":["rfcomm0"]}
+ *          {"r":0,"t":1792295240000,"drum":412,"chamber":455,"gas":1,...}
+ *
+ *      A client may send "rate=<hz>" to change its rate.
+ *
+*/
+
+
+package roasterui;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TelemetryServer {
+    public static final double DEFAULT_RATE = 2;
+    public static final double MAX_RATE = 20;
+    public static final double MIN_RATE = 0.1;
+    public static final int MAX_CLIENTS = 512;
+    private static final long STALL_MS = 5000;
+    private static final int IN_SIZE = 4096;
+    // a client's output buffer holds at least this, and one full message per roaster
+    private static final int OUT_SIZE = 4096;
+    // longest value message: index, time and every address with ten digits, framed
+    private static final int MESSAGE_SIZE = 384;
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    // JSON names of the status addresses, by address
+    private static final String[] NAMES = {null, "drum", "chamber", "exhaust", "flame", "drum_motor",
+            "cooling", "exhaust_fan", "gas", "ignitor", "valve"};
+    private static final byte[][] KEYS = new byte[NAMES.length][];
+
+    static {
+        for (int address = 1; address < NAMES.length; address++) {
+            KEYS[address] = (",\"" + NAMES[address] + "\":").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static final String PAGE = "<!DOCTYPE html><html><head><meta charset=\"utf-8\">"
+            + "<meta name=\"viewport\" content=\"width=device-width,initial-scale=1\"><title>Coffee Roaster</title>"
+            + "<style>body{background:#212121;color:#eee;font-family:Arial,sans-serif;margin:12px}"
+            + "table{border-collapse:collapse;margin-bottom:16px}td{padding:4px 12px;font-size:20px}"
+            + "td.v{font-weight:bold;text-align:right}h2{font-size:16px;color:#9e9e9e}</style></head><body>"
+            + "<div id=\"s\">connecting</div><div id=\"r\"></div><script>"
+            + "var names=[],state=[];function show(){var h='';for(var i=0;i<state.length;i++){"
+            + "h+='<h2>'+(names[i]||'')+'</h2><table>';for(var k in state[i]){if(k!='r'&&k!='t')"
+            + "h+='<tr><td>'+k+'</td><td class=v>'+state[i][k]+'</td></tr>';}h+='</table>';}"
+            + "document.getElementById('r').innerHTML=h;}"
+            + "function open(){var ws=new WebSocket('ws://'+location.host+'/ws'+location.search);"
+            + "ws.onopen=function(){document.getElementById('s').textContent='live';};"
+            + "ws.onclose=function(){document.getElementById('s').textContent='reconnecting';setTimeout(open,2000);};"
+            + "ws.onmessage=function(e){var m=JSON.parse(e.data);if(m.roasters){names=m.roasters;return;}"
+            + "var s=state[m.r]||(state[m.r]={});for(var k in m)s[k]=m[k];show();};}open();"
+            + "</script></body></html>";
+
+    private static class Client {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(IN_SIZE);
+        // in read mode, holds whatever of the last message has not gone out
+        ByteBuffer out;
+        boolean upgraded;
+        boolean closeWhenSent;
+        final long opened = System.nanoTime();
+        long periodNanos;
+        long due;
+        long stalledSince;
+        // last value sent per roaster and address
+        final int[][] sent;
+
+        Client(SocketChannel channel, int roasters, int outSize){
+            this.channel = channel;
+            out = ByteBuffer.allocate(outSize);
+            out.flip();
+            sent = new int[roasters][RoasterCore.ADDRESSES];
+            for (int[] roaster : sent) {
+                Arrays.fill(roaster, Integer.MIN_VALUE);
+            }
+        }
+
+        void setRate(double hz){
+            // NaN would make the period 0 and the selector spin
+            if (!Double.isFinite(hz)) {
+                hz = DEFAULT_RATE;
+            }
+            periodNanos = (long) (1e9 / Math.max(MIN_RATE, Math.min(MAX_RATE, hz)));
+        }
+    }
+
+    private final List<RoasterCore> roasters;
+    // the first message, encoded once
+    private final byte[] hello;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final List<Client> clients = new ArrayList<>();
+    private final int[][] snapshot;
+    private final int outSize;
+    private final byte[] payload;
+    private int length;
+    private Thread thread;
+    private volatile boolean running;
+    // statistics
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile int clientCount;
+    // time to serve every due client in one pass
+    private final Histogram passTime = new Histogram();
+
+    public TelemetryServer(List<RoasterCore> roasters, List<String> names, int port) throws IOException {
+        this.roasters = roasters;
+        snapshot = new int[roasters.size()][RoasterCore.ADDRESSES];
+        // the hello names every roaster, the first delta has every value of every roaster
+        StringBuilder text = new StringBuilder("{\"roasters\":[");
+        for (int i = 0; i < roasters.size(); i++) {
+            text.append((i == 0) ? "\"" : ",\"").append(json(names.get(i))).append('"');
+        }
+        hello = text.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+        payload = new byte[Math.max(MESSAGE_SIZE, hello.length)];
+        outSize = Math.max(OUT_SIZE, Math.max(256 + hello.length, roasters.size() * MESSAGE_SIZE));
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port), 64);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    // --ws-port=<port>, 0 when not given
+    public static int port(Iterable<String> args){
+        int port = 0;
+        for (String arg : args) {
+            if (arg.startsWith("--ws-port=")) {
+                port = Integer.parseInt(arg.substring(10));
+            }
+        }
+        return port;
+    }
+
+    public int getPort(){
+        return server.socket().getLocalPort();
+    }
+
+    public void start(){
+        running = true;
+        thread = new Thread(this::run, "telemetry-server");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("roast telemetry on http://<this host>:" + getPort() + "/");
+    }
+
+    public void stop(){
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(2000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (Client client : new ArrayList<>(clients)) {
+            close(client);
+        }
+        try {
+            server.close();
+            selector.close();
+        } catch (IOException ex) {
+            System.out.println("Failed to close telemetry server.");
+        }
+    }
+
+    private void run(){
+        while (running) {
+            try {
+                long now = System.nanoTime();
+                long next = now + 1_000_000_000L;
+                for (Client client : clients) {
+                    if (client.upgraded) {
+                        next = Math.min(next, client.due);
+                    }
+                }
+                long wait = (next - now) / 1_000_000;
+                if (wait > 0) {
+                    selector.select(wait);
+                }
+                else {
+                    selector.selectNow();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+                serveDue();
+            } catch (IOException | RuntimeException ex) {
+                // clients are closed on their own errors, this thread must outlive anything else
+                System.out.println("Telemetry server error: " + ex);
+            }
+        }
+    }
+
+    private void handle(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            accept();
+            return;
+        }
+        Client client = (Client) key.attachment();
+        try {
+            if (key.isReadable()) {
+                read(client);
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush(client);
+            }
+        } catch (IOException | RuntimeException ex) {
+            close(client);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            if (clients.size() >= MAX_CLIENTS) {
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            // a stuck client should show as a full buffer here, not megabytes queued in the kernel
+            channel.socket().setSendBufferSize(outSize);
+            Client client = new Client(channel, roasters.size(), outSize);
+            channel.register(selector, SelectionKey.OP_READ, client);
+            clients.add(client);
+            clientCount = clients.size();
+            connections.incrementAndGet();
+        }
+    }
+
+    private void read(Client client) throws IOException {
+        if (client.channel.read(client.in) < 0) {
+            close(client);
+            return;
+        }
+        if (client.upgraded) {
+            frames(client);
+        }
+        else {
+            request(client);
+        }
+    }
+
+    // the HTTP request, answered with the page or upgraded to a WebSocket
+    private void request(Client client) throws IOException {
+        String head = new String(client.in.array(), 0, client.in.position(), StandardCharsets.ISO_8859_1);
+        int end = head.indexOf("\r\n\r\n");
+        if (end < 0) {
+            if (!client.in.hasRemaining()) {
+                close(client);
+            }
+            return;
+        }
+        client.in.clear();
+        String[] lines = head.substring(0, end).split("\r\n");
+        String[] request = lines[0].split(" ");
+        String target = (request.length > 1) ? request[1] : "/";
+        String key = null;
+        for (String line : lines) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+                key = line.substring(colon + 1).trim();
+            }
+        }
+        if (target.startsWith("/ws") && key != null) {
+            client.setRate(rate(target));
+            client.upgraded = true;
+            client.due = System.nanoTime();
+            // the switch and the roaster names go out together
+            client.out.clear();
+            client.out.put(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + accept(key) + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            hello(client.out);
+            client.out.flip();
+            flush(client);
+        }
+        else if (target.equals("/") || target.startsWith("/?")) {
+            byte[] page = PAGE.getBytes(StandardCharsets.UTF_8);
+            respond(client, "HTTP/1.1 200 OK\r\nContent-Type: text/html; charset=utf-8\r\nContent-Length: "
+                    + page.length + "\r\nConnection: close\r\n\r\n" + PAGE);
+        }
+        else {
+            respond(client, "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+        }
+    }
+
+    // ?rate=<hz>, the default when not given
+    private static double rate(String target){
+        int at = target.indexOf("rate=");
+        if (at < 0) {
+            return DEFAULT_RATE;
+        }
+        int end = target.indexOf('&', at);
+        try {
+            return Double.parseDouble(target.substring(at + 5, (end < 0) ? target.length() : end));
+        } catch (NumberFormatException ex) {
+            return DEFAULT_RATE;
+        }
+    }
+
+    private static String accept(String key){
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    // the page or a refusal, then the connection is closed
+    private void respond(Client client, String response) throws IOException {
+        client.out = ByteBuffer.wrap(response.getBytes(StandardCharsets.UTF_8));
+        client.closeWhenSent = true;
+        flush(client);
+    }
+
+    private void hello(ByteBuffer out){
+        length = 0;
+        put(hello);
+        append(out);
+    }
+
+    // text as the inside of a JSON string
+    private static String json(String text){
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    // Frames from the client, masked as the protocol requires
+    private void frames(Client client) throws IOException {
+        ByteBuffer in = client.in;
+        in.flip();
+        while (in.remaining() >= 2) {
+            int start = in.position();
+            int opcode = in.get(start) & 0x0F;
+            if ((in.get(start + 1) & 0x80) == 0) {
+                // a client must mask what it sends
+                refuse(client, 1002);
+                return;
+            }
+            if ((in.get(start) & 0x80) == 0 || opcode == 0) {
+                // nothing a client has to say is split over frames
+                refuse(client, 1003);
+                return;
+            }
+            if (in.remaining() < 6) {
+                break;
+            }
+            long size = in.get(start + 1) & 0x7F;
+            int header = 6;
+            if (size == 126) {
+                if (in.remaining() < 8) {
+                    break;
+                }
+                header = 8;
+                size = in.getShort(start + 2) & 0xFFFF;
+            }
+            else if (size == 127) {
+                // nothing a client has to say is that long
+                close(client);
+                return;
+            }
+            if (header + size > IN_SIZE) {
+                close(client);
+                return;
+            }
+            if (in.remaining() < header + size) {
+                break;
+            }
+            int mask = start + header - 4;
+            byte[] data = new byte[(int) size];
+            for (int i = 0; i < size; i++) {
+                data[i] = (byte) (in.get(start + header + i) ^ in.get(mask + i % 4));
+            }
+            in.position(start + header + (int) size);
+            switch (opcode) {
+                case 1:
+                    String text = new String(data, StandardCharsets.UTF_8).trim();
+                    if (text.startsWith("rate=")) {
+                        client.setRate(rate(text));
+                    }
+                    break;
+                case 8:
+                    client.closeWhenSent = true;
+                    control(client, 8, data);
+                    return;
+                case 9:
+                    control(client, 10, data);
+                    break;
+                default:
+                    break;
+            }
+        }
+        in.compact();
+    }
+
+    // close frame with a status code, then the connection is closed
+    private void refuse(Client client, int code) throws IOException {
+        client.closeWhenSent = true;
+        control(client, 8, new byte[] {(byte) (code >> 8), (byte) code});
+    }
+
+    private void control(Client client, int opcode, byte[] data) throws IOException {
+        if (client.out.hasRemaining()) {
+            // still sending, a late pong does no harm
+            return;
+        }
+        length = Math.min(data.length, 125);
+        System.arraycopy(data, 0, payload, 0, length);
+        frame(client, opcode);
+    }
+
+    // Every client that is due gets the values that changed since its last message
+    private void serveDue(){
+        long now = System.nanoTime();
+        long start = now;
+        boolean read = false;
+        long wallClock = 0;
+        for (int c = clients.size() - 1; c >= 0; c--) {
+            Client client = clients.get(c);
+            if (!client.upgraded) {
+                // a connection that never says what it wants is not kept
+                if (now - client.opened > STALL_MS * 1_000_000L) {
+                    close(client);
+                }
+                continue;
+            }
+            if (now < client.due) {
+                continue;
+            }
+            client.due = Math.max(client.due + client.periodNanos, now);
+            if (client.out.hasRemaining()) {
+                // the last message is still going out, this one is folded into the next
+                skipped.incrementAndGet();
+                if (client.stalledSince == 0) {
+                    client.stalledSince = now;
+                }
+                else if (now - client.stalledSince > STALL_MS * 1_000_000L) {
+                    dropped.incrementAndGet();
+                    close(client);
+                }
+                continue;
+            }
+            client.stalledSince = 0;
+            if (!read) {
+                // one read of the roasters per pass, however many clients are due
+                for (int r = 0; r < roasters.size(); r++) {
+                    RoasterCore roaster = roasters.get(r);
+                    for (int address = 1; address < RoasterCore.ADDRESSES; address++) {
+                        snapshot[r][address] = roaster.value(address);
+                    }
+                }
+                wallClock = System.currentTimeMillis();
+                read = true;
+            }
+            try {
+                delta(client, wallClock);
+            } catch (IOException | RuntimeException ex) {
+                close(client);
+            }
+        }
+        if (read) {
+            passTime.record(System.nanoTime() - start);
+        }
+    }
+
+    private void delta(Client client, long wallClock) throws IOException {
+        client.out.clear();
+        for (int r = 0; r < roasters.size(); r++) {
+            int[] sent = client.sent[r];
+            int[] values = snapshot[r];
+            length = 0;
+            put("{\"r\":");
+            number(r);
+            put(",\"t\":");
+            number(wallClock);
+            int header = length;
+            for (int address = 1; address < RoasterCore.ADDRESSES; address++) {
+                if (values[address] != sent[address]) {
+                    sent[address] = values[address];
+                    put(KEYS[address]);
+                    number(values[address]);
+                }
+            }
+            if (length > header) {
+                put("}");
+                append(client.out);
+            }
+        }
+        client.out.flip();
+        if (client.out.hasRemaining()) {
+            write(client);
+        }
+    }
+
+    // one text frame around the payload
+    private void append(ByteBuffer out){
+        out.put((byte) 0x81);
+        if (length < 126) {
+            out.put((byte) length);
+        }
+        else {
+            out.put((byte) 126);
+            out.putShort((short) length);
+        }
+        out.put(payload, 0, length);
+    }
+
+    private void frame(Client client, int opcode) throws IOException {
+        ByteBuffer out = client.out;
+        out.clear();
+        out.put((byte) (0x80 | opcode));
+        out.put((byte) length);
+        out.put(payload, 0, length);
+        out.flip();
+        write(client);
+    }
+
+    private void write(Client client) throws IOException {
+        messages.incrementAndGet();
+        flush(client);
+    }
+
+    private void flush(Client client) throws IOException {
+        try {
+            bytesSent.addAndGet(client.channel.write(client.out));
+        } catch (IOException ex) {
+            close(client);
+            return;
+        }
+        SelectionKey key = client.channel.keyFor(selector);
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        if (client.out.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+        else if (client.closeWhenSent) {
+            close(client);
+        }
+        else {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void close(Client client){
+        if (clients.remove(client)) {
+            clientCount = clients.size();
+        }
+        try {
+            client.channel.close();
+        } catch (IOException ex) {
+            // already gone
+        }
+    }
+
+    // ASCII only, names and other text are encoded to bytes up front
+    private void put(String ascii){
+        for (int i = 0; i < ascii.length(); i++) {
+            payload[length++] = (byte) ascii.charAt(i);
+        }
+    }
+
+    private void put(byte[] bytes){
+        System.arraycopy(bytes, 0, payload, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void number(long value){
+        if (value < 0) {
+            payload[length++] = '-';
+            value = -value;
+        }
+        long divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        while (divisor > 0) {
+            payload[length++] = (byte) ('0' + value / divisor % 10);
+            divisor /= 10;
+        }
+    }
+
+    public void register(Metrics metrics){
+        metrics.gauge("ws_clients", this::clients);
+        metrics.gauge("ws_connections_total", connections::get);
+        metrics.gauge("ws_messages_total", messages::get);
+        metrics.gauge("ws_bytes_sent_total", bytesSent::get);
+        metrics.gauge("ws_skipped_total", skipped::get);
+        metrics.gauge("ws_dropped_total", dropped::get);
+        metrics.register("ws_pass_seconds", passTime);
+    }
+
+    public int clients(){
+        return clientCount;
+    }
+
+    public long connections(){
+        return connections.get();
+    }
+
+    public long messages(){
+        return messages.get();
+    }
+
+    public long bytesSent(){
+        return bytesSent.get();
+    }
+
+    // messages folded into the next one because the last had not gone out
+    public long skipped(){
+        return skipped.get();
+    }
+
+    // clients dropped for not taking their messages
+    public long dropped(){
+        return dropped.get();
+    }
+
+    public Histogram passTime(){
+        return passTime;
+    }
+
+    public String serverReport(){
+        return String.format("Telemetry server on %d: %d clients  %d connections  %d messages  %.1f MB sent  %d skipped  %d dropped%n"
+                + "  pass (us): p50 %.1f  p99 %.1f  max %.1f%n",
+                getPort(), clientCount, connections.get(), messages.get(), bytesSent.get() / 1e6, skipped.get(), dropped.get(),
+                passTime.percentile(0.5) / 1e3, passTime.percentile(0.99) / 1e3, passTime.max() / 1e3);
+    }
+
+}
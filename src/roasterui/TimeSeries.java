@@ -0,0 +1,71 @@
+/*
+ *
+ *          Fixed size time series stored as primitive arrays
+ *
+ *      One array for the sample times and one per channel, used as a ring.
+ *      Samples are addressed by their absolute index since the series was
+ *      created; once the ring wraps the oldest samples are overwritten and
+ *      first() moves forward.
+ *
+*/
+
+
+package roasterui;
+
+
+public class TimeSeries {
+    private final double[] times;
+    private final float[][] values;
+    private final int mask;
+    // absolute index one past the newest sample
+    private long end;
+
+    public TimeSeries(int capacity, int channels){
+        // round up to a power of two so the slot index is a mask
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        times = new double[size];
+        values = new float[channels][size];
+        mask = size - 1;
+    }
+
+    // sample holds one value per channel, it is copied so callers can reuse it
+    public void add(double time, float[] sample){
+        int slot = (int) (end & mask);
+        times[slot] = time;
+        for (int channel = 0; channel < values.length; channel++) {
+            values[channel][slot] = sample[channel];
+        }
+        end++;
+    }
+
+    public void clear(){
+        end = 0;
+    }
+
+    // absolute index of the oldest sample still held
+    public long first(){
+        return Math.max(0, end - times.length);
+    }
+
+    // absolute index one past the newest sample
+    public long end(){
+        return end;
+    }
+
+    public int size(){
+        return (int) (end - first());
+    }
+
+    public int channels(){
+        return values.length;
+    }
+
+    public double time(long index){
+        return times[(int) (index & mask)];
+    }
+
+    public float value(int channel, long index){
+        return values[channel][(int) (index & mask)];
+    }
+
+}
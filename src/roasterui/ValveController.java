@@ -0,0 +1,297 @@
+/*
+ *
+ *          Closed loop control of the proportional valve
+ *
+ *      A PID loop that moves the valve toward a target drum or chamber
+ *      temperature, or toward a target rate of rise that may follow a curve
+ *      over the roast. It runs on its own high priority scheduled thread and
+ *      does not allocate per tick, so UI rendering and garbage collection of
+ *      the UI can not push the loop around.
+ *
+ *      Every tick records how far it started from its ideal time, and every
+ *      valve change records how long it took from reading the temperature to
+ *      queueing the command and to the arduino echoing it back.
+ *
+*/
+
+
+package roasterui;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class ValveController implements TelemetryListener {
+    public enum Mode {
+        DRUM, CHAMBER, ROR
+    }
+
+    // valve command, see RoasterUI
+    private static final int VALVE_COMMAND = 3;
+
+    private final RoasterCore core;
+    private final ScheduledExecutorService executor;
+    private ScheduledFuture<?> task;
+    private volatile boolean enabled;
+    // configuration, only changed while disabled
+    private Mode mode = Mode.CHAMBER;
+    private double kp = 0.5;
+    private double ki = 0.02;
+    private double kd = 2;
+    private long periodNanos = TimeUnit.MILLISECONDS.toNanos(250);
+    // set point curve, seconds since enabling and target, constant past either end
+    private double[] curveTimes = {0};
+    private double[] curveTargets = {450};
+    // loop state, only touched on the controller thread
+    private final RateOfRise drumRise = new RateOfRise(30, 1024);
+    private long lastDrumSample;
+    private double integral;
+    private double lastMeasurement = Double.NaN;
+    private long enabledAt;
+    private long expectedTick;
+    private int output = -1;
+    // newest drum temperature and when it arrived, written on the reader thread
+    private volatile int drumTemp;
+    private volatile long drumArrived;
+    // valve command waiting for its echo
+    private volatile int pendingValve = -1;
+    private volatile long pendingSince;
+    // timing, in microseconds
+    private final TimingStats jitter = new TimingStats();
+    private final TimingStats queueLatency = new TimingStats();
+    private final TimingStats echoLatency = new TimingStats();
+
+    public ValveController(RoasterCore core){
+        this.core = core;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "valve-controller");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+            return thread;
+        });
+    }
+
+    // --pid=drum|chamber:<temp>, --pid=ror:<deg/min> or --pid=ror:<s>/<deg/min>,<s>/<deg/min>...
+    // --pid-gains=<kp>:<ki>:<kd>, --pid-period=<ms>
+    public void configure(List<String> args){
+        for (String arg : args) {
+            if (arg.startsWith("--pid=")) {
+                String[] pid = arg.substring(6).split(":");
+                Mode target = Mode.valueOf(pid[0].toUpperCase());
+                String[] points = pid[1].split(",");
+                double[] times = new double[points.length];
+                double[] targets = new double[points.length];
+                for (int i = 0; i < points.length; i++) {
+                    String[] point = points[i].split("/");
+                    times[i] = (point.length == 2) ? Double.parseDouble(point[0]) : 0;
+                    targets[i] = Double.parseDouble(point[point.length - 1]);
+                }
+                setTarget(target, times, targets);
+            }
+            if (arg.startsWith("--pid-gains=")) {
+                String[] gains = arg.substring(12).split(":");
+                setGains(Double.parseDouble(gains[0]), Double.parseDouble(gains[1]), Double.parseDouble(gains[2]));
+            }
+            if (arg.startsWith("--pid-period=")) {
+                setPeriod(Long.parseLong(arg.substring(13)));
+            }
+        }
+    }
+
+    public synchronized void setTarget(Mode mode, double target){
+        setTarget(mode, new double[] {0}, new double[] {target});
+    }
+
+    // targets by seconds since the loop was enabled, times in increasing order
+    public synchronized void setTarget(Mode mode, double[] times, double[] targets){
+        this.mode = mode;
+        this.curveTimes = times.clone();
+        this.curveTargets = targets.clone();
+        integral = 0;
+        lastMeasurement = Double.NaN;
+    }
+
+    public synchronized void setGains(double kp, double ki, double kd){
+        this.kp = kp;
+        this.ki = ki;
+        this.kd = kd;
+    }
+
+    public synchronized void setPeriod(long millis){
+        periodNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        if (enabled) {
+            setEnabled(false);
+            setEnabled(true);
+        }
+    }
+
+    public synchronized void setEnabled(boolean on){
+        if (on == enabled) {
+            return;
+        }
+        enabled = on;
+        if (on) {
+            integral = 0;
+            lastMeasurement = Double.NaN;
+            output = -1;
+            enabledAt = System.nanoTime();
+            expectedTick = enabledAt;
+            task = executor.scheduleAtFixedRate(this::tick, 0, periodNanos, TimeUnit.NANOSECONDS);
+        }
+        else if (task != null) {
+            // the valve stays where the loop left it
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    public synchronized Mode getMode(){
+        return mode;
+    }
+
+    // set point right now
+    public synchronized double target(){
+        return targetAt(enabled ? (System.nanoTime() - enabledAt) / 1e9 : 0);
+    }
+
+    public void stop(){
+        setEnabled(false);
+        executor.shutdownNow();
+    }
+
+    // Called on the reader thread
+    @Override
+    public void onFrame(int command, int address, int value){
+        if (command == 0 && address == RoasterCore.DRUM_TEMP && value != 0) {
+            drumTemp = value;
+            drumArrived = System.nanoTime();
+        }
+        else if (command == VALVE_COMMAND && address == pendingValve) {
+            echoLatency.add((System.nanoTime() - pendingSince) / 1000);
+            pendingValve = -1;
+        }
+    }
+
+    private synchronized void tick(){
+        long start = System.nanoTime();
+        jitter.add(Math.abs(start - expectedTick) / 1000);
+        expectedTick += periodNanos;
+        // after a long stall skip the missed ticks instead of counting each as late
+        if (start - expectedTick > periodNanos) {
+            expectedTick = start + periodNanos;
+        }
+        long arrived = drumArrived;
+        if (arrived != lastDrumSample) {
+            lastDrumSample = arrived;
+            drumRise.add(arrived / 1e9, drumTemp);
+        }
+        double measurement = measure();
+        if (Double.isNaN(measurement)) {
+            return;
+        }
+        double dt = periodNanos / 1e9;
+        double error = targetAt((start - enabledAt) / 1e9) - measurement;
+        // derivative on the measurement so set point steps do not kick the valve
+        double derivative = Double.isNaN(lastMeasurement) ? 0 : (measurement - lastMeasurement) / dt;
+        lastMeasurement = measurement;
+        double unclamped = kp * error + ki * (integral + error * dt) - kd * derivative;
+        boolean flame = core.isOn(RoasterCore.FLAME);
+        // only integrate while the valve can still move that way and there is a flame to move
+        if (flame && unclamped > 0 && unclamped < 100) {
+            integral += error * dt;
+        }
+        int valve = (int) Math.round(Math.max(0, Math.min(100, kp * error + ki * integral - kd * derivative)));
+        if (valve != output) {
+            output = valve;
+            pendingSince = start;
+            pendingValve = valve;
+            core.setValve(valve);
+            queueLatency.add((System.nanoTime() - start) / 1000);
+        }
+    }
+
+    private double measure(){
+        switch (mode) {
+            case DRUM:
+                return (lastDrumSample == 0) ? Double.NaN : drumTemp;
+            case CHAMBER:
+                int chamber = core.value(RoasterCore.CHAMBER_TEMP);
+                return (chamber == 0) ? Double.NaN : chamber;
+            default:
+                return drumRise.slope();
+        }
+    }
+
+    private double targetAt(double seconds){
+        int last = curveTimes.length - 1;
+        if (seconds <= curveTimes[0]) {
+            return curveTargets[0];
+        }
+        for (int i = 1; i <= last; i++) {
+            if (seconds < curveTimes[i]) {
+                double f = (seconds - curveTimes[i - 1]) / (curveTimes[i] - curveTimes[i - 1]);
+                return curveTargets[i - 1] + f * (curveTargets[i] - curveTargets[i - 1]);
+            }
+        }
+        return curveTargets[last];
+    }
+
+    // 99th percentile period jitter in seconds
+    public double jitterP99(){
+        return jitter.percentile(0.99) / 1e6;
+    }
+
+    public String timingReport(){
+        return String.format("Valve loop %s%s, period %.0f ms%n"
+                + "  period jitter  (us): %s%n"
+                + "  read to queue  (us): %s%n"
+                + "  read to echo   (us): %s%n",
+                mode, enabled ? "" : " (off)", periodNanos / 1e6,
+                jitter, queueLatency, echoLatency);
+    }
+
+    // Mean, max and 99th percentile of microsecond samples without allocating
+    static final class TimingStats {
+        // 100 us buckets up to 100 ms, the last one holds everything above
+        private static final int BUCKET = 100;
+        private final long[] buckets = new long[1001];
+        private long count;
+        private long total;
+        private long max;
+
+        synchronized void add(long micros){
+            buckets[(int) Math.min(buckets.length - 1, Math.max(0, micros) / BUCKET)]++;
+            count++;
+            total += micros;
+            max = Math.max(max, micros);
+        }
+
+        synchronized long percentile(double p){
+            long rank = (long) Math.ceil(count * p);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(max, (i + 1L) * BUCKET);
+                }
+            }
+            return max;
+        }
+
+        synchronized double mean(){
+            return (count == 0) ? 0 : (double) total / count;
+        }
+
+        @Override
+        public synchronized String toString(){
+            return String.format("mean %7.0f  p99 %7d  max %7d  n %d", mean(), percentile(0.99), max, count);
+        }
+    }
+
+}